@@ -0,0 +1,295 @@
+package fr.skogrine.utilitycm;
+
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * AdaptiveConcurrencyLimiter bounds the number of requests in flight to a backend, with a limit that follows the
+ * capacity of the backend instead of being configured, as the congestion control of TCP does for a connection.
+ * Where {@link RateLimiter} caps a rate, this caps concurrency: when the backend slows down, requests pile up,
+ * the limit shrinks and the excess requests are rejected immediately rather than queued until everything times
+ * out.
+ *
+ * <p>Every request takes a {@link Token} and releases it with its outcome and latency. Two algorithms adjust the
+ * limit from these samples:</p>
+ * <ul>
+ *     <li>{@link #aimd(int, int, int, double) AIMD} grows the limit by one per round of successful requests and
+ *     multiplies it by a backoff ratio on every dropped request. It reacts to errors and timeouts only.</li>
+ *     <li>{@link #gradient(int, int, int) Gradient} compares the recent latency to the no-load latency, in the
+ *     spirit of TCP Vegas: a latency well above it means requests are queuing, and the limit is scaled down by
+ *     their ratio; otherwise it grows by a queue allowance of the square root of the limit. It reacts to latency
+ *     before errors appear, and also backs off on dropped requests.</li>
+ * </ul>
+ *
+ * <p>The limit only grows while at least half of it is in use by the sampled requests, so that an idle service
+ * does not raise it beyond what it has proven to sustain.</p>
+ *
+ * <p>Example usage:</p>
+ * <pre>{@code
+ * AdaptiveConcurrencyLimiter limiter = AdaptiveConcurrencyLimiter.gradient(20, 5, 1_000);
+ * Optional<AdaptiveConcurrencyLimiter.Token> token = limiter.acquire();
+ * if (token.isEmpty()) {
+ *     return serviceUnavailable();
+ * }
+ * try {
+ *     Response response = backend.call(request);
+ *     token.get().release(AdaptiveConcurrencyLimiter.Outcome.SUCCESS);
+ *     return response;
+ * } catch (TimeoutException e) {
+ *     token.get().release(AdaptiveConcurrencyLimiter.Outcome.DROPPED);
+ *     throw e;
+ * }
+ * }</pre>
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    /**
+     * How a request ended, as far as the load of the backend is concerned.
+     */
+    public enum Outcome {
+        /** The backend handled the request: its latency is a valid sample. */
+        SUCCESS,
+        /** The request failed or timed out because of load: the limit must back off. */
+        DROPPED,
+        /** The request failed for an unrelated reason, such as a bad request: it is not a sample. */
+        IGNORED
+    }
+
+    private final Algorithm algorithm;
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    /** The limit, kept fractional by the algorithms so that small increments accumulate. */
+    private double estimatedLimit;
+    private volatile int limit;
+    private LongSupplier ticker = System::nanoTime;
+
+    private AdaptiveConcurrencyLimiter(Algorithm algorithm, int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit <= 0) {
+            throw new IllegalArgumentException("Minimum limit must be positive");
+        }
+        if (initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Initial limit must be between the minimum and maximum limits");
+        }
+        this.algorithm = algorithm;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.estimatedLimit = initialLimit;
+        this.limit = initialLimit;
+    }
+
+    /**
+     * Creates a limiter using additive increase and multiplicative decrease.
+     *
+     * @param initialLimit the limit before any sample
+     * @param minLimit the lowest limit
+     * @param maxLimit the highest limit
+     * @param backoffRatio the factor applied to the limit on every dropped request, between 0 and 1 exclusive
+     * @return the limiter
+     */
+    public static AdaptiveConcurrencyLimiter aimd(int initialLimit, int minLimit, int maxLimit, double backoffRatio) {
+        if (!(backoffRatio > 0 && backoffRatio < 1)) {
+            throw new IllegalArgumentException("Backoff ratio must be between 0 and 1");
+        }
+        return new AdaptiveConcurrencyLimiter(new Aimd(backoffRatio), initialLimit, minLimit, maxLimit);
+    }
+
+    /**
+     * Creates a limiter following the gradient of the latency.
+     *
+     * @param initialLimit the limit before any sample
+     * @param minLimit the lowest limit
+     * @param maxLimit the highest limit
+     * @return the limiter
+     */
+    public static AdaptiveConcurrencyLimiter gradient(int initialLimit, int minLimit, int maxLimit) {
+        return new AdaptiveConcurrencyLimiter(new Gradient(), initialLimit, minLimit, maxLimit);
+    }
+
+    /**
+     * Attempts to start a request.
+     *
+     * @return a token to release when the request ends, or an empty optional if the limit is reached
+     */
+    public Optional<Token> acquire() {
+        for (;;) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return Optional.empty();
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return Optional.of(new Token(current + 1, ticker.getAsLong()));
+            }
+        }
+    }
+
+    /**
+     * Gets the current limit.
+     *
+     * @return the maximum number of requests in flight
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Gets the number of requests in flight.
+     *
+     * @return the number of tokens not released yet
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Sets the time source used to measure latencies, in nanoseconds. Visible for testing.
+     */
+    void setTicker(LongSupplier ticker) {
+        this.ticker = Objects.requireNonNull(ticker, "ticker");
+    }
+
+    private void onSample(Outcome outcome, long latencyNanos, int peakInFlight) {
+        if (outcome == Outcome.IGNORED) {
+            return;
+        }
+        lock.lock();
+        try {
+            boolean appLimited = peakInFlight * 2 < estimatedLimit;
+            double next = algorithm.update(estimatedLimit, Math.max(1, latencyNanos),
+                    outcome == Outcome.DROPPED, appLimited);
+            estimatedLimit = Math.max(minLimit, Math.min(maxLimit, next));
+            limit = (int) estimatedLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The permission to run one request, to release exactly once when it ends.
+     */
+    public final class Token {
+        private final int inFlightAtStart;
+        private final long startTime;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Token(int inFlightAtStart, long startTime) {
+            this.inFlightAtStart = inFlightAtStart;
+            this.startTime = startTime;
+        }
+
+        /**
+         * Ends the request, using the time elapsed since the token was acquired as its latency.
+         *
+         * @param outcome how the request ended
+         */
+        public void release(Outcome outcome) {
+            release(outcome, ticker.getAsLong() - startTime, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Ends the request with a latency measured by the caller, such as the round trip reported by a client.
+         *
+         * @param outcome how the request ended
+         * @param latency the latency of the request
+         * @param unit the time unit of the latency
+         * @throws IllegalStateException if the token was already released
+         */
+        public void release(Outcome outcome, long latency, TimeUnit unit) {
+            Objects.requireNonNull(outcome, "outcome");
+            if (!released.compareAndSet(false, true)) {
+                throw new IllegalStateException("Token already released");
+            }
+            // The peak of the requests in flight at either end of this one tells whether the limit was in use
+            int peakInFlight = Math.max(inFlightAtStart, inFlight.getAndDecrement());
+            onSample(outcome, unit.toNanos(latency), peakInFlight);
+        }
+    }
+
+    /**
+     * Computes the next limit from a sample. Called under the limiter lock, so implementations need no
+     * synchronization of their own.
+     */
+    private interface Algorithm {
+
+        /**
+         * @param limit the current limit
+         * @param latencyNanos the latency of the request
+         * @param dropped whether the request was dropped
+         * @param appLimited whether less than half of the limit was in use, so that latency says nothing about
+         *                   the limit being too low
+         * @return the next limit, before clamping
+         */
+        double update(double limit, long latencyNanos, boolean dropped, boolean appLimited);
+    }
+
+    /**
+     * Additive increase of one per limit's worth of successful samples, multiplicative decrease on drops.
+     */
+    private static final class Aimd implements Algorithm {
+        private final double backoffRatio;
+
+        Aimd(double backoffRatio) {
+            this.backoffRatio = backoffRatio;
+        }
+
+        @Override
+        public double update(double limit, long latencyNanos, boolean dropped, boolean appLimited) {
+            if (dropped) {
+                return limit * backoffRatio;
+            }
+            return appLimited ? limit : limit + 1 / limit;
+        }
+    }
+
+    /**
+     * Scales the limit by the ratio of the no-load latency to the recent latency, an exponential moving average,
+     * and adds a queue allowance of the square root of the limit. The no-load latency is the lowest latency of
+     * the last two windows of samples, so that a lasting change of the latency of the backend becomes the new
+     * baseline after at most two windows, while a baseline still reached now and then is kept.
+     *
+     * <p>Each sample moves the limit by a fraction of the limit, so that the limit changes by about
+     * {@code SMOOTHING} of the computed step per round of requests, whatever the concurrency.</p>
+     */
+    private static final class Gradient implements Algorithm {
+        private static final double SHORT_WEIGHT = 0.1;
+        private static final int WINDOW_SAMPLES = 1_000;
+        /** How much slower than the baseline requests may get before the limit shrinks. */
+        private static final double TOLERANCE = 1.5;
+        private static final double SMOOTHING = 0.2;
+        private static final double DROP_RATIO = 0.9;
+
+        private double shortLatency;
+        private long windowMinLatency = Long.MAX_VALUE;
+        private long previousWindowMinLatency = Long.MAX_VALUE;
+        private int windowSamples;
+
+        @Override
+        public double update(double limit, long latencyNanos, boolean dropped, boolean appLimited) {
+            if (dropped) {
+                return limit * DROP_RATIO;
+            }
+            shortLatency = shortLatency == 0
+                    ? latencyNanos
+                    : shortLatency + (latencyNanos - shortLatency) * SHORT_WEIGHT;
+            windowMinLatency = Math.min(windowMinLatency, latencyNanos);
+            if (++windowSamples == WINDOW_SAMPLES) {
+                previousWindowMinLatency = windowMinLatency;
+                windowMinLatency = Long.MAX_VALUE;
+                windowSamples = 0;
+            }
+            if (appLimited) {
+                return limit;
+            }
+            long noLoadLatency = Math.min(windowMinLatency, previousWindowMinLatency);
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * noLoadLatency / shortLatency));
+            double next = limit * gradient + Math.sqrt(limit);
+            return limit + (next - limit) * SMOOTHING / limit;
+        }
+    }
+}
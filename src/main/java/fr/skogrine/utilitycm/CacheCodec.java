@@ -0,0 +1,95 @@
+package fr.skogrine.utilitycm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * CacheCodec converts cached objects to and from bytes, for caches that keep their data outside of the Java heap.
+ *
+ * <p>Example usage:</p>
+ * <pre>{@code
+ * CacheCodec<Long> longs = new CacheCodec<>() {
+ *     public byte[] encode(Long value) {
+ *         return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+ *     }
+ *
+ *     public Long decode(ByteBuffer buffer) {
+ *         return buffer.getLong();
+ *     }
+ * };
+ * }</pre>
+ *
+ * @param <T> the type of the encoded objects
+ */
+public interface CacheCodec<T> {
+
+    /**
+     * Encodes an object.
+     *
+     * @param value the object, never null
+     * @return the bytes representing the object
+     */
+    byte[] encode(T value);
+
+    /**
+     * Decodes an object. The buffer must not be kept after this method returns, as its memory is reused.
+     *
+     * @param buffer a read-only buffer whose remaining bytes are exactly the ones produced by {@link #encode}
+     * @return the decoded object
+     */
+    T decode(ByteBuffer buffer);
+
+    /**
+     * Gets a codec storing byte arrays as they are.
+     *
+     * @return the codec
+     */
+    static CacheCodec<byte[]> bytes() {
+        return ByteArrayCodec.INSTANCE;
+    }
+
+    /**
+     * Gets a codec storing strings in UTF-8.
+     *
+     * @return the codec
+     */
+    static CacheCodec<String> utf8() {
+        return Utf8Codec.INSTANCE;
+    }
+
+    /**
+     * The codec returned by {@link #bytes()}.
+     */
+    enum ByteArrayCodec implements CacheCodec<byte[]> {
+        INSTANCE;
+
+        @Override
+        public byte[] encode(byte[] value) {
+            return value;
+        }
+
+        @Override
+        public byte[] decode(ByteBuffer buffer) {
+            byte[] value = new byte[buffer.remaining()];
+            buffer.get(value);
+            return value;
+        }
+    }
+
+    /**
+     * The codec returned by {@link #utf8()}.
+     */
+    enum Utf8Codec implements CacheCodec<String> {
+        INSTANCE;
+
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(ByteBuffer buffer) {
+            return StandardCharsets.UTF_8.decode(buffer).toString();
+        }
+    }
+}
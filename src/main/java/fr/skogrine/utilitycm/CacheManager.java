@@ -1,7 +1,24 @@
 package fr.skogrine.utilitycm;
 
+import fr.skogrine.utilitycm.jfr.CacheLoadEvent;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 
 /**
  * CacheManager is a utility class that provides caching functionalities with different strategies like LRU.
@@ -16,11 +33,91 @@ import java.util.Map;
  * cache.put("d", "4");
  * System.out.println(cache.get("b")); // Output: null (evicted due to LRU policy)
  * }</pre>
+ *
+ * <p>A scan-resistant policy can be selected instead of LRU:</p>
+ * <pre>{@code
+ * CacheManager<String, String> cache = new CacheManager<>(10_000, CacheManager.EvictionPolicy.W_TINY_LFU);
+ * }</pre>
+ *
+ * <p>The cache can also be bounded by the total weight of its entries rather than by their number:</p>
+ * <pre>{@code
+ * CacheManager<String, byte[]> cache = new CacheManager<>(64 * 1024 * 1024, (key, value) -> value.length);
+ * }</pre>
+ *
+ * <p>Entries can expire a fixed time after they were written or last read, or after a duration given per entry.
+ * Expired entries are never returned; they are removed incrementally by the regular cache operations through a
+ * hierarchical timing wheel, so no background thread or full scan is involved:</p>
+ * <pre>{@code
+ * CacheManager<String, String> cache = new CacheManager<String, String>(1_000)
+ *     .setExpireAfterWrite(10, TimeUnit.MINUTES);
+ * cache.put("session", "token", 30, TimeUnit.SECONDS);
+ * }</pre>
+ *
+ * <p>The entries can be saved to a snapshot file, for instance before a restart, and loaded back in their recency
+ * order to avoid starting cold:</p>
+ * <pre>{@code
+ * cache.writeSnapshot(Path.of("cache.bin"), CacheCodec.utf8(), CacheCodec.utf8());
+ * // After the restart
+ * cache.readSnapshot(Path.of("cache.bin"), CacheCodec.utf8(), CacheCodec.utf8());
+ * }</pre>
  * @param <K> key
  * @param <V> value
  */
 public class CacheManager<K, V> extends LinkedHashMap<K, V> {
     private final int capacity;
+    private final long maximumWeight;
+    private final Weigher<? super K, ? super V> weigher;
+    private final EvictionPolicy evictionPolicy;
+    private final WindowTinyLfuPolicy<K> tinyLfu;
+    private long totalWeight;
+    private long expireAfterWriteNanos = NO_EXPIRATION;
+    private long expireAfterAccessNanos = NO_EXPIRATION;
+    private TimerWheel<K> timerWheel;
+    private Map<K, Expiration<K>> expirations;
+    private LongSupplier ticker = System::nanoTime;
+    private BiConsumer<? super K, ? super V> removalListener;
+    private StatsCounter statsCounter;
+
+    /** Marks a disabled expiration duration. */
+    private static final long NO_EXPIRATION = -1;
+    /** The deadline of entries that never expire. */
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * The strategies available to choose which entry is evicted when the cache is full.
+     */
+    public enum EvictionPolicy {
+        /**
+         * Evicts the least recently used entry.
+         */
+        LRU,
+        /**
+         * Admits new entries through a small LRU window and only lets them replace an entry of the main space
+         * if they are used more frequently, as estimated by a Count-Min sketch with aging. This keeps hot entries
+         * cached when the workload contains large scans of keys that are read only once.
+         */
+        W_TINY_LFU
+    }
+
+    /**
+     * Computes the weight of an entry for caches bounded by a maximum weight, for example the size of the
+     * value in bytes. The weight of an entry is computed when it is written and when it is removed, so it must
+     * not change while the entry is cached.
+     *
+     * @param <K> key
+     * @param <V> value
+     */
+    @FunctionalInterface
+    public interface Weigher<K, V> {
+        /**
+         * Computes the weight of an entry.
+         *
+         * @param key the key
+         * @param value the value
+         * @return the non-negative weight of the entry
+         */
+        long weigh(K key, V value);
+    }
 
     /**
      * Constructs a CacheManager with the specified capacity.
@@ -28,13 +125,232 @@ public class CacheManager<K, V> extends LinkedHashMap<K, V> {
      * @param capacity the maximum number of entries that the cache can hold
      */
     public CacheManager(int capacity) {
+        this(capacity, EvictionPolicy.LRU);
+    }
+
+    /**
+     * Constructs a CacheManager with the specified capacity and eviction policy.
+     *
+     * <p>The collection views of a {@link EvictionPolicy#W_TINY_LFU} cache are read-only, so that every removal
+     * goes through {@link #remove(Object)} and the policy never keeps track of a removed key.</p>
+     *
+     * @param capacity the maximum number of entries that the cache can hold
+     * @param evictionPolicy the policy choosing the entries to evict
+     */
+    public CacheManager(int capacity, EvictionPolicy evictionPolicy) {
         super(capacity, 0.75f, true);
         this.capacity = capacity;
+        this.maximumWeight = capacity;
+        this.weigher = null;
+        this.evictionPolicy = Objects.requireNonNull(evictionPolicy, "evictionPolicy");
+        this.tinyLfu = evictionPolicy == EvictionPolicy.W_TINY_LFU ? new WindowTinyLfuPolicy<>(capacity, capacity) : null;
+    }
+
+    /**
+     * Constructs a CacheManager bounded by the total weight of its entries, evicting least recently used entries.
+     *
+     * @param maximumWeight the maximum total weight of the entries that the cache can hold
+     * @param weigher the function computing the weight of an entry
+     */
+    public CacheManager(long maximumWeight, Weigher<? super K, ? super V> weigher) {
+        this(maximumWeight, weigher, EvictionPolicy.LRU);
+    }
+
+    /**
+     * Constructs a CacheManager bounded by the total weight of its entries.
+     *
+     * <p>The collection views of a weighted cache are read-only, so that every removal goes through
+     * {@link #remove(Object)} and keeps the total weight accurate.</p>
+     *
+     * @param maximumWeight the maximum total weight of the entries that the cache can hold
+     * @param weigher the function computing the weight of an entry
+     * @param evictionPolicy the policy choosing the entries to evict
+     */
+    public CacheManager(long maximumWeight, Weigher<? super K, ? super V> weigher, EvictionPolicy evictionPolicy) {
+        super(16, 0.75f, true);
+        if (maximumWeight < 0) {
+            throw new IllegalArgumentException("Maximum weight must be non-negative");
+        }
+        this.capacity = Integer.MAX_VALUE;
+        this.maximumWeight = maximumWeight;
+        this.weigher = Objects.requireNonNull(weigher, "weigher");
+        this.evictionPolicy = Objects.requireNonNull(evictionPolicy, "evictionPolicy");
+        this.tinyLfu = evictionPolicy == EvictionPolicy.W_TINY_LFU
+                ? new WindowTinyLfuPolicy<>(maximumWeight, Math.min(maximumWeight, 1024)) : null;
+    }
+
+    /**
+     * Makes entries expire once the given duration has elapsed since they were created or their value was last
+     * replaced. Entries already in the cache are given the full duration from now.
+     *
+     * @param duration the duration, or a negative value to disable this expiration
+     * @param unit the time unit of the duration
+     * @return this CacheManager
+     */
+    public CacheManager<K, V> setExpireAfterWrite(long duration, TimeUnit unit) {
+        this.expireAfterWriteNanos = duration < 0 ? NO_EXPIRATION : unit.toNanos(duration);
+        rescheduleAll();
+        return this;
+    }
+
+    /**
+     * Makes entries expire once the given duration has elapsed since they were last read or written. Entries
+     * already in the cache are given the full duration from now.
+     *
+     * @param duration the duration, or a negative value to disable this expiration
+     * @param unit the time unit of the duration
+     * @return this CacheManager
+     */
+    public CacheManager<K, V> setExpireAfterAccess(long duration, TimeUnit unit) {
+        this.expireAfterAccessNanos = duration < 0 ? NO_EXPIRATION : unit.toNanos(duration);
+        rescheduleAll();
+        return this;
+    }
+
+    /**
+     * Sets the time source used for expiration, in nanoseconds. It must be set before expiration is enabled.
+     * Visible for testing.
+     */
+    void setTicker(LongSupplier ticker) {
+        this.ticker = Objects.requireNonNull(ticker, "ticker");
+    }
+
+    /**
+     * Enables or disables the recording of statistics, available through {@link #getStats()}. Disabling them
+     * discards the statistics recorded so far.
+     *
+     * @param recordStats true to record statistics
+     * @return this CacheManager
+     */
+    public CacheManager<K, V> setRecordStats(boolean recordStats) {
+        if (!recordStats) {
+            this.statsCounter = null;
+        } else if (statsCounter == null) {
+            this.statsCounter = new StatsCounter();
+        }
+        return this;
+    }
+
+    /**
+     * Gets a snapshot of the statistics recorded since they were enabled: hits and misses of {@link #get(Object)}
+     * and {@link #computeIfAbsent(Object, Function)}, evictions and expirations, and the loads run by
+     * {@link #computeIfAbsent(Object, Function)}.
+     *
+     * @return the statistics, empty if they are not recorded
+     */
+    public CacheStats getStats() {
+        StatsCounter counter = statsCounter;
+        return counter == null ? CacheStats.empty() : counter.snapshot();
+    }
+
+    /**
+     * Gets the counter recording the statistics, for the caches built on top of this one.
+     *
+     * @return the counter, or null if statistics are not recorded
+     */
+    StatsCounter getStatsCounter() {
+        return statsCounter;
+    }
+
+    /**
+     * Sets a listener told about every value leaving the cache: removed, evicted, expired, replaced by another
+     * value or cleared. The collection views become read-only so that no removal goes unnoticed.
+     */
+    void setRemovalListener(BiConsumer<? super K, ? super V> removalListener) {
+        this.removalListener = removalListener;
+    }
+
+    /**
+     * Gets the eviction policy of this cache.
+     *
+     * @return the eviction policy
+     */
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * Gets the maximum total weight of the cache, which is its capacity when it is not bounded by weight.
+     *
+     * @return the maximum weight
+     */
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * Gets the total weight of the entries currently cached, which is their number when the cache is not
+     * bounded by weight.
+     *
+     * @return the weighted size
+     */
+    public long getWeightedSize() {
+        return weigher == null ? size() : totalWeight;
+    }
+
+    /**
+     * Writes the live entries to a binary snapshot file, from the most to the least recently used, so that a
+     * new cache can be warmed up with {@link #readSnapshot(Path, CacheCodec, CacheCodec)} instead of starting
+     * cold. Writing the snapshot does not count as an access to the entries.
+     *
+     * @param file the snapshot file, replaced if it exists
+     * @param keyCodec encodes the keys
+     * @param valueCodec encodes the values
+     * @return the number of entries written
+     * @throws IOException if the file cannot be written
+     */
+    public long writeSnapshot(Path file, CacheCodec<? super K> keyCodec, CacheCodec<? super V> valueCodec)
+            throws IOException {
+        if (timerWheel != null) {
+            expireEntries(ticker.getAsLong());
+        }
+        List<Map.Entry<K, V>> entries = new ArrayList<>(super.entrySet());
+        Collections.reverse(entries);
+        return CacheSnapshot.write(file, entries, keyCodec, valueCodec);
+    }
+
+    /**
+     * Loads the entries of a snapshot written by {@link #writeSnapshot(Path, CacheCodec, CacheCodec)}, keeping
+     * their recency order. When the snapshot holds more than the cache can, only the most recently used entries
+     * are read and the rest of the file is skipped. Loaded entries count as written now for expiration.
+     *
+     * @param file the snapshot file
+     * @param keyCodec decodes the keys
+     * @param valueCodec decodes the values
+     * @return the number of entries loaded
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public int readSnapshot(Path file, CacheCodec<? extends K> keyCodec, CacheCodec<? extends V> valueCodec)
+            throws IOException {
+        List<K> keys = new ArrayList<>();
+        List<V> values = new ArrayList<>();
+        long[] weight = {0};
+        CacheSnapshot.read(file, keyCodec, valueCodec, (K key, V value) -> {
+            weight[0] += weigh(key, value);
+            if (weight[0] > maximumWeight) {
+                return false;
+            }
+            keys.add(key);
+            values.add(value);
+            return true;
+        });
+        // Insert the coldest entries first so that the hottest end up most recently used
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            put(keys.get(i), values.get(i));
+        }
+        return keys.size();
     }
 
     @Override
     protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-        return size() > capacity;
+        // Weighted caches and other policies evict from put() once they have accounted for the new entry
+        if (isTracked() || size() <= capacity) {
+            return false;
+        }
+        if (statsCounter != null) {
+            statsCounter.recordEviction(1);
+        }
+        return true;
     }
 
     /**
@@ -45,7 +361,31 @@ public class CacheManager<K, V> extends LinkedHashMap<K, V> {
      * @return the previous value associated with the key, or null if there was no mapping
      */
     public V put(K key, V value) {
-        return super.put(key, value);
+        if (!isTracked()) {
+            return super.put(key, value);
+        }
+        return write(key, value, expireAfterWriteNanos);
+    }
+
+    /**
+     * Puts an entry into the cache that expires after the given duration, instead of the duration set with
+     * {@link #setExpireAfterWrite(long, TimeUnit)}. The entry can still expire earlier if it is not accessed
+     * within the duration set with {@link #setExpireAfterAccess(long, TimeUnit)}.
+     *
+     * @param key the key
+     * @param value the value
+     * @param duration the time to live of the entry
+     * @param unit the time unit of the duration
+     * @return the previous value associated with the key, or null if there was no mapping
+     */
+    public V put(K key, V value, long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("Duration must be non-negative");
+        }
+        if (timerWheel == null) {
+            enableExpiration(ticker.getAsLong());
+        }
+        return write(key, value, unit.toNanos(duration));
     }
 
     /**
@@ -55,6 +395,488 @@ public class CacheManager<K, V> extends LinkedHashMap<K, V> {
      * @return the value associated with the key, or null if there is no mapping
      */
     public V get(Object key) {
-        return super.get(key);
+        return read(key, true);
+    }
+
+    /**
+     * Checks whether the cache holds a live mapping for the key. This does not count as an access.
+     *
+     * @param key the key
+     * @return true if the cache contains a mapping for the key that has not expired
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        if (timerWheel != null && expireIfNeeded(key, false)) {
+            return false;
+        }
+        return super.containsKey(key);
+    }
+
+    @Override
+    public V getOrDefault(Object key, V defaultValue) {
+        V value = get(key);
+        return value != null || super.containsKey(key) ? value : defaultValue;
+    }
+
+    /**
+     * Removes an entry from the cache.
+     *
+     * @param key the key
+     * @return the value that was associated with the key, or null if there was no mapping
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        if (!isTracked()) {
+            return super.remove(key);
+        }
+        if (!containsKey(key)) {
+            return null;
+        }
+        V value = super.remove(key);
+        onRemove((K) key, value);
+        return value;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (!containsKey(key) || !Objects.equals(super.get(key), value)) {
+            return false;
+        }
+        remove(key);
+        return true;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> map) {
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        V current = containsKey(key) ? super.get(key) : null;
+        return current == null ? put(key, value) : current;
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        return containsKey(key) ? put(key, value) : null;
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (!containsKey(key) || !Objects.equals(super.get(key), oldValue)) {
+            return false;
+        }
+        put(key, newValue);
+        return true;
+    }
+
+    @Override
+    public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+        if (!isTracked()) {
+            super.replaceAll(function);
+            return;
+        }
+        if (timerWheel != null) {
+            expireEntries(ticker.getAsLong());
+        }
+        for (Map.Entry<K, V> entry : super.entrySet()) {
+            V oldValue = entry.getValue();
+            V newValue = function.apply(entry.getKey(), oldValue);
+            entry.setValue(newValue);
+            onUpdate(entry.getKey(), oldValue, newValue);
+        }
+        evict();
+    }
+
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        // A miss is recorded below, along with the load
+        V value = read(key, false);
+        if (value != null) {
+            return value;
+        }
+        // Disabled events are no-ops the JIT removes, allocation included
+        CacheLoadEvent event = new CacheLoadEvent();
+        event.begin();
+        try {
+            if (statsCounter == null) {
+                value = mappingFunction.apply(key);
+            } else {
+                statsCounter.recordMisses(1);
+                value = load(key, mappingFunction, statsCounter);
+            }
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.key = String.valueOf(key);
+                event.success = value != null;
+                event.commit();
+            }
+        }
+        if (value != null) {
+            put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Reads an entry, recording the access for the eviction policy, the expiration and the statistics.
+     *
+     * @param recordMiss whether to record a miss, or to leave it to a caller about to load the value
+     */
+    @SuppressWarnings("unchecked")
+    private V read(Object key, boolean recordMiss) {
+        if (timerWheel != null && expireIfNeeded(key, true)) {
+            if (tinyLfu != null) {
+                tinyLfu.recordAccess((K) key);
+            }
+            if (statsCounter != null && recordMiss) {
+                statsCounter.recordMisses(1);
+            }
+            return null;
+        }
+        V value = super.get(key);
+        if (tinyLfu != null) {
+            tinyLfu.recordAccess((K) key);
+        }
+        if (statsCounter != null) {
+            if (value != null || recordMiss && super.containsKey(key)) {
+                statsCounter.recordHits(1);
+            } else if (recordMiss) {
+                statsCounter.recordMisses(1);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Runs a mapping function while recording its duration and outcome.
+     */
+    private static <K, V> V load(K key, Function<? super K, ? extends V> mappingFunction, StatsCounter counter) {
+        long start = System.nanoTime();
+        V value;
+        try {
+            value = mappingFunction.apply(key);
+        } catch (RuntimeException | Error e) {
+            counter.recordLoadFailure(System.nanoTime() - start);
+            throw e;
+        }
+        if (value == null) {
+            counter.recordLoadFailure(System.nanoTime() - start);
+        } else {
+            counter.recordLoadSuccess(System.nanoTime() - start);
+        }
+        return value;
+    }
+
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        V oldValue = containsKey(key) ? super.get(key) : null;
+        if (oldValue == null) {
+            return null;
+        }
+        V newValue = remappingFunction.apply(key, oldValue);
+        if (newValue == null) {
+            remove(key);
+        } else {
+            put(key, newValue);
+        }
+        return newValue;
+    }
+
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        boolean present = containsKey(key);
+        V oldValue = present ? super.get(key) : null;
+        V newValue = remappingFunction.apply(key, oldValue);
+        if (newValue == null) {
+            if (present) {
+                remove(key);
+            }
+            return null;
+        }
+        put(key, newValue);
+        return newValue;
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(value, "value");
+        V oldValue = containsKey(key) ? super.get(key) : null;
+        V newValue = oldValue == null ? value : remappingFunction.apply(oldValue, value);
+        if (newValue == null) {
+            remove(key);
+        } else {
+            put(key, newValue);
+        }
+        return newValue;
+    }
+
+    @Override
+    public void clear() {
+        if (removalListener != null) {
+            super.forEach(removalListener);
+        }
+        super.clear();
+        totalWeight = 0;
+        if (tinyLfu != null) {
+            tinyLfu.clear();
+        }
+        if (timerWheel != null) {
+            timerWheel.clear();
+            expirations.clear();
+        }
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return !hasReadOnlyViews() ? super.keySet() : Collections.unmodifiableSet(super.keySet());
+    }
+
+    @Override
+    public Collection<V> values() {
+        return !hasReadOnlyViews() ? super.values() : Collections.unmodifiableCollection(super.values());
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return !hasReadOnlyViews() ? super.entrySet() : Collections.unmodifiableSet(super.entrySet());
+    }
+
+    /**
+     * Checks whether writes need bookkeeping beyond what {@link LinkedHashMap} does on its own.
+     */
+    private boolean isTracked() {
+        return weigher != null || tinyLfu != null || timerWheel != null || removalListener != null;
+    }
+
+    /**
+     * Checks whether removals through the collection views would corrupt the bookkeeping.
+     */
+    private boolean hasReadOnlyViews() {
+        return weigher != null || tinyLfu != null || removalListener != null;
+    }
+
+    /**
+     * Writes an entry and updates the bookkeeping of every enabled feature.
+     *
+     * @param writeNanos the time to live of the entry, or {@link #NO_EXPIRATION}
+     */
+    private V write(K key, V value, long writeNanos) {
+        long now = 0;
+        if (timerWheel != null) {
+            now = ticker.getAsLong();
+            expireEntries(now);
+        }
+        boolean present = super.containsKey(key);
+        V oldValue = super.put(key, value);
+        if (present) {
+            onUpdate(key, oldValue, value);
+        } else {
+            onInsert(key, value);
+        }
+        if (timerWheel != null) {
+            scheduleExpiration(key, now, writeNanos);
+        }
+        evict();
+        return oldValue;
+    }
+
+    private void enableExpiration(long now) {
+        timerWheel = new TimerWheel<>(now, TimeUnit.SECONDS.toNanos(1), 64, 4);
+        expirations = new HashMap<>();
+    }
+
+    /**
+     * Gives every cached entry a deadline computed from the current expiration settings.
+     */
+    private void rescheduleAll() {
+        if (timerWheel == null && expireAfterWriteNanos == NO_EXPIRATION && expireAfterAccessNanos == NO_EXPIRATION) {
+            return;
+        }
+        long now = ticker.getAsLong();
+        if (timerWheel == null) {
+            enableExpiration(now);
+        }
+        for (K key : super.keySet()) {
+            scheduleExpiration(key, now, expireAfterWriteNanos);
+        }
+    }
+
+    /**
+     * Computes the deadline of a written entry and schedules it on the timing wheel.
+     */
+    private void scheduleExpiration(K key, long now, long writeNanos) {
+        long writeDeadline = writeNanos == NO_EXPIRATION ? NO_DEADLINE : now + writeNanos;
+        long accessDeadline = expireAfterAccessNanos == NO_EXPIRATION ? NO_DEADLINE : now + expireAfterAccessNanos;
+        long deadline = Math.min(writeDeadline, accessDeadline);
+        Expiration<K> expiration = expirations.get(key);
+        if (deadline == NO_DEADLINE) {
+            if (expiration != null) {
+                timerWheel.deschedule(expiration);
+                expirations.remove(key);
+            }
+            return;
+        }
+        if (expiration == null) {
+            expiration = new Expiration<>(key);
+            expirations.put(key, expiration);
+        }
+        expiration.writeDeadline = writeDeadline;
+        expiration.time = deadline;
+        timerWheel.reschedule(expiration);
+    }
+
+    /**
+     * Expires the entry of the key if its deadline has passed, otherwise optionally records the access for
+     * expire-after-access. Due entries of other keys are expired along the way.
+     *
+     * @return true if the key has no live entry because it just expired
+     */
+    private boolean expireIfNeeded(Object key, boolean access) {
+        long now = ticker.getAsLong();
+        expireEntries(now);
+        Expiration<K> expiration = expirations.get(key);
+        if (expiration == null) {
+            return false;
+        }
+        if (expiration.time - now <= 0) {
+            expire(expiration);
+            return true;
+        }
+        if (access && expireAfterAccessNanos != NO_EXPIRATION) {
+            expiration.time = Math.min(expiration.writeDeadline, now + expireAfterAccessNanos);
+            timerWheel.reschedule(expiration);
+        }
+        return false;
+    }
+
+    /**
+     * Advances the timing wheel, removing the entries whose deadline has passed.
+     */
+    private void expireEntries(long now) {
+        timerWheel.advance(now, timer -> expire((Expiration<K>) timer));
+    }
+
+    private void expire(Expiration<K> expiration) {
+        K key = expiration.item;
+        if (expirations.get(key) != expiration) {
+            return;
+        }
+        if (super.containsKey(key)) {
+            V value = super.remove(key);
+            if (statsCounter != null) {
+                statsCounter.recordEviction(weigh(key, value));
+            }
+            onRemove(key, value);
+        } else {
+            // The entry was removed through a collection view
+            timerWheel.deschedule(expiration);
+            expirations.remove(key);
+            if (tinyLfu != null) {
+                tinyLfu.recordRemoval(key);
+            }
+        }
+    }
+
+    private long weigh(K key, V value) {
+        if (weigher == null) {
+            return 1;
+        }
+        long weight = weigher.weigh(key, value);
+        if (weight < 0) {
+            throw new IllegalArgumentException("Negative weight " + weight + " for key " + key);
+        }
+        return weight;
+    }
+
+    private void onInsert(K key, V value) {
+        long weight = weigh(key, value);
+        totalWeight += weight;
+        if (tinyLfu != null) {
+            tinyLfu.recordInsertion(key, weight);
+        }
+    }
+
+    private void onUpdate(K key, V oldValue, V newValue) {
+        long weight = weigh(key, newValue);
+        totalWeight += weight - weigh(key, oldValue);
+        if (tinyLfu != null) {
+            tinyLfu.recordUpdate(key, weight);
+        }
+        if (removalListener != null && oldValue != newValue) {
+            removalListener.accept(key, oldValue);
+        }
+    }
+
+    private void onRemove(K key, V value) {
+        totalWeight -= weigh(key, value);
+        if (tinyLfu != null) {
+            tinyLfu.recordRemoval(key);
+        }
+        if (expirations != null) {
+            Expiration<K> expiration = expirations.remove(key);
+            if (expiration != null) {
+                timerWheel.deschedule(expiration);
+            }
+        }
+        if (removalListener != null) {
+            removalListener.accept(key, value);
+        }
+    }
+
+    /**
+     * Evicts entries chosen by the eviction policy until the cache fits its capacity or maximum weight again.
+     */
+    private void evict() {
+        while (getWeightedSize() > maximumWeight) {
+            if (!evictOne()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Evicts the entry chosen by the eviction policy, for owners bounding the cache by a resource the weights do
+     * not fully account for.
+     *
+     * @return true if an entry was evicted, false if the cache is empty
+     */
+    boolean evictOne() {
+        if (isEmpty()) {
+            return false;
+        }
+        K victim;
+        if (tinyLfu != null) {
+            victim = tinyLfu.selectVictim();
+            if (victim == null) {
+                return false;
+            }
+        } else {
+            Iterator<K> eldest = super.keySet().iterator();
+            victim = eldest.next();
+        }
+        V value = super.remove(victim);
+        if (statsCounter != null) {
+            statsCounter.recordEviction(weigh(victim, value));
+        }
+        onRemove(victim, value);
+        return true;
+    }
+
+    /**
+     * The timer of an entry that has a deadline.
+     */
+    private static final class Expiration<K> extends TimerWheel.Timer<K> {
+        /** The deadline set when the entry was written, which accesses cannot extend. */
+        long writeDeadline;
+
+        Expiration(K key) {
+            super(key);
+        }
     }
 }
@@ -0,0 +1,224 @@
+package fr.skogrine.utilitycm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.function.BiPredicate;
+
+/**
+ * Reads and writes the binary snapshots of {@link CacheManager}.
+ *
+ * <p>A snapshot is a header (magic number, format version and entry count) followed by the entries, each stored
+ * as the lengths of its encoded key and value followed by their bytes. A length of -1 stands for null. The file
+ * is read and written sequentially through a reused direct buffer, so the whole snapshot is never copied on heap.
+ * Memory mapping is avoided on purpose: a mapping lives until it is garbage collected, and on Windows it keeps the
+ * file from being truncated or replaced. Snapshots are written to a temporary file moved over the target once
+ * complete, so a crash never leaves a truncated snapshot behind.</p>
+ */
+final class CacheSnapshot {
+
+    private static final int MAGIC = 0x55434d53;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int NULL_LENGTH = -1;
+    /** The size of the buffer, grown for entries that do not fit in it. */
+    private static final int BUFFER_SIZE = 256 << 10;
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot.
+     *
+     * @param file the snapshot file, replaced if it exists
+     * @param entries the entries, in the order they are read back
+     * @param keyCodec encodes the keys
+     * @param valueCodec encodes the values
+     * @param <K> the type of keys
+     * @param <V> the type of values
+     * @return the number of entries written
+     * @throws IOException if the file cannot be written
+     */
+    static <K, V> long write(Path file, Iterable<? extends Map.Entry<K, V>> entries, CacheCodec<? super K> keyCodec,
+                             CacheCodec<? super V> valueCodec) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        long count = 0;
+        boolean written = false;
+        try (ChannelWriter writer = new ChannelWriter(temporary)) {
+            writer.ensure(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putLong(0);
+            for (Map.Entry<K, V> entry : entries) {
+                byte[] key = entry.getKey() == null ? null : keyCodec.encode(entry.getKey());
+                byte[] value = entry.getValue() == null ? null : valueCodec.encode(entry.getValue());
+                ByteBuffer buffer = writer.ensure(8 + length(key) + length(value));
+                buffer.putInt(key == null ? NULL_LENGTH : key.length);
+                buffer.putInt(value == null ? NULL_LENGTH : value.length);
+                if (key != null) {
+                    buffer.put(key);
+                }
+                if (value != null) {
+                    buffer.put(value);
+                }
+                count++;
+            }
+            writer.finish(count);
+            written = true;
+        } finally {
+            if (!written) {
+                Files.deleteIfExists(temporary);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * Reads a snapshot, handing the entries to the consumer in the order they were written.
+     *
+     * @param file the snapshot file
+     * @param keyCodec decodes the keys
+     * @param valueCodec decodes the values
+     * @param consumer receives the entries and returns false to stop reading
+     * @param <K> the type of keys
+     * @param <V> the type of values
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    static <K, V> void read(Path file, CacheCodec<? extends K> keyCodec, CacheCodec<? extends V> valueCodec,
+                            BiPredicate<? super K, ? super V> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ChannelReader reader = new ChannelReader(channel);
+            ByteBuffer header = reader.ensure(HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a cache snapshot: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported cache snapshot version " + version + ": " + file);
+            }
+            long count = header.getLong();
+            for (long i = 0; i < count; i++) {
+                ByteBuffer lengths = reader.ensure(8);
+                int keyLength = lengths.getInt();
+                int valueLength = lengths.getInt();
+                long entryLength = (long) Math.max(0, keyLength) + Math.max(0, valueLength);
+                if (keyLength < NULL_LENGTH || valueLength < NULL_LENGTH || entryLength > Integer.MAX_VALUE - 8) {
+                    throw new IOException("Corrupted cache snapshot: " + file);
+                }
+                ByteBuffer buffer = reader.ensure((int) entryLength);
+                K key = keyLength == NULL_LENGTH ? null : keyCodec.decode(slice(buffer, keyLength));
+                V value = valueLength == NULL_LENGTH ? null : valueCodec.decode(slice(buffer, valueLength));
+                if (!consumer.test(key, value)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    /**
+     * Gets a read-only view of the next bytes of the buffer and skips them.
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice.asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes a file sequentially through a reused direct buffer.
+     */
+    private static final class ChannelWriter implements Closeable {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        ChannelWriter(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Gets the buffer with room for the given number of bytes at its position.
+         */
+        ByteBuffer ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+                if (buffer.capacity() < bytes) {
+                    buffer = ByteBuffer.allocateDirect(bytes);
+                }
+            }
+            return buffer;
+        }
+
+        /**
+         * Records the entry count in the header once every entry is written.
+         */
+        void finish(long count) throws IOException {
+            flush();
+            ByteBuffer header = ByteBuffer.allocate(Long.BYTES).putLong(0, count);
+            while (header.hasRemaining()) {
+                channel.write(header, 8 + header.position());
+            }
+            channel.force(false);
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads a file sequentially through a reused direct buffer.
+     */
+    private static final class ChannelReader {
+        private final FileChannel channel;
+        private final long size;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).limit(0);
+
+        ChannelReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        /**
+         * Gets the buffer holding at least the given number of bytes at its position.
+         */
+        ByteBuffer ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                // Checked before growing the buffer, so that a corrupted length cannot allocate a huge one
+                if (buffer.remaining() + size - channel.position() < bytes) {
+                    throw new IOException("Truncated cache snapshot");
+                }
+                if (buffer.capacity() < bytes) {
+                    buffer = ByteBuffer.allocateDirect(bytes).put(buffer);
+                } else {
+                    buffer.compact();
+                }
+                while (buffer.position() < bytes) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("Truncated cache snapshot");
+                    }
+                }
+                buffer.flip();
+            }
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package fr.skogrine.utilitycm;
+
+import java.util.Arrays;
+
+/**
+ * CacheStats is an immutable snapshot of the statistics of a cache, as returned by {@link CacheManager#getStats()}.
+ *
+ * <p>Load times are also kept as a histogram with power-of-two buckets: bucket {@code i} counts the loads that
+ * took between 2<sup>i-1</sup> (inclusive) and 2<sup>i</sup> (exclusive) nanoseconds, bucket 0 the loads measured
+ * at 0. Percentiles computed from it are therefore accurate within a factor of two, which is enough to tell a
+ * 1 ms backend from a 100 ms one.</p>
+ *
+ * <p>Example usage:</p>
+ * <pre>{@code
+ * CacheManager<String, String> cache = new CacheManager<String, String>(1_000).setRecordStats(true);
+ * ...
+ * CacheStats stats = cache.getStats();
+ * System.out.println(stats.getHitRate());
+ * CacheStats lastMinute = stats.minus(statsOneMinuteAgo);
+ * }</pre>
+ */
+public final class CacheStats {
+
+    /** The number of buckets of the load time histogram. */
+    static final int LOAD_TIME_BUCKETS = 64;
+
+    private static final CacheStats EMPTY = new CacheStats(0, 0, 0, 0, 0, 0, 0, new long[LOAD_TIME_BUCKETS]);
+
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long evictionWeight;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTimeNanos;
+    private final long[] loadTimeHistogram;
+
+    CacheStats(long hitCount, long missCount, long evictionCount, long evictionWeight, long loadSuccessCount,
+               long loadFailureCount, long totalLoadTimeNanos, long[] loadTimeHistogram) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.evictionWeight = evictionWeight;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTimeNanos = totalLoadTimeNanos;
+        this.loadTimeHistogram = loadTimeHistogram;
+    }
+
+    /**
+     * Gets the statistics of a cache that recorded nothing.
+     *
+     * @return the empty statistics
+     */
+    public static CacheStats empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Gets the number of lookups that found a value.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Gets the number of lookups that found no value.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Gets the number of lookups.
+     *
+     * @return the sum of hits and misses
+     */
+    public long getRequestCount() {
+        return hitCount + missCount;
+    }
+
+    /**
+     * Gets the ratio of lookups that found a value.
+     *
+     * @return the hit rate, 1 when there was no lookup
+     */
+    public double getHitRate() {
+        long requests = getRequestCount();
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    /**
+     * Gets the ratio of lookups that found no value.
+     *
+     * @return the miss rate, 0 when there was no lookup
+     */
+    public double getMissRate() {
+        long requests = getRequestCount();
+        return requests == 0 ? 0.0 : (double) missCount / requests;
+    }
+
+    /**
+     * Gets the number of entries evicted because the cache was full or because they expired.
+     *
+     * @return the eviction count
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Gets the total weight of the evicted entries, which equals the eviction count for caches not bounded by
+     * weight.
+     *
+     * @return the evicted weight
+     */
+    public long getEvictionWeight() {
+        return evictionWeight;
+    }
+
+    /**
+     * Gets the number of loads that produced a value.
+     *
+     * @return the load success count
+     */
+    public long getLoadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    /**
+     * Gets the number of loads that threw an exception or produced no value.
+     *
+     * @return the load failure count
+     */
+    public long getLoadFailureCount() {
+        return loadFailureCount;
+    }
+
+    /**
+     * Gets the time spent loading values, successfully or not.
+     *
+     * @return the total load time in nanoseconds
+     */
+    public long getTotalLoadTimeNanos() {
+        return totalLoadTimeNanos;
+    }
+
+    /**
+     * Gets the average time spent per load.
+     *
+     * @return the average load time in nanoseconds, 0 when there was no load
+     */
+    public double getAverageLoadPenaltyNanos() {
+        long loads = loadSuccessCount + loadFailureCount;
+        return loads == 0 ? 0.0 : (double) totalLoadTimeNanos / loads;
+    }
+
+    /**
+     * Gets the load time histogram described in the class documentation.
+     *
+     * @return a copy of the bucket counts
+     */
+    public long[] getLoadTimeHistogram() {
+        return loadTimeHistogram.clone();
+    }
+
+    /**
+     * Gets an upper bound of the load time below which the given percentage of the loads completed.
+     *
+     * @param percentile the percentage, between 0 and 100
+     * @return the exclusive upper bound of the matching histogram bucket in nanoseconds, 0 when there was no load
+     */
+    public long getLoadTimePercentileNanos(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        long total = 0;
+        for (long count : loadTimeHistogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < loadTimeHistogram.length; i++) {
+            seen += loadTimeHistogram[i];
+            if (seen >= rank) {
+                return i == LOAD_TIME_BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Computes the statistics recorded since an earlier snapshot of the same cache.
+     *
+     * @param other the earlier snapshot
+     * @return the difference, with negative values clamped to 0
+     */
+    public CacheStats minus(CacheStats other) {
+        long[] histogram = new long[LOAD_TIME_BUCKETS];
+        for (int i = 0; i < LOAD_TIME_BUCKETS; i++) {
+            histogram[i] = Math.max(0, loadTimeHistogram[i] - other.loadTimeHistogram[i]);
+        }
+        return new CacheStats(
+                Math.max(0, hitCount - other.hitCount),
+                Math.max(0, missCount - other.missCount),
+                Math.max(0, evictionCount - other.evictionCount),
+                Math.max(0, evictionWeight - other.evictionWeight),
+                Math.max(0, loadSuccessCount - other.loadSuccessCount),
+                Math.max(0, loadFailureCount - other.loadFailureCount),
+                Math.max(0, totalLoadTimeNanos - other.totalLoadTimeNanos),
+                histogram);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CacheStats)) {
+            return false;
+        }
+        CacheStats that = (CacheStats) o;
+        return hitCount == that.hitCount && missCount == that.missCount && evictionCount == that.evictionCount
+                && evictionWeight == that.evictionWeight && loadSuccessCount == that.loadSuccessCount
+                && loadFailureCount == that.loadFailureCount && totalLoadTimeNanos == that.totalLoadTimeNanos
+                && Arrays.equals(loadTimeHistogram, that.loadTimeHistogram);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Long.hashCode(hitCount);
+        result = 31 * result + Long.hashCode(missCount);
+        result = 31 * result + Long.hashCode(evictionCount);
+        result = 31 * result + Long.hashCode(loadSuccessCount);
+        result = 31 * result + Long.hashCode(loadFailureCount);
+        return 31 * result + Arrays.hashCode(loadTimeHistogram);
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hitCount=" + hitCount + ", missCount=" + missCount + ", evictionCount=" + evictionCount
+                + ", evictionWeight=" + evictionWeight + ", loadSuccessCount=" + loadSuccessCount
+                + ", loadFailureCount=" + loadFailureCount + ", totalLoadTimeNanos=" + totalLoadTimeNanos + "}";
+    }
+}
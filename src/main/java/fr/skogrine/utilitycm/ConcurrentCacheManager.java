@@ -0,0 +1,384 @@
+package fr.skogrine.utilitycm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ConcurrentCacheManager is a thread-safe counterpart of {@link CacheManager} that keeps an approximate LRU
+ * eviction order without serializing readers.
+ *
+ * <p>Entries are spread over independent shards. Each shard stores its entries in a {@link ConcurrentHashMap},
+ * so {@link #get(Object)} never takes a lock. Instead of reordering the LRU list on every read, readers append the
+ * accessed entry to a small lossy per-thread ring buffer; the buffers are drained in batches by whichever thread
+ * manages to acquire the shard lock (a writer, or a reader that finds its buffer full). When a buffer is full the
+ * access is simply dropped, which only makes the LRU order slightly less precise.</p>
+ *
+ * <p>Example usage:</p>
+ * <pre>{@code
+ * ConcurrentCacheManager<String, String> cache = new ConcurrentCacheManager<>(10_000);
+ * cache.put("a", "1");
+ * System.out.println(cache.get("a")); // Output: 1
+ * }</pre>
+ *
+ * @param <K> key
+ * @param <V> value
+ */
+public class ConcurrentCacheManager<K, V> {
+
+    /** Smallest number of entries a shard is given before the cache stops adding shards. */
+    private static final int MIN_SHARD_CAPACITY = 32;
+    /** Number of read buffers per shard; readers pick one from their thread identity. */
+    private static final int READ_BUFFER_STRIPES = ceilingPowerOfTwo(Runtime.getRuntime().availableProcessors());
+    /** Capacity of a single read buffer, must be a power of two. */
+    private static final int READ_BUFFER_SIZE = 16;
+
+    private final int capacity;
+    private final Shard<K, V>[] shards;
+    private final int shardMask;
+
+    /**
+     * Constructs a ConcurrentCacheManager with the specified capacity, sharded by the number of available processors.
+     *
+     * @param capacity the maximum number of entries that the cache can hold
+     */
+    public ConcurrentCacheManager(int capacity) {
+        this(capacity, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a ConcurrentCacheManager with the specified capacity and expected number of concurrently
+     * writing threads.
+     *
+     * @param capacity the maximum number of entries that the cache can hold
+     * @param concurrencyLevel the expected number of threads updating the cache concurrently
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ConcurrentCacheManager(int capacity, int concurrencyLevel) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("Concurrency level must be positive");
+        }
+        this.capacity = capacity;
+
+        // Small caches keep a single shard so that the eviction order stays a true LRU
+        int shardCount = Math.min(ceilingPowerOfTwo(concurrencyLevel),
+                Integer.highestOneBit(Math.max(1, capacity / MIN_SHARD_CAPACITY)));
+        this.shards = new Shard[shardCount];
+        this.shardMask = shardCount - 1;
+        for (int i = 0; i < shardCount; i++) {
+            // Distribute the remainder so that the shard capacities add up to the requested capacity
+            int shardCapacity = capacity / shardCount + (i < capacity % shardCount ? 1 : 0);
+            shards[i] = new Shard<>(shardCapacity);
+        }
+    }
+
+    /**
+     * Puts an entry into the cache, evicting the least recently used entry of its shard if needed.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the previous value associated with the key, or null if there was no mapping
+     */
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("ConcurrentCacheManager does not accept null keys or values");
+        }
+        return shardFor(key).put(key, value);
+    }
+
+    /**
+     * Gets an entry from the cache without taking any lock.
+     *
+     * @param key the key
+     * @return the value associated with the key, or null if there is no mapping
+     */
+    public V get(Object key) {
+        return shardFor(key).get(key);
+    }
+
+    /**
+     * Checks whether the cache contains a mapping for the key. This does not count as an access.
+     *
+     * @param key the key
+     * @return true if the cache contains a mapping for the key
+     */
+    public boolean containsKey(Object key) {
+        return shardFor(key).data.containsKey(key);
+    }
+
+    /**
+     * Removes an entry from the cache.
+     *
+     * @param key the key
+     * @return the value that was associated with the key, or null if there was no mapping
+     */
+    public V remove(Object key) {
+        return shardFor(key).remove(key);
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public void clear() {
+        for (Shard<K, V> shard : shards) {
+            shard.clear();
+        }
+    }
+
+    /**
+     * Gets the number of entries currently held by the cache.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        long size = 0;
+        for (Shard<K, V> shard : shards) {
+            size += shard.data.size();
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Gets the maximum number of entries that the cache can hold.
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private Shard<K, V> shardFor(Object key) {
+        return shards[spread(key.hashCode()) & shardMask];
+    }
+
+    /**
+     * Spreads the bits of a hash code so that shard and stripe indexes do not depend on the low bits only.
+     */
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        return h ^ (h >>> 16);
+    }
+
+    private static int ceilingPowerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    /**
+     * An entry of the cache. The links are only read and written while holding the shard lock.
+     */
+    private static final class Node<K, V> {
+        final K key;
+        volatile V value;
+        Node<K, V> prev;
+        Node<K, V> next;
+        boolean linked;
+
+        Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A lossy single-consumer ring buffer of accessed nodes. Producers claim a slot with a CAS on the write
+     * counter and give up when the buffer is full; the consumer is whoever holds the shard lock.
+     */
+    private static final class ReadBuffer<K, V> {
+        private final AtomicLong writeCounter = new AtomicLong();
+        private final AtomicReferenceArray<Node<K, V>> buffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        private volatile long readCounter;
+
+        /**
+         * Records an access.
+         *
+         * @return false if the buffer is full and the access was dropped
+         */
+        boolean offer(Node<K, V> node) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            if (tail - head >= READ_BUFFER_SIZE) {
+                return false;
+            }
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                buffer.lazySet((int) (tail & (READ_BUFFER_SIZE - 1)), node);
+            }
+            // Losing the CAS race means another reader recorded an access at the same time, which is fine
+            return true;
+        }
+
+        void drainTo(Shard<K, V> shard) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            while (head < tail) {
+                int index = (int) (head & (READ_BUFFER_SIZE - 1));
+                Node<K, V> node = buffer.get(index);
+                if (node == null) {
+                    // The producer claimed the slot but has not published it yet
+                    break;
+                }
+                buffer.lazySet(index, null);
+                shard.onAccess(node);
+                head++;
+            }
+            readCounter = head;
+        }
+    }
+
+    /**
+     * An independent part of the cache with its own map, LRU list and lock.
+     */
+    private static final class Shard<K, V> {
+        final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+        final ReentrantLock lock = new ReentrantLock();
+        final ReadBuffer<K, V>[] readBuffers;
+        final int capacity;
+        /** Least recently used end of the list, guarded by the lock. */
+        Node<K, V> head;
+        /** Most recently used end of the list, guarded by the lock. */
+        Node<K, V> tail;
+        int linkedCount;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Shard(int capacity) {
+            this.capacity = Math.max(1, capacity);
+            this.readBuffers = new ReadBuffer[READ_BUFFER_STRIPES];
+            for (int i = 0; i < readBuffers.length; i++) {
+                readBuffers[i] = new ReadBuffer<>();
+            }
+        }
+
+        V get(Object key) {
+            Node<K, V> node = data.get(key);
+            if (node == null) {
+                return null;
+            }
+            ReadBuffer<K, V> buffer = readBuffers[spread(Thread.currentThread().hashCode()) & (readBuffers.length - 1)];
+            if (!buffer.offer(node) && lock.tryLock()) {
+                try {
+                    drainReadBuffers();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return node.value;
+        }
+
+        V put(K key, V value) {
+            lock.lock();
+            try {
+                drainReadBuffers();
+                Node<K, V> node = data.get(key);
+                if (node != null) {
+                    V oldValue = node.value;
+                    node.value = value;
+                    moveToTail(node);
+                    return oldValue;
+                }
+                node = new Node<>(key, value);
+                data.put(key, node);
+                linkLast(node);
+                while (linkedCount > capacity) {
+                    Node<K, V> eldest = head;
+                    unlink(eldest);
+                    data.remove(eldest.key, eldest);
+                }
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        V remove(Object key) {
+            lock.lock();
+            try {
+                Node<K, V> node = data.remove(key);
+                if (node == null) {
+                    return null;
+                }
+                unlink(node);
+                return node.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                drainReadBuffers();
+                data.clear();
+                // Readers may still hold some of these nodes in their buffers
+                for (Node<K, V> node = head; node != null; ) {
+                    Node<K, V> next = node.next;
+                    node.prev = null;
+                    node.next = null;
+                    node.linked = false;
+                    node = next;
+                }
+                head = null;
+                tail = null;
+                linkedCount = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void drainReadBuffers() {
+            for (ReadBuffer<K, V> buffer : readBuffers) {
+                buffer.drainTo(this);
+            }
+        }
+
+        void onAccess(Node<K, V> node) {
+            // Nodes evicted or removed after the read was recorded are no longer linked
+            if (node.linked) {
+                moveToTail(node);
+            }
+        }
+
+        void linkLast(Node<K, V> node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            node.linked = true;
+            linkedCount++;
+        }
+
+        void unlink(Node<K, V> node) {
+            if (!node.linked) {
+                return;
+            }
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            node.linked = false;
+            linkedCount--;
+        }
+
+        void moveToTail(Node<K, V> node) {
+            if (tail != node) {
+                unlink(node);
+                linkLast(node);
+            }
+        }
+    }
+}
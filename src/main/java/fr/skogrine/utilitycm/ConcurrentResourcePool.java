@@ -1,6 +1,7 @@
 package fr.skogrine.utilitycm;
 
 import fr.skogrine.utilitycm.annotation.NotFinished;
+import fr.skogrine.utilitycm.jfr.PoolAcquireEvent;
 
 import java.util.Iterator;
 import java.util.Map;
@@ -75,14 +76,30 @@ public class ConcurrentResourcePool<T> {
      */
     public CompletableFuture<T> acquireAsync() {
         return CompletableFuture.supplyAsync(() -> {
+            // Created where it is committed, so the JIT can drop it while no recording enables it
+            PoolAcquireEvent event = new PoolAcquireEvent();
+            event.begin();
             PooledResource pooledResource = pool.poll();
-            if (pooledResource != null) {
-                pooledResource.updateLastUsed();
-                return pooledResource.getResource();
+            boolean success = false;
+            try {
+                T resource;
+                if (pooledResource != null) {
+                    pooledResource.updateLastUsed();
+                    resource = pooledResource.getResource();
+                } else {
+                    // Pool is empty, create a new resource
+                    resource = resourceSupplier.get();
+                }
+                success = true;
+                return resource;
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.created = pooledResource == null;
+                    event.success = success;
+                    event.commit();
+                }
             }
-
-            // Pool is empty, create a new resource
-            return resourceSupplier.get();
         });
     }
 
@@ -0,0 +1,269 @@
+package fr.skogrine.utilitycm;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Locale;
+
+/**
+ * CronExpression is a compiled cron expression, able to compute the next time it fires.
+ *
+ * <p>Expressions have five fields, {@code minute hour day-of-month month day-of-week}, or six with a leading
+ * {@code second} field. Each field accepts {@code *}, values, ranges such as {@code 1-5}, steps such as
+ * {@code *}{@code /15} or {@code 10-30/5}, and comma-separated lists of those. Months and days of the week also
+ * accept their English three-letter names, and Sunday is both 0 and 7. As in Vixie cron, when both the day of
+ * the month and the day of the week are restricted, a day matching either fires, and otherwise a day must match
+ * both. A day field starting with {@code *}, such as {@code *}{@code /2}, does not count as restricted, so
+ * {@code 0 0 *}{@code /2 * MON} fires on the odd days of the month that are Mondays. {@code ?} is a synonym of
+ * {@code *} for either day field.</p>
+ *
+ * <p>Each field is compiled into a bitset held in a {@code long}, so finding the next matching second, minute,
+ * hour or month is a mask and a count of trailing zeros, and the matching days of a month are computed at once
+ * from the day-of-month set and the weekly pattern of the day-of-week set. {@link #next(ZonedDateTime)} thus
+ * costs a handful of bit operations per field rather than a scan of candidate times.</p>
+ *
+ * <p>Example usage:</p>
+ * <pre>{@code
+ * CronExpression cron = CronExpression.parse("0 9-17 * * MON-FRI");
+ * ZonedDateTime next = cron.next(ZonedDateTime.now());
+ * }</pre>
+ */
+public final class CronExpression {
+
+    private static final String[] MONTHS = {"JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT",
+            "NOV", "DEC"};
+    private static final String[] DAYS = {"SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT"};
+    /** The days 1, 8, 15, 22, 29 and 36 of a month, a weekly pattern to shift to the first matching day. */
+    private static final long WEEKLY = 1L << 1 | 1L << 8 | 1L << 15 | 1L << 22 | 1L << 29 | 1L << 36;
+    /** How far ahead to look before deciding that an expression, such as February 30th, never fires. */
+    private static final int MAX_YEARS = 10;
+
+    private final String expression;
+    private final long seconds;
+    private final long minutes;
+    private final long hours;
+    private final long daysOfMonth;
+    private final long months;
+    private final long daysOfWeek;
+    private final boolean daysOfMonthRestricted;
+    private final boolean daysOfWeekRestricted;
+
+    private CronExpression(String expression, String[] fields) {
+        this.expression = expression;
+        int offset = fields.length == 6 ? 1 : 0;
+        this.seconds = offset == 1 ? parseField(fields[0], 0, 59, null) : 1L;
+        this.minutes = parseField(fields[offset], 0, 59, null);
+        this.hours = parseField(fields[offset + 1], 0, 23, null);
+        this.daysOfMonth = parseField(fields[offset + 2], 1, 31, null);
+        this.months = parseField(fields[offset + 3], 1, 12, MONTHS);
+        long days = parseField(fields[offset + 4], 0, 7, DAYS);
+        // Sunday is both 0 and 7
+        this.daysOfWeek = (days | days >>> 7) & 0x7F;
+        this.daysOfMonthRestricted = !isWildcard(fields[offset + 2]);
+        this.daysOfWeekRestricted = !isWildcard(fields[offset + 4]);
+    }
+
+    /**
+     * Parses a cron expression.
+     *
+     * @param expression the expression, with five or six fields separated by whitespace
+     * @return the compiled expression
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static CronExpression parse(String expression) {
+        String[] fields = expression.trim().split("\\s+");
+        if (fields.length != 5 && fields.length != 6) {
+            throw new IllegalArgumentException("Cron expression must have 5 or 6 fields: " + expression);
+        }
+        try {
+            return new CronExpression(expression, fields);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cron expression '" + expression + "': " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Computes the first time the expression fires strictly after the given time, in the time zone of that time.
+     * When a daylight saving transition skips a matching local time, the expression fires right after the gap.
+     *
+     * @param after the time to start from
+     * @return the next fire time, or null if the expression never fires, such as on February 30th
+     */
+    public ZonedDateTime next(ZonedDateTime after) {
+        LocalDateTime time = after.toLocalDateTime().truncatedTo(ChronoUnit.SECONDS).plusSeconds(1);
+        int year = time.getYear();
+        int month = time.getMonthValue();
+        int day = time.getDayOfMonth();
+        int hour = time.getHour();
+        int minute = time.getMinute();
+        int second = time.getSecond();
+        int lastYear = year + MAX_YEARS;
+
+        // An overflowing field is carried into the next one up, whose own check then moves on if needed
+        while (year <= lastYear) {
+            int nextMonth = nextBit(months, month);
+            if (nextMonth != month) {
+                if (nextMonth < 0) {
+                    year++;
+                    month = 1;
+                } else {
+                    month = nextMonth;
+                }
+                day = 1;
+                hour = 0;
+                minute = 0;
+                second = 0;
+                continue;
+            }
+            int nextDay = nextBit(matchingDays(year, month), day);
+            if (nextDay != day) {
+                if (nextDay < 0) {
+                    month++;
+                    day = 1;
+                } else {
+                    day = nextDay;
+                }
+                hour = 0;
+                minute = 0;
+                second = 0;
+                continue;
+            }
+            int nextHour = nextBit(hours, hour);
+            if (nextHour != hour) {
+                if (nextHour < 0) {
+                    day++;
+                    hour = 0;
+                } else {
+                    hour = nextHour;
+                }
+                minute = 0;
+                second = 0;
+                continue;
+            }
+            int nextMinute = nextBit(minutes, minute);
+            if (nextMinute != minute) {
+                if (nextMinute < 0) {
+                    hour++;
+                    minute = 0;
+                } else {
+                    minute = nextMinute;
+                }
+                second = 0;
+                continue;
+            }
+            int nextSecond = nextBit(seconds, second);
+            if (nextSecond < 0) {
+                minute++;
+                second = 0;
+                continue;
+            }
+            ZonedDateTime next = ZonedDateTime.ofLocal(LocalDateTime.of(year, month, day, hour, minute, nextSecond),
+                    after.getZone(), null);
+            if (next.isAfter(after)) {
+                return next;
+            }
+            // A local time repeated by a daylight saving overlap may have fired already
+            second = nextSecond + 1;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * Computes the bitset of the days of a month on which the expression fires.
+     */
+    private long matchingDays(int year, int month) {
+        int length = LocalDate.of(year, month, 1).lengthOfMonth();
+        long monthDays = (1L << (length + 1)) - 2;
+        if (!daysOfWeekRestricted && daysOfWeek == 0x7F) {
+            return daysOfMonth & monthDays;
+        }
+        // Day i of the month falls on the day of the week of the 1st plus i - 1
+        int firstDay = LocalDate.of(year, month, 1).getDayOfWeek().getValue() % 7;
+        long weekDays = 0;
+        for (long remaining = daysOfWeek; remaining != 0; remaining &= remaining - 1) {
+            int dayOfWeek = Long.numberOfTrailingZeros(remaining);
+            weekDays |= WEEKLY << ((dayOfWeek - firstDay + 7) % 7);
+        }
+        if (!daysOfMonthRestricted || !daysOfWeekRestricted) {
+            return daysOfMonth & weekDays & monthDays;
+        }
+        return (daysOfMonth | weekDays) & monthDays;
+    }
+
+    /**
+     * Finds the lowest set bit at or above the given index.
+     *
+     * @return the index of the bit, or -1 if there is none
+     */
+    private static int nextBit(long bits, int from) {
+        long remaining = from >= Long.SIZE ? 0 : bits & (-1L << from);
+        return remaining == 0 ? -1 : Long.numberOfTrailingZeros(remaining);
+    }
+
+    private static boolean isWildcard(String field) {
+        return field.startsWith("*") || field.equals("?");
+    }
+
+    private static long parseField(String field, int min, int max, String[] names) {
+        long bits = 0;
+        for (String part : field.split(",", -1)) {
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash >= 0) {
+                step = parseNumber(part.substring(slash + 1), 1, max, null);
+                part = part.substring(0, slash);
+            }
+            int start;
+            int end;
+            if (part.equals("*") || part.equals("?")) {
+                start = min;
+                end = max;
+            } else {
+                int dash = part.indexOf('-');
+                if (dash >= 0) {
+                    start = parseNumber(part.substring(0, dash), min, max, names);
+                    end = parseNumber(part.substring(dash + 1), min, max, names);
+                    if (end < start) {
+                        throw new IllegalArgumentException("Range " + part + " is reversed");
+                    }
+                } else {
+                    start = parseNumber(part, min, max, names);
+                    // A step after a single value runs to the end of the field, as in 10/5
+                    end = slash >= 0 ? max : start;
+                }
+            }
+            for (int value = start; value <= end; value += step) {
+                bits |= 1L << value;
+            }
+        }
+        return bits;
+    }
+
+    private static int parseNumber(String text, int min, int max, String[] names) {
+        if (names != null) {
+            String upper = text.toUpperCase(Locale.ROOT);
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(upper)) {
+                    // Months count from 1, days of the week from 0
+                    return names == MONTHS ? i + 1 : i;
+                }
+            }
+        }
+        int value;
+        try {
+            value = Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("'" + text + "' is not a number");
+        }
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(value + " is not between " + min + " and " + max);
+        }
+        return value;
+    }
+}
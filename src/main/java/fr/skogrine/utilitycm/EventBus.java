@@ -1,5 +1,7 @@
 package fr.skogrine.utilitycm;
 
+import fr.skogrine.utilitycm.jfr.EventBusDispatchEvent;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -39,8 +41,19 @@ public class EventBus {
     public void publish(String eventType, Object data) {
         List<Consumer<Object>> eventSubscribers = subscribers.get(eventType);
         if (eventSubscribers != null) {
-            for (Consumer<Object> subscriber : eventSubscribers) {
-                subscriber.accept(data);
+            EventBusDispatchEvent event = new EventBusDispatchEvent();
+            event.begin();
+            try {
+                for (Consumer<Object> subscriber : eventSubscribers) {
+                    subscriber.accept(data);
+                }
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.eventType = eventType;
+                    event.subscribers = eventSubscribers.size();
+                    event.commit();
+                }
             }
         }
     }
@@ -0,0 +1,136 @@
+package fr.skogrine.utilitycm;
+
+import java.util.Objects;
+
+/**
+ * A Count-Min sketch estimating how often an element was seen, used by {@link WindowTinyLfuPolicy} to decide
+ * whether a new entry deserves to replace an existing one.
+ *
+ * <p>Each element is mapped to four 4-bit counters packed sixteen per {@code long}, so the sketch needs
+ * about 8 bytes per cached entry. Counters saturate at 15. Once the number of recorded increments reaches
+ * ten times the table size, every counter is halved so that the frequencies favour recent history.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ *
+ * @param <E> the type of elements counted
+ */
+final class FrequencySketch<E> {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    /** Clears the highest bit of every counter after a right shift, halving all of them at once. */
+    private static final long RESET_MASK = 0x7777777777777777L;
+    /** Selects the lowest bit of every counter. */
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAXIMUM_LENGTH = 1 << 26;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int size;
+
+    /**
+     * Constructs a sketch sized for the given number of distinct elements.
+     *
+     * @param maximumSize the maximum number of entries of the cache using the sketch
+     */
+    FrequencySketch(long maximumSize) {
+        allocate(maximumSize);
+    }
+
+    /**
+     * Grows the sketch if it is too small for the given number of distinct elements. Growing discards the
+     * recorded frequencies, so the table is doubled ahead of need to keep this rare.
+     *
+     * @param maximumSize the number of entries the sketch should be able to tell apart
+     */
+    void ensureCapacity(long maximumSize) {
+        if (maximumSize > table.length && table.length < MAXIMUM_LENGTH) {
+            allocate(2 * maximumSize);
+        }
+    }
+
+    private void allocate(long maximumSize) {
+        int length = (int) Math.min(MAXIMUM_LENGTH, Math.max(8, ceilingPowerOfTwo(maximumSize)));
+        this.table = new long[length];
+        this.tableMask = length - 1;
+        this.sampleSize = 10 * length;
+        this.size = 0;
+    }
+
+    /**
+     * Gets the estimated number of occurrences of an element, capped at 15.
+     *
+     * @param element the element
+     * @return the estimated frequency
+     */
+    int frequency(E element) {
+        int hash = spread(Objects.hashCode(element));
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an occurrence of an element, aging all counters when the sample period is reached.
+     *
+     * @param element the element
+     */
+    void increment(E element) {
+        int hash = spread(Objects.hashCode(element));
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves every counter. Odd counters lose a fraction that is subtracted from the sample size.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (odd >>> 2)) >>> 1;
+    }
+
+    private int indexOf(int hash, int depth) {
+        long h = (hash + SEEDS[depth]) * SEEDS[depth];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        h ^= h >>> 11;
+        h *= 0xac4c1b51;
+        return h ^ (h >>> 15);
+    }
+
+    private static long ceilingPowerOfTwo(long value) {
+        return value <= 1 ? 1 : Long.highestOneBit(value - 1) << 1;
+    }
+}
@@ -0,0 +1,422 @@
+package fr.skogrine.utilitycm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram records the distribution of non-negative values, typically latencies in nanoseconds, to answer
+ * percentile queries such as the 99th or 99.9th percentile.
+ *
+ * <p>Values are counted in log-linear buckets, as in HdrHistogram: every power of two is divided into
+ * 2<sup>precisionBits - 1</sup> buckets of equal width, and values below 2<sup>precisionBits</sup> get a bucket
+ * each. A bucket is therefore never wider than 2<sup>1 - precisionBits</sup> times its values, which bounds the
+ * relative error of percentiles whatever their magnitude, from nanoseconds to hours, with a fixed number of
+ * buckets: about 3700 for the default precision of 7 bits, a relative error below 1.6%.</p>
+ *
+ * <p>Recording is lock-free and allocation-free: it increments one slot of an {@link AtomicLongArray}, so
+ * threads recording different values do not contend on the same counter. Queries work on a {@link Snapshot},
+ * an immutable copy that can be merged with the snapshots of other histograms of the same precision.</p>
+ *
+ * <p>Example usage:</p>
+ * <pre>{@code
+ * Histogram histogram = new Histogram();
+ * long start = System.nanoTime();
+ * handleRequest();
+ * histogram.record(System.nanoTime() - start);
+ *
+ * Histogram.Snapshot snapshot = histogram.snapshot();
+ * System.out.println("p99: " + snapshot.getP99() + " ns, max: " + snapshot.getMax() + " ns");
+ * }</pre>
+ */
+public class Histogram {
+
+    /** The default number of bits of precision, for a relative error below 1.6%. */
+    public static final int DEFAULT_PRECISION_BITS = 7;
+
+    private final int precisionBits;
+    private final AtomicLongArray counts;
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+
+    /**
+     * Constructs a Histogram with the default precision.
+     */
+    public Histogram() {
+        this(DEFAULT_PRECISION_BITS);
+    }
+
+    /**
+     * Constructs a Histogram.
+     *
+     * @param precisionBits the number of significant bits kept per value, between 1 and 16
+     */
+    public Histogram(int precisionBits) {
+        if (precisionBits < 1 || precisionBits > 16) {
+            throw new IllegalArgumentException("Precision bits must be between 1 and 16");
+        }
+        this.precisionBits = precisionBits;
+        this.counts = new AtomicLongArray(bucketCount(precisionBits));
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value the value, such as a duration in nanoseconds
+     * @throws IllegalArgumentException if the value is negative
+     */
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Value must not be negative: " + value);
+        }
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            // Retry with the maximum recorded concurrently
+        }
+        long currentMin;
+        while (value < (currentMin = min.get()) && !min.compareAndSet(currentMin, value)) {
+            // Retry with the minimum recorded concurrently
+        }
+        // Counted last, so that readers seeing the count also see the value within the minimum and maximum
+        sum.add(value);
+        counts.getAndIncrement(bucketIndex(value, precisionBits));
+    }
+
+    /**
+     * Records the time elapsed since an instant read from {@link System#nanoTime()}.
+     *
+     * @param startNanos the start instant
+     */
+    public void recordNanosSince(long startNanos) {
+        record(Math.max(0, System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Gets the number of bits of precision.
+     *
+     * @return the precision bits
+     */
+    public int getPrecisionBits() {
+        return precisionBits;
+    }
+
+    /**
+     * Takes a snapshot of the recorded values. Values recorded concurrently may be partially included.
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[counts.length()];
+        long count = 0;
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(precisionBits, copy, count, sum.sum(), count == 0 ? 0 : min.get(), max.get());
+    }
+
+    /**
+     * Computes percentiles straight from the live counters, for exporters that read often and should not copy
+     * the buckets every time. Values recorded concurrently may be partially included.
+     *
+     * @param percentiles the percentages, in increasing order
+     * @param values receives the value at each percentile, as {@link Snapshot#getValueAtPercentile(double)}
+     * @return the number of values counted
+     */
+    long readPercentiles(double[] percentiles, long[] values) {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        long maxValue = max.get();
+        long minValue = count == 0 ? 0 : min.get();
+        int next = 0;
+        long seen = 0;
+        for (int i = 0; i < counts.length() && next < percentiles.length && count > 0; i++) {
+            seen += counts.get(i);
+            while (next < percentiles.length && seen >= rank(percentiles[next], count)) {
+                values[next++] = clamp(highestValue(i, precisionBits), minValue, maxValue);
+            }
+        }
+        while (next < percentiles.length) {
+            values[next++] = count == 0 ? 0 : maxValue;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the sum of the recorded values.
+     */
+    long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Adds the live counters to the given totals, for histograms aggregating others of the same precision.
+     *
+     * @return the number of values added
+     */
+    long addCountsTo(long[] totals) {
+        long count = 0;
+        for (int i = 0; i < totals.length; i++) {
+            long bucket = counts.get(i);
+            totals[i] += bucket;
+            count += bucket;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the smallest recorded value, {@link Long#MAX_VALUE} if none.
+     */
+    long getMin() {
+        return min.get();
+    }
+
+    /**
+     * Gets the largest recorded value, 0 if none.
+     */
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Forgets the recorded values. Values recorded concurrently may be partially kept.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        sum.reset();
+        max.set(0);
+        min.set(Long.MAX_VALUE);
+    }
+
+    static int bucketCount(int precisionBits) {
+        return bucketIndex(Long.MAX_VALUE, precisionBits) + 1;
+    }
+
+    /**
+     * Values below 2<sup>p</sup> map to themselves. Larger values keep their p most significant bits: a value
+     * whose highest bit is bit {@code p - 1 + shift} lands at {@code shift * 2^(p-1) + (value >>> shift)}, which
+     * continues right after the buckets of the previous power of two.
+     */
+    static int bucketIndex(long value, int precisionBits) {
+        int shift = Long.SIZE - precisionBits - Long.numberOfLeadingZeros(value);
+        if (shift <= 0) {
+            return (int) value;
+        }
+        return (shift << (precisionBits - 1)) + (int) (value >>> shift);
+    }
+
+    /**
+     * Gets the rank of the value at a percentile, counting from 1.
+     */
+    static long rank(double percentile, long count) {
+        return Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    }
+
+    /**
+     * Caps a bucket bound by the exact minimum and maximum, unless a concurrent {@link #reset()} left them
+     * inconsistent.
+     */
+    static long clamp(long value, long min, long max) {
+        return min <= max ? Math.max(min, Math.min(max, value)) : value;
+    }
+
+    /**
+     * Gets the highest value counted in a bucket.
+     */
+    static long highestValue(int index, int precisionBits) {
+        if (index < 1 << precisionBits) {
+            return index;
+        }
+        int shift = (index >>> (precisionBits - 1)) - 1;
+        long top = index - ((long) shift << (precisionBits - 1));
+        return ((top + 1) << shift) - 1;
+    }
+
+    /**
+     * Gets the lowest value counted in a bucket.
+     */
+    static long lowestValue(int index, int precisionBits) {
+        if (index < 1 << precisionBits) {
+            return index;
+        }
+        int shift = (index >>> (precisionBits - 1)) - 1;
+        long top = index - ((long) shift << (precisionBits - 1));
+        return top << shift;
+    }
+
+    /**
+     * An immutable copy of the buckets of a histogram.
+     */
+    public static final class Snapshot {
+        private final int precisionBits;
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long min;
+        private final long max;
+
+        Snapshot(int precisionBits, long[] counts, long count, long sum, long min, long max) {
+            this.precisionBits = precisionBits;
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            if (count > 0) {
+                // The minimum and maximum are read apart from the buckets, so a concurrent record or reset may
+                // have left them behind: fall back to the bounds of the outermost buckets
+                int first = 0;
+                while (first < counts.length - 1 && counts[first] == 0) {
+                    first++;
+                }
+                int last = counts.length - 1;
+                while (last > 0 && counts[last] == 0) {
+                    last--;
+                }
+                if (min > highestValue(first, precisionBits)) {
+                    min = lowestValue(first, precisionBits);
+                }
+                if (max < lowestValue(last, precisionBits)) {
+                    max = highestValue(last, precisionBits);
+                }
+            }
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * Gets the number of recorded values.
+         *
+         * @return the count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Gets the sum of the recorded values.
+         *
+         * @return the sum
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * Gets the mean of the recorded values.
+         *
+         * @return the mean, 0 if no value was recorded
+         */
+        public double getMean() {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        /**
+         * Gets the smallest recorded value, exactly.
+         *
+         * @return the minimum, 0 if no value was recorded
+         */
+        public long getMin() {
+            return min;
+        }
+
+        /**
+         * Gets the largest recorded value, exactly.
+         *
+         * @return the maximum, 0 if no value was recorded
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Gets the value below or at which the given percentage of the recorded values lie.
+         *
+         * @param percentile the percentage, between 0 and 100
+         * @return the highest value of the bucket holding the percentile, capped by the maximum, 0 if no value
+         *         was recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("Percentile must be between 0 and 100");
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = rank(percentile, count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return clamp(highestValue(i, precisionBits), min, max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Gets the median.
+         *
+         * @return the 50th percentile
+         */
+        public long getP50() {
+            return getValueAtPercentile(50);
+        }
+
+        /**
+         * Gets the 90th percentile.
+         *
+         * @return the 90th percentile
+         */
+        public long getP90() {
+            return getValueAtPercentile(90);
+        }
+
+        /**
+         * Gets the 99th percentile.
+         *
+         * @return the 99th percentile
+         */
+        public long getP99() {
+            return getValueAtPercentile(99);
+        }
+
+        /**
+         * Gets the 99.9th percentile.
+         *
+         * @return the 99.9th percentile
+         */
+        public long getP999() {
+            return getValueAtPercentile(99.9);
+        }
+
+        /**
+         * Combines this snapshot with the snapshot of another histogram, as if both had recorded into one.
+         *
+         * @param other the other snapshot, of the same precision
+         * @return the merged snapshot
+         */
+        public Snapshot merge(Snapshot other) {
+            if (other.precisionBits != precisionBits) {
+                throw new IllegalArgumentException("Cannot merge histograms of different precisions");
+            }
+            long[] merged = Arrays.copyOf(counts, counts.length);
+            for (int i = 0; i < merged.length; i++) {
+                merged[i] += other.counts[i];
+            }
+            long mergedMin = count == 0 ? other.min : other.count == 0 ? min : Math.min(min, other.min);
+            return new Snapshot(precisionBits, merged, count + other.count, sum + other.sum, mergedMin,
+                    Math.max(max, other.max));
+        }
+
+        @Override
+        public String toString() {
+            return "Histogram.Snapshot{count=" + count + ", mean=" + getMean() + ", p50=" + getP50() + ", p90="
+                    + getP90() + ", p99=" + getP99() + ", p999=" + getP999() + ", max=" + max + "}";
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package fr.skogrine.utilitycm;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * KeyedRateLimiter applies a separate token bucket limit to every key, such as an API key or a tenant, with the
+ * semantics of {@link RateLimiter#tokenBucket(int, long, TimeUnit, int)}, and scales to tens of millions of keys.
+ *
+ * <p>No object is created per key. Keys are reduced to a 64-bit fingerprint and their bucket is packed into a
+ * single long, both stored in primitive arrays forming open-addressing hash tables. The tables are split into
+ * stripes so that growing one only pauses the keys of that stripe. {@link #tryAcquire(long)} never locks: it
+ * finds or claims the slot of its key and updates the bucket with a compare-and-set, about 32 bytes of memory
+ * per key.</p>
+ *
+ * <p>A key seen for the first time starts with a full bucket, like a key whose bucket refilled completely. A key
+ * whose bucket is full is therefore idle and can be forgotten without changing any decision; such keys are
+ * evicted whenever a stripe is rebuilt, so the memory follows the number of active keys. When more than
+ * {@code maximumKeys} keys are active at once, the keys closest to a full bucket are reset to a full bucket to
+ * stay within bounds, which only lets a few extra permits through.</p>
+ *
+ * <p>Two keys with the same fingerprint share a bucket; with 64-bit fingerprints this is not expected to happen
+ * before billions of keys. Distinct {@code long} keys never collide.</p>
+ *
+ * <p>Example usage:</p>
+ * <pre>{@code
+ * KeyedRateLimiter limiter = new KeyedRateLimiter(100, 1, TimeUnit.SECONDS, 20, 10_000_000);
+ * if (!limiter.tryAcquire(request.getApiKey())) {
+ *     return tooManyRequests();
+ * }
+ * }</pre>
+ */
+public class KeyedRateLimiter {
+
+    /** Marks an unused slot. */
+    private static final long EMPTY = 0;
+    /** Marks an unused slot of a table being rebuilt, where no key may be inserted anymore. */
+    private static final long MOVED_KEY = Long.MIN_VALUE;
+    /** Marks the bucket of a key copied to a rebuilt table; the missing token count of real states is lower. */
+    private static final long MOVED_STATE = -1;
+    private static final int MIN_TABLE_LENGTH = 16;
+
+    private final RateLimiter.TokenBucket bucket;
+    private final Stripe[] stripes;
+    private final int stripeShift;
+    private final int maximumKeysPerStripe;
+    private LongSupplier ticker = System::nanoTime;
+    private long origin = ticker.getAsLong();
+
+    /**
+     * Constructs a KeyedRateLimiter.
+     *
+     * @param permits the number of permits added per period to the bucket of every key
+     * @param period the period
+     * @param unit the time unit of the period
+     * @param burstSize the maximum number of permits saved up by a key, less than 1048575
+     * @param maximumKeys the number of keys that can be tracked at once
+     */
+    public KeyedRateLimiter(int permits, long period, TimeUnit unit, int burstSize, int maximumKeys) {
+        if (burstSize >= RateLimiter.TokenBucket.MAX_BURST_SIZE) {
+            throw new IllegalArgumentException("Burst size must be less than " + RateLimiter.TokenBucket.MAX_BURST_SIZE);
+        }
+        if (maximumKeys <= 0) {
+            throw new IllegalArgumentException("Maximum keys must be positive");
+        }
+        this.bucket = new RateLimiter.TokenBucket(permits, unit.toNanos(period), burstSize);
+        int stripeCount = Math.min(ceilingPowerOfTwo(4 * Runtime.getRuntime().availableProcessors()),
+                ceilingPowerOfTwo(Math.max(1, maximumKeys / 1024)));
+        this.stripes = new Stripe[stripeCount];
+        this.stripeShift = Long.SIZE - Integer.numberOfTrailingZeros(stripeCount);
+        this.maximumKeysPerStripe = Math.max(1, (maximumKeys + stripeCount - 1) / stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(new Table(MIN_TABLE_LENGTH));
+        }
+    }
+
+    /**
+     * Attempts to acquire a permit for a key.
+     *
+     * @param key the key
+     * @return true if the action is allowed, false if the rate limit of the key is exceeded
+     */
+    public boolean tryAcquire(long key) {
+        return tryAcquire(key, 1);
+    }
+
+    /**
+     * Attempts to acquire several permits at once for a key. Either all of them are granted or none is.
+     *
+     * @param key the key
+     * @param permits the number of permits
+     * @return true if the permits were granted, false if the rate limit of the key is exceeded
+     */
+    public boolean tryAcquire(long key, int permits) {
+        return acquire(fingerprint(key), permits);
+    }
+
+    /**
+     * Attempts to acquire a permit for a key.
+     *
+     * @param key the key
+     * @return true if the action is allowed, false if the rate limit of the key is exceeded
+     */
+    public boolean tryAcquire(CharSequence key) {
+        return tryAcquire(key, 1);
+    }
+
+    /**
+     * Attempts to acquire several permits at once for a key. Either all of them are granted or none is.
+     *
+     * @param key the key
+     * @param permits the number of permits
+     * @return true if the permits were granted, false if the rate limit of the key is exceeded
+     */
+    public boolean tryAcquire(CharSequence key, int permits) {
+        Objects.requireNonNull(key, "key");
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        return acquire(fingerprint(hash ^ key.length()), permits);
+    }
+
+    /**
+     * Gets the number of keys currently tracked, including idle keys not evicted yet.
+     *
+     * @return the number of keys
+     */
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.table.size.get();
+        }
+        return size;
+    }
+
+    /**
+     * Evicts the idle keys of every stripe now rather than when the stripes need room.
+     */
+    public void cleanUp() {
+        for (Stripe stripe : stripes) {
+            rebuild(stripe, stripe.table);
+        }
+    }
+
+    /**
+     * Sets the time source, in nanoseconds, and forgets every key. Visible for testing.
+     */
+    void setTicker(LongSupplier ticker) {
+        this.ticker = Objects.requireNonNull(ticker, "ticker");
+        this.origin = ticker.getAsLong();
+        for (Stripe stripe : stripes) {
+            stripe.table = new Table(MIN_TABLE_LENGTH);
+        }
+    }
+
+    private boolean acquire(long fingerprint, int permits) {
+        bucket.checkPermits(permits);
+        long tick = bucket.tick(ticker.getAsLong() - origin);
+        Stripe stripe = stripes[(int) (fingerprint >>> stripeShift) & (stripes.length - 1)];
+        for (;;) {
+            Table table = stripe.table;
+            int result = table.tryAcquire(fingerprint, permits, tick);
+            if (result == Table.GRANTED) {
+                return true;
+            }
+            if (result == Table.DENIED) {
+                return false;
+            }
+            if (result == Table.NO_ROOM) {
+                rebuild(stripe, table);
+            } else {
+                // The table is being rebuilt by another thread: wait for the new one
+                stripe.lock.lock();
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replaces the table of a stripe by a new one holding only its active keys. The old table is frozen slot by
+     * slot, so that threads still using it notice and retry on the new table.
+     */
+    private void rebuild(Stripe stripe, Table table) {
+        stripe.lock.lock();
+        try {
+            if (stripe.table != table) {
+                return;
+            }
+            long tick = bucket.tick(ticker.getAsLong() - origin);
+            int length = table.keys.length();
+            long[] keys = new long[length];
+            long[] states = new long[length];
+            int count = 0;
+            for (int i = 0; i < length; i++) {
+                long key = table.keys.get(i);
+                while (key == EMPTY && !table.keys.compareAndSet(i, EMPTY, MOVED_KEY)) {
+                    key = table.keys.get(i);
+                }
+                if (key == EMPTY) {
+                    continue;
+                }
+                long state = table.states.getAndSet(i, MOVED_STATE);
+                if (!bucket.isFull(state, tick)) {
+                    keys[count] = key;
+                    states[count] = state;
+                    count++;
+                }
+            }
+
+            int target = count;
+            if (count > maximumKeysPerStripe) {
+                target = keepMostThrottled(keys, states, count, Math.max(1, maximumKeysPerStripe / 2), tick);
+            }
+            int newLength = Math.max(MIN_TABLE_LENGTH, ceilingPowerOfTwo(2 * Math.max(target, 1)));
+            Table rebuilt = new Table(newLength);
+            for (int i = 0; i < target; i++) {
+                rebuilt.insert(keys[i], states[i]);
+            }
+            stripe.table = rebuilt;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the keys with the fewest available tokens to the front of the arrays.
+     *
+     * @return the number of keys kept
+     */
+    private int keepMostThrottled(long[] keys, long[] states, int count, int kept, long tick) {
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = bucket.available(states[i], tick) << 32 | i;
+        }
+        Arrays.sort(order);
+        long[] keptKeys = new long[kept];
+        long[] keptStates = new long[kept];
+        for (int i = 0; i < kept; i++) {
+            int index = (int) order[i];
+            keptKeys[i] = keys[index];
+            keptStates[i] = states[index];
+        }
+        System.arraycopy(keptKeys, 0, keys, 0, kept);
+        System.arraycopy(keptStates, 0, states, 0, kept);
+        return kept;
+    }
+
+    /**
+     * Mixes the bits of a key with a bijection, so that distinct keys get distinct fingerprints, and keeps the
+     * fingerprint clear of the slot markers.
+     */
+    private static long fingerprint(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == EMPTY || h == MOVED_KEY ? 1 : h;
+    }
+
+    private static int ceilingPowerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    /**
+     * A part of the key space with its own table, replaced as a whole when it needs to grow or shrink.
+     */
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        volatile Table table;
+
+        Stripe(Table table) {
+            this.table = table;
+        }
+    }
+
+    /**
+     * An open-addressing table with linear probing, mapping key fingerprints to packed token buckets. Slots are
+     * only ever claimed, never released: removing keys means building a new table.
+     */
+    private final class Table {
+        static final int GRANTED = 0;
+        static final int DENIED = 1;
+        static final int NO_ROOM = 2;
+        static final int MOVED = 3;
+
+        final AtomicLongArray keys;
+        final AtomicLongArray states;
+        final AtomicInteger size = new AtomicInteger();
+        final int mask;
+        final int maxSize;
+
+        Table(int length) {
+            this.keys = new AtomicLongArray(length);
+            this.states = new AtomicLongArray(length);
+            this.mask = length - 1;
+            this.maxSize = length / 4 * 3;
+        }
+
+        int tryAcquire(long fingerprint, int permits, long tick) {
+            int index = (int) fingerprint & mask;
+            for (int probe = 0; probe <= mask; probe++, index = (index + 1) & mask) {
+                long key = keys.get(index);
+                if (key == EMPTY) {
+                    if (size.get() >= maxSize) {
+                        return NO_ROOM;
+                    }
+                    if (!keys.compareAndSet(index, EMPTY, fingerprint)) {
+                        key = keys.get(index);
+                    } else {
+                        size.incrementAndGet();
+                        key = fingerprint;
+                    }
+                }
+                if (key == MOVED_KEY) {
+                    return MOVED;
+                }
+                if (key == fingerprint) {
+                    return update(index, permits, tick);
+                }
+            }
+            return NO_ROOM;
+        }
+
+        private int update(int index, int permits, long tick) {
+            for (;;) {
+                long state = states.get(index);
+                if (state == MOVED_STATE) {
+                    return MOVED;
+                }
+                long tokens = bucket.available(state, tick);
+                if (tokens < permits) {
+                    return DENIED;
+                }
+                if (states.compareAndSet(index, state, bucket.acquire(state, tokens, permits, tick))) {
+                    return GRANTED;
+                }
+            }
+        }
+
+        /**
+         * Inserts a key known to be absent, while the table is not shared yet.
+         */
+        void insert(long fingerprint, long state) {
+            int index = (int) fingerprint & mask;
+            while (keys.get(index) != EMPTY) {
+                index = (index + 1) & mask;
+            }
+            keys.set(index, fingerprint);
+            states.set(index, state);
+            size.incrementAndGet();
+        }
+    }
+}
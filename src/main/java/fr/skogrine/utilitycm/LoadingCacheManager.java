@@ -0,0 +1,479 @@
+package fr.skogrine.utilitycm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * LoadingCacheManager is a thread-safe cache that computes missing values on demand, built on top of
+ * {@link CacheManager} and sharing its eviction and expiration options.
+ *
+ * <p>Concurrent misses on the same key are coalesced: the first thread runs the loader while the others wait for
+ * the same in-flight {@link CompletableFuture}, so a hot key that expires is loaded once instead of once per
+ * thread. {@link #getAll(Iterable, Function)} batches all the keys that miss into a single call of a bulk loader.
+ * Loaders run outside of the cache lock.</p>
+ *
+ * <p>With {@link #setRefreshAfterWrite(long, TimeUnit)}, an entry older than the refresh duration is still served
+ * as is, while a new value is loaded in the background and replaces it once ready. Readers never block on a
+ * refresh, and a failed refresh keeps the stale value so the next read tries again.</p>
+ *
+ * <p>Example usage:</p>
+ * <pre>{@code
+ * LoadingCacheManager<String, User> users = new LoadingCacheManager<String, User>(10_000)
+ *     .setRefreshAfterWrite(1, TimeUnit.MINUTES);
+ * User user = users.get("42", id -> repository.findUser(id));
+ * Map<String, User> team = users.getAll(List.of("1", "2", "3"), ids -> repository.findUsers(ids));
+ * }</pre>
+ *
+ * @param <K> key
+ * @param <V> value
+ */
+public class LoadingCacheManager<K, V> {
+
+    /** Marks a disabled refresh duration. */
+    private static final long NO_REFRESH = -1;
+
+    private final CacheManager<K, Loaded<V>> cache;
+    /** The loads and refreshes in progress, guarded by the cache lock. */
+    private final Map<K, CompletableFuture<V>> inFlight = new HashMap<>();
+    private long refreshAfterWriteNanos = NO_REFRESH;
+    private Executor refreshExecutor = ForkJoinPool.commonPool();
+    private LongSupplier ticker = System::nanoTime;
+
+    /**
+     * Constructs a LoadingCacheManager holding at most the given number of entries, evicted in LRU order.
+     *
+     * @param capacity the maximum number of entries that the cache can hold
+     */
+    public LoadingCacheManager(int capacity) {
+        this(capacity, CacheManager.EvictionPolicy.LRU);
+    }
+
+    /**
+     * Constructs a LoadingCacheManager holding at most the given number of entries.
+     *
+     * @param capacity the maximum number of entries that the cache can hold
+     * @param evictionPolicy the strategy used to choose the entry to evict
+     */
+    public LoadingCacheManager(int capacity, CacheManager.EvictionPolicy evictionPolicy) {
+        this.cache = new CacheManager<>(capacity, evictionPolicy);
+    }
+
+    /**
+     * Constructs a LoadingCacheManager bounded by the total weight of its entries.
+     *
+     * @param maximumWeight the maximum total weight of the entries
+     * @param weigher computes the weight of an entry
+     * @param evictionPolicy the strategy used to choose the entries to evict
+     */
+    public LoadingCacheManager(long maximumWeight, CacheManager.Weigher<? super K, ? super V> weigher,
+                               CacheManager.EvictionPolicy evictionPolicy) {
+        Objects.requireNonNull(weigher, "weigher");
+        this.cache = new CacheManager<>(maximumWeight, (key, loaded) -> weigher.weigh(key, loaded.value),
+                evictionPolicy);
+    }
+
+    /**
+     * Makes entries expire once the given duration has elapsed since they were loaded or put.
+     *
+     * @param duration the duration, or a negative value to disable this expiration
+     * @param unit the time unit of the duration
+     * @return this LoadingCacheManager
+     * @see CacheManager#setExpireAfterWrite(long, TimeUnit)
+     */
+    public LoadingCacheManager<K, V> setExpireAfterWrite(long duration, TimeUnit unit) {
+        synchronized (cache) {
+            cache.setExpireAfterWrite(duration, unit);
+        }
+        return this;
+    }
+
+    /**
+     * Makes entries expire once the given duration has elapsed since they were last read or written.
+     *
+     * @param duration the duration, or a negative value to disable this expiration
+     * @param unit the time unit of the duration
+     * @return this LoadingCacheManager
+     * @see CacheManager#setExpireAfterAccess(long, TimeUnit)
+     */
+    public LoadingCacheManager<K, V> setExpireAfterAccess(long duration, TimeUnit unit) {
+        synchronized (cache) {
+            cache.setExpireAfterAccess(duration, unit);
+        }
+        return this;
+    }
+
+    /**
+     * Enables or disables the recording of statistics, including the duration of every loader call.
+     *
+     * @param recordStats true to record statistics
+     * @return this LoadingCacheManager
+     * @see CacheManager#setRecordStats(boolean)
+     */
+    public LoadingCacheManager<K, V> setRecordStats(boolean recordStats) {
+        synchronized (cache) {
+            cache.setRecordStats(recordStats);
+        }
+        return this;
+    }
+
+    /**
+     * Gets a snapshot of the statistics. Hits and misses are counted per key; a bulk load counts as a single
+     * load, successful unless it throws an exception or returns no value at all.
+     *
+     * @return the statistics, empty if they are not recorded
+     */
+    public CacheStats getStats() {
+        synchronized (cache) {
+            return cache.getStats();
+        }
+    }
+
+    /**
+     * Makes reads of an entry older than the given duration trigger an asynchronous reload, while the current
+     * value keeps being served. Combined with a longer expire-after-write, hot entries are never missing.
+     *
+     * @param duration the duration, or a negative value to disable refreshing
+     * @param unit the time unit of the duration
+     * @return this LoadingCacheManager
+     */
+    public LoadingCacheManager<K, V> setRefreshAfterWrite(long duration, TimeUnit unit) {
+        synchronized (cache) {
+            this.refreshAfterWriteNanos = duration < 0 ? NO_REFRESH : unit.toNanos(duration);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the executor running the background refreshes. Defaults to the common fork-join pool.
+     *
+     * @param refreshExecutor the executor
+     * @return this LoadingCacheManager
+     */
+    public LoadingCacheManager<K, V> setRefreshExecutor(Executor refreshExecutor) {
+        Objects.requireNonNull(refreshExecutor, "refreshExecutor");
+        synchronized (cache) {
+            this.refreshExecutor = refreshExecutor;
+        }
+        return this;
+    }
+
+    /**
+     * Sets the time source used for refreshing and expiration, in nanoseconds. Visible for testing.
+     */
+    void setTicker(LongSupplier ticker) {
+        synchronized (cache) {
+            this.ticker = Objects.requireNonNull(ticker, "ticker");
+            cache.setTicker(ticker);
+        }
+    }
+
+    /**
+     * Gets the value of a key, loading it if it is missing. If another thread is already loading the key, this
+     * waits for its result instead of loading it again. A null value returned by the loader is not cached.
+     *
+     * @param key the key
+     * @param loader computes the value of a missing key; it must not load the same key from this cache
+     * @return the value, or null if the loader returned null
+     * @throws RuntimeException the exception thrown by the loader, to every thread waiting for the load
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        Objects.requireNonNull(loader, "loader");
+        Loaded<V> loaded;
+        CompletableFuture<V> future;
+        boolean owner = false;
+        synchronized (cache) {
+            loaded = cache.get(key);
+            if (loaded != null) {
+                if (refreshAfterWriteNanos == NO_REFRESH || !needsRefresh(key, loaded, ticker.getAsLong())) {
+                    return loaded.value;
+                }
+                future = register(key);
+            } else {
+                future = inFlight.get(key);
+                if (future == null) {
+                    future = register(key);
+                    owner = true;
+                }
+            }
+        }
+
+        Function<Set<K>, Map<K, V>> bulkLoader = keys -> singletonResult(key, loader.apply(key));
+        if (loaded != null) {
+            refreshAsync(Collections.singletonMap(key, future), bulkLoader);
+            return loaded.value;
+        }
+        if (owner) {
+            load(Collections.singletonMap(key, future), bulkLoader);
+        }
+        return join(future);
+    }
+
+    /**
+     * Gets the values of several keys, loading all the missing ones with a single call of the bulk loader. Keys
+     * that another thread is already loading are not passed to the bulk loader; their loads are awaited instead.
+     *
+     * @param keys the keys
+     * @param bulkLoader computes the values of the missing keys; keys absent from its result have no value
+     * @return the keys that have a value, in iteration order, mapped to their value
+     * @throws RuntimeException the exception thrown by the bulk loader
+     */
+    public Map<K, V> getAll(Iterable<? extends K> keys,
+                            Function<? super Set<K>, ? extends Map<? extends K, ? extends V>> bulkLoader) {
+        Objects.requireNonNull(bulkLoader, "bulkLoader");
+        // The keys are iterated twice, which an iterable such as a stream's may not support
+        List<K> keyList = new ArrayList<>();
+        keys.forEach(keyList::add);
+        Map<K, V> result = new LinkedHashMap<>();
+        Map<K, CompletableFuture<V>> pending = new LinkedHashMap<>();
+        Map<K, CompletableFuture<V>> owned = new LinkedHashMap<>();
+        Map<K, CompletableFuture<V>> refreshes = null;
+        synchronized (cache) {
+            long now = ticker.getAsLong();
+            for (K key : keyList) {
+                if (result.containsKey(key) || pending.containsKey(key)) {
+                    continue;
+                }
+                Loaded<V> loaded = cache.get(key);
+                if (loaded != null) {
+                    result.put(key, loaded.value);
+                    if (needsRefresh(key, loaded, now)) {
+                        if (refreshes == null) {
+                            refreshes = new LinkedHashMap<>();
+                        }
+                        refreshes.put(key, register(key));
+                    }
+                    continue;
+                }
+                CompletableFuture<V> future = inFlight.get(key);
+                if (future == null) {
+                    future = register(key);
+                    owned.put(key, future);
+                }
+                pending.put(key, future);
+            }
+        }
+
+        if (refreshes != null) {
+            refreshAsync(refreshes, bulkLoader);
+        }
+        if (!owned.isEmpty()) {
+            load(owned, bulkLoader);
+        }
+        for (Map.Entry<K, CompletableFuture<V>> entry : pending.entrySet()) {
+            V value = join(entry.getValue());
+            if (value != null) {
+                result.put(entry.getKey(), value);
+            }
+        }
+        if (result.size() > 1 && !pending.isEmpty()) {
+            // Restore the iteration order of the keys, misses were appended after the hits
+            Map<K, V> ordered = new LinkedHashMap<>();
+            for (K key : keyList) {
+                if (result.containsKey(key)) {
+                    ordered.put(key, result.get(key));
+                }
+            }
+            return ordered;
+        }
+        return result;
+    }
+
+    /**
+     * Gets the value of a key without loading it.
+     *
+     * @param key the key
+     * @return the value, or null if the key has no value in the cache
+     */
+    public V getIfPresent(Object key) {
+        synchronized (cache) {
+            Loaded<V> loaded = cache.get(key);
+            return loaded == null ? null : loaded.value;
+        }
+    }
+
+    /**
+     * Puts a value into the cache. A load of the key in progress is not cached when it completes.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the previous value associated with the key, or null if there was no mapping
+     */
+    public V put(K key, V value) {
+        Objects.requireNonNull(value, "value");
+        synchronized (cache) {
+            inFlight.remove(key);
+            Loaded<V> previous = cache.put(key, new Loaded<>(value, ticker.getAsLong()));
+            return previous == null ? null : previous.value;
+        }
+    }
+
+    /**
+     * Removes the value of a key. A load of the key in progress is not cached when it completes.
+     *
+     * @param key the key
+     * @return the value that was associated with the key, or null if there was no mapping
+     */
+    public V remove(Object key) {
+        synchronized (cache) {
+            inFlight.remove(key);
+            Loaded<V> previous = cache.remove(key);
+            return previous == null ? null : previous.value;
+        }
+    }
+
+    /**
+     * Removes every value. The loads in progress are not cached when they complete.
+     */
+    public void clear() {
+        synchronized (cache) {
+            inFlight.clear();
+            cache.clear();
+        }
+    }
+
+    /**
+     * Gets the number of values in the cache.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private boolean needsRefresh(K key, Loaded<V> loaded, long now) {
+        return refreshAfterWriteNanos != NO_REFRESH && now - loaded.writeTime >= refreshAfterWriteNanos
+                && !inFlight.containsKey(key);
+    }
+
+    private CompletableFuture<V> register(K key) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        inFlight.put(key, future);
+        return future;
+    }
+
+    private void refreshAsync(Map<K, CompletableFuture<V>> refreshes,
+                              Function<? super Set<K>, ? extends Map<? extends K, ? extends V>> bulkLoader) {
+        Runnable refresh = () -> {
+            try {
+                load(refreshes, bulkLoader);
+            } catch (RuntimeException | Error e) {
+                // The stale values stay in the cache and the next read retries
+            }
+        };
+        try {
+            refreshExecutor.execute(refresh);
+        } catch (RejectedExecutionException e) {
+            fail(refreshes, e);
+        }
+    }
+
+    /**
+     * Runs the bulk loader for keys registered as in flight by the calling thread, caches the results and
+     * completes the futures. A key removed from the in-flight map meanwhile was invalidated, so its result is
+     * handed to the waiting threads but not cached.
+     */
+    private void load(Map<K, CompletableFuture<V>> owned,
+                      Function<? super Set<K>, ? extends Map<? extends K, ? extends V>> bulkLoader) {
+        StatsCounter counter;
+        synchronized (cache) {
+            counter = cache.getStatsCounter();
+        }
+        long start = counter == null ? 0 : System.nanoTime();
+        Map<? extends K, ? extends V> values;
+        try {
+            values = bulkLoader.apply(Collections.unmodifiableSet(new LinkedHashSet<>(owned.keySet())));
+        } catch (RuntimeException | Error e) {
+            if (counter != null) {
+                counter.recordLoadFailure(System.nanoTime() - start);
+            }
+            fail(owned, e);
+            throw e;
+        }
+        if (counter != null) {
+            if (values == null || values.isEmpty()) {
+                counter.recordLoadFailure(System.nanoTime() - start);
+            } else {
+                counter.recordLoadSuccess(System.nanoTime() - start);
+            }
+        }
+        List<V> results = new ArrayList<>(owned.size());
+        synchronized (cache) {
+            long now = ticker.getAsLong();
+            for (Map.Entry<K, CompletableFuture<V>> entry : owned.entrySet()) {
+                V value = values == null ? null : values.get(entry.getKey());
+                results.add(value);
+                if (inFlight.get(entry.getKey()) != entry.getValue()) {
+                    continue;
+                }
+                inFlight.remove(entry.getKey());
+                if (value != null) {
+                    cache.put(entry.getKey(), new Loaded<>(value, now));
+                }
+            }
+        }
+        int i = 0;
+        for (CompletableFuture<V> future : owned.values()) {
+            future.complete(results.get(i++));
+        }
+    }
+
+    private void fail(Map<K, CompletableFuture<V>> owned, Throwable failure) {
+        synchronized (cache) {
+            for (Map.Entry<K, CompletableFuture<V>> entry : owned.entrySet()) {
+                inFlight.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        for (CompletableFuture<V> future : owned.values()) {
+            future.completeExceptionally(failure);
+        }
+    }
+
+    private static <V> V join(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static <K, V> Map<K, V> singletonResult(K key, V value) {
+        return value == null ? Collections.emptyMap() : Collections.singletonMap(key, value);
+    }
+
+    /**
+     * A cached value with the time it was loaded.
+     */
+    private static final class Loaded<V> {
+        final V value;
+        final long writeTime;
+
+        Loaded(V value, long writeTime) {
+            this.value = value;
+            this.writeTime = writeTime;
+        }
+    }
+}
@@ -1,8 +1,17 @@
 package fr.skogrine.utilitycm;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.function.Consumer;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 /**
  * MetricsCollector collects and aggregates various performance metrics, such as execution time, memory usage, and throughput, for monitoring and analysis.
@@ -15,18 +24,55 @@ import java.util.function.Consumer;
  * metricsCollector.stop("task1");
  * System.out.println("Task 1 duration: " + metricsCollector.getDuration("task1") + " ms");
  * }</pre>
+ *
+ * <p>Every duration measured with {@link #start(String)} and {@link #stop(String)} is also recorded, in
+ * nanoseconds, into the {@link Histogram} of its metric, which keeps the whole distribution rather than the last
+ * value. Histograms can be fed directly too, which is the way to measure hot paths:</p>
+ * <pre>{@code
+ * Histogram latency = metricsCollector.histogram("db.query");
+ * long start = System.nanoTime();
+ * runQuery();
+ * latency.recordNanosSince(start);
+ * System.out.println("p99: " + metricsCollector.getSnapshot("db.query").getP99() + " ns");
+ * }</pre>
+ *
+ * <p>{@link #start(String)} and {@link #stop(String)} key the running measurements by name, so they cannot time
+ * two concurrent operations of the same metric. A {@link Timer} can: its start time is a primitive token owned
+ * by the caller, and neither starting nor stopping allocates.</p>
+ * <pre>{@code
+ * MetricsCollector.Timer timer = metricsCollector.timer("request");
+ * long token = timer.start();
+ * handleRequest();
+ * timer.stop(token);
+ * }</pre>
+ *
+ * <p>The collector is also a registry of typed metrics, identified by a name and optional tags given as
+ * alternating keys and values: {@link Counter counters}, {@link Gauge gauges} reading a value on demand, and
+ * {@link Meter meters} tracking 1, 5 and 15 minute rates. Looking a metric up builds its identifier and hashes
+ * it, so hot paths keep the returned handle, whose updates touch no map and no string:</p>
+ * <pre>{@code
+ * MetricsCollector.Counter requests = metricsCollector.counter("http.requests", "method", "GET");
+ * MetricsCollector.Meter errors = metricsCollector.meter("http.errors");
+ * metricsCollector.gauge("pool.active", pool::getActiveCount);
+ * requests.increment();
+ * }</pre>
  */
 public class MetricsCollector {
 
     private final Map<String, Long> startTimeMap;
     private final Map<String, Long> durationMap;
+    private final Map<MetricId, Object> metrics;
+    private final Map<MetricId, Timer> timers;
+    private LongSupplier ticker = System::nanoTime;
 
     /**
      * Constructs a MetricsCollector.
      */
     public MetricsCollector() {
-        this.startTimeMap = new HashMap<>();
-        this.durationMap = new HashMap<>();
+        this.startTimeMap = new ConcurrentHashMap<>();
+        this.durationMap = new ConcurrentHashMap<>();
+        this.metrics = new ConcurrentHashMap<>();
+        this.timers = new ConcurrentHashMap<>();
     }
 
     /**
@@ -35,19 +81,24 @@ public class MetricsCollector {
      * @param metricName the name of the metric
      */
     public void start(String metricName) {
-        startTimeMap.put(metricName, System.currentTimeMillis());
+        startTimeMap.put(metricName, System.nanoTime());
     }
 
     /**
-     * Stops the timer for a specific metric and records the duration.
+     * Stops the timer for a specific metric and records the duration. The duration also goes to the histogram of
+     * the metric, unless the name is already registered as another type of metric.
      *
      * @param metricName the name of the metric
      */
     public void stop(String metricName) {
         Long startTime = startTimeMap.remove(metricName);
         if (startTime != null) {
-            long duration = System.currentTimeMillis() - startTime;
+            long duration = System.nanoTime() - startTime;
             durationMap.put(metricName, duration);
+            Object metric = metrics.computeIfAbsent(new MetricId(metricName), key -> new Histogram());
+            if (metric instanceof Histogram) {
+                ((Histogram) metric).record(Math.max(0, duration));
+            }
         }
     }
 
@@ -55,9 +106,462 @@ public class MetricsCollector {
      * Gets the duration of a specific metric.
      *
      * @param metricName the name of the metric
-     * @return the duration in milliseconds, or -1 if the metric has not been recorded
+     * @return the last duration in milliseconds, or -1 if the metric has not been recorded
      */
     public long getDuration(String metricName) {
-        return durationMap.getOrDefault(metricName, -1L);
+        Long duration = durationMap.get(metricName);
+        return duration == null ? -1 : TimeUnit.NANOSECONDS.toMillis(duration);
+    }
+
+    /**
+     * Gets the histogram of a metric, creating it on first use. Keep the returned histogram to record without
+     * looking it up again.
+     *
+     * @param metricName the name of the metric
+     * @param tags the tags, as alternating keys and values
+     * @return the histogram
+     */
+    public Histogram histogram(String metricName, String... tags) {
+        return register(new MetricId(metricName, tags), Histogram.class, Histogram::new);
+    }
+
+    /**
+     * Takes a snapshot of the histogram, or windowed histogram, of a metric.
+     *
+     * @param metricName the name of the metric
+     * @param tags the tags, as alternating keys and values
+     * @return the snapshot, or null if nothing was recorded for the metric
+     */
+    public Histogram.Snapshot getSnapshot(String metricName, String... tags) {
+        Object metric = metrics.get(new MetricId(metricName, tags));
+        if (metric instanceof WindowedHistogram) {
+            return ((WindowedHistogram) metric).snapshot();
+        }
+        return metric instanceof Histogram ? ((Histogram) metric).snapshot() : null;
+    }
+
+    /**
+     * Gets the windowed histogram of a metric, creating it on first use with the given window divided into
+     * {@link WindowedHistogram#DEFAULT_INTERVALS} intervals. Its snapshot only covers recent values, such as the
+     * p99 over the last minute.
+     *
+     * @param metricName the name of the metric
+     * @param window the length of the window, ignored if the histogram already exists
+     * @param unit the time unit of the window
+     * @param tags the tags, as alternating keys and values
+     * @return the windowed histogram
+     */
+    public WindowedHistogram windowedHistogram(String metricName, long window, TimeUnit unit, String... tags) {
+        LongSupplier histogramTicker = ticker;
+        return register(new MetricId(metricName, tags), WindowedHistogram.class,
+                () -> new WindowedHistogram(window, unit, WindowedHistogram.DEFAULT_INTERVALS, histogramTicker));
+    }
+
+    /**
+     * Gets the timer of a metric, creating it on first use. The timer records into the histogram of the metric.
+     * Keep the returned timer to time hot paths without looking it up again.
+     *
+     * @param metricName the name of the metric
+     * @param tags the tags, as alternating keys and values
+     * @return the timer
+     */
+    public Timer timer(String metricName, String... tags) {
+        MetricId id = new MetricId(metricName, tags);
+        Timer timer = timers.get(id);
+        return timer != null ? timer : timers.computeIfAbsent(id,
+                key -> new Timer(register(key, Histogram.class, Histogram::new)));
+    }
+
+    /**
+     * Gets a counter, creating it on first use.
+     *
+     * @param metricName the name of the metric
+     * @param tags the tags, as alternating keys and values
+     * @return the counter
+     */
+    public Counter counter(String metricName, String... tags) {
+        return register(new MetricId(metricName, tags), Counter.class, Counter::new);
+    }
+
+    /**
+     * Registers a gauge, whose value is read from the supplier whenever it is queried. If a gauge is already
+     * registered with the same name and tags, it is returned and the new supplier is ignored.
+     *
+     * @param metricName the name of the metric
+     * @param supplier supplies the current value, such as a queue size
+     * @param tags the tags, as alternating keys and values
+     * @return the gauge
+     */
+    public Gauge gauge(String metricName, DoubleSupplier supplier, String... tags) {
+        Objects.requireNonNull(supplier, "supplier");
+        return register(new MetricId(metricName, tags), Gauge.class, () -> new Gauge(supplier));
+    }
+
+    /**
+     * Gets a meter, creating it on first use.
+     *
+     * @param metricName the name of the metric
+     * @param tags the tags, as alternating keys and values
+     * @return the meter
+     */
+    public Meter meter(String metricName, String... tags) {
+        LongSupplier meterTicker = ticker;
+        return register(new MetricId(metricName, tags), Meter.class, () -> new Meter(meterTicker));
+    }
+
+    /**
+     * Gets every registered metric: {@link Histogram}, {@link WindowedHistogram}, {@link Counter}, {@link Gauge}
+     * and {@link Meter} instances, by identifier.
+     *
+     * @return a read-only live view of the metrics
+     */
+    public Map<MetricId, Object> getMetrics() {
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * Sets the time source of the meters and windowed histograms created afterwards, in nanoseconds. Visible for
+     * testing.
+     */
+    void setTicker(LongSupplier ticker) {
+        this.ticker = Objects.requireNonNull(ticker, "ticker");
+    }
+
+    private <T> T register(MetricId id, Class<T> type, Supplier<T> factory) {
+        Object metric = metrics.get(id);
+        if (metric == null) {
+            metric = metrics.computeIfAbsent(id, key -> factory.get());
+        }
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException(id + " is already registered as a "
+                    + metric.getClass().getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    /**
+     * Times operations into a histogram without allocating. The token returned by {@link #start()} is the start
+     * time, so any number of operations can be timed concurrently with the same timer.
+     */
+    public static final class Timer {
+        private final Histogram histogram;
+
+        Timer(Histogram histogram) {
+            this.histogram = histogram;
+        }
+
+        /**
+         * Starts timing an operation.
+         *
+         * @return the token to pass to {@link #stop(long)}
+         */
+        public long start() {
+            return System.nanoTime();
+        }
+
+        /**
+         * Stops timing an operation and records its duration.
+         *
+         * @param token the token returned by {@link #start()}
+         * @return the duration in nanoseconds
+         */
+        public long stop(long token) {
+            long duration = Math.max(0, System.nanoTime() - token);
+            histogram.record(duration);
+            return duration;
+        }
+
+        /**
+         * Records a duration measured elsewhere.
+         *
+         * @param duration the duration
+         * @param unit the time unit of the duration
+         */
+        public void record(long duration, TimeUnit unit) {
+            histogram.record(Math.max(0, unit.toNanos(duration)));
+        }
+
+        /**
+         * Gets the histogram the durations are recorded into, in nanoseconds.
+         *
+         * @return the histogram
+         */
+        public Histogram getHistogram() {
+            return histogram;
+        }
+    }
+
+    /**
+     * Identifies a metric by its name and tags. Tags are sorted by key, so their order does not matter.
+     */
+    public static final class MetricId {
+        private final String name;
+        private final String[] tags;
+        private final int hashCode;
+
+        MetricId(String name, String... tags) {
+            this.name = Objects.requireNonNull(name, "name");
+            if (tags.length % 2 != 0) {
+                throw new IllegalArgumentException("Tags must be given as alternating keys and values");
+            }
+            String[][] pairs = new String[tags.length / 2][];
+            for (int i = 0; i < pairs.length; i++) {
+                pairs[i] = new String[] {Objects.requireNonNull(tags[2 * i], "tag key"),
+                        Objects.requireNonNull(tags[2 * i + 1], "tag value")};
+            }
+            Arrays.sort(pairs, (a, b) -> a[0].compareTo(b[0]));
+            this.tags = new String[tags.length];
+            for (int i = 0; i < pairs.length; i++) {
+                if (i > 0 && pairs[i][0].equals(pairs[i - 1][0])) {
+                    throw new IllegalArgumentException("Duplicate tag " + pairs[i][0]);
+                }
+                this.tags[2 * i] = pairs[i][0];
+                this.tags[2 * i + 1] = pairs[i][1];
+            }
+            this.hashCode = 31 * name.hashCode() + Arrays.hashCode(this.tags);
+        }
+
+        /**
+         * Gets the name of the metric.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the tags of the metric.
+         *
+         * @return the tags sorted by key
+         */
+        public Map<String, String> getTags() {
+            Map<String, String> map = new LinkedHashMap<>();
+            for (int i = 0; i < tags.length; i += 2) {
+                map.put(tags[i], tags[i + 1]);
+            }
+            return Collections.unmodifiableMap(map);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MetricId)) {
+                return false;
+            }
+            MetricId that = (MetricId) o;
+            return hashCode == that.hashCode && name.equals(that.name) && Arrays.equals(tags, that.tags);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public String toString() {
+            return tags.length == 0 ? name : name + getTags();
+        }
+    }
+
+    /**
+     * A count that only goes up, such as a number of requests, backed by a {@link LongAdder} so that concurrent
+     * increments do not contend.
+     */
+    public static final class Counter {
+        private final LongAdder count = new LongAdder();
+
+        Counter() {
+        }
+
+        /**
+         * Adds one to the count.
+         */
+        public void increment() {
+            count.increment();
+        }
+
+        /**
+         * Adds to the count.
+         *
+         * @param amount the amount to add, not negative
+         */
+        public void increment(long amount) {
+            if (amount < 0) {
+                throw new IllegalArgumentException("Counters cannot decrease");
+            }
+            count.add(amount);
+        }
+
+        /**
+         * Gets the count.
+         *
+         * @return the count
+         */
+        public long getCount() {
+            return count.sum();
+        }
+    }
+
+    /**
+     * A value read on demand from a callback, such as the number of requests in flight.
+     */
+    public static final class Gauge {
+        private final DoubleSupplier supplier;
+
+        Gauge(DoubleSupplier supplier) {
+            this.supplier = supplier;
+        }
+
+        /**
+         * Reads the current value.
+         *
+         * @return the value
+         */
+        public double getValue() {
+            return supplier.getAsDouble();
+        }
+    }
+
+    /**
+     * Counts events and tracks their rate per second with exponentially weighted moving averages over 1, 5 and
+     * 15 minutes, like the load average of Unix. Events are accumulated in a {@link LongAdder} and folded into
+     * the averages every 5 seconds, by whichever thread marks or reads the meter first after the interval.
+     */
+    public static final class Meter {
+        private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+        private final LongSupplier ticker;
+        private final long startTime;
+        private final AtomicLong lastTick;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder uncounted = new LongAdder();
+        private final Ewma oneMinuteRate = new Ewma(1);
+        private final Ewma fiveMinuteRate = new Ewma(5);
+        private final Ewma fifteenMinuteRate = new Ewma(15);
+
+        Meter(LongSupplier ticker) {
+            this.ticker = ticker;
+            this.startTime = ticker.getAsLong();
+            this.lastTick = new AtomicLong(startTime);
+        }
+
+        /**
+         * Records an event.
+         */
+        public void mark() {
+            mark(1);
+        }
+
+        /**
+         * Records events.
+         *
+         * @param events the number of events
+         */
+        public void mark(long events) {
+            tickIfNecessary();
+            count.add(events);
+            uncounted.add(events);
+        }
+
+        /**
+         * Gets the number of events recorded.
+         *
+         * @return the count
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Gets the average rate since the meter was created.
+         *
+         * @return the events per second
+         */
+        public double getMeanRate() {
+            long elapsed = ticker.getAsLong() - startTime;
+            return elapsed <= 0 ? 0.0 : getCount() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        }
+
+        /**
+         * Gets the rate averaged over the last minute.
+         *
+         * @return the events per second
+         */
+        public double getOneMinuteRate() {
+            tickIfNecessary();
+            return oneMinuteRate.getRate();
+        }
+
+        /**
+         * Gets the rate averaged over the last 5 minutes.
+         *
+         * @return the events per second
+         */
+        public double getFiveMinuteRate() {
+            tickIfNecessary();
+            return fiveMinuteRate.getRate();
+        }
+
+        /**
+         * Gets the rate averaged over the last 15 minutes.
+         *
+         * @return the events per second
+         */
+        public double getFifteenMinuteRate() {
+            tickIfNecessary();
+            return fifteenMinuteRate.getRate();
+        }
+
+        private void tickIfNecessary() {
+            long oldTick = lastTick.get();
+            long now = ticker.getAsLong();
+            long age = now - oldTick;
+            if (age < TICK_INTERVAL) {
+                return;
+            }
+            long newTick = now - age % TICK_INTERVAL;
+            if (lastTick.compareAndSet(oldTick, newTick)) {
+                long ticks = age / TICK_INTERVAL;
+                long events = uncounted.sumThenReset();
+                for (long i = 0; i < ticks; i++) {
+                    // Events of the missed intervals are attributed to the first one
+                    long intervalEvents = i == 0 ? events : 0;
+                    oneMinuteRate.tick(intervalEvents);
+                    fiveMinuteRate.tick(intervalEvents);
+                    fifteenMinuteRate.tick(intervalEvents);
+                }
+            }
+        }
+
+        /**
+         * An exponentially weighted moving average of a rate, updated once per tick interval. Only the thread that
+         * advanced the tick updates it.
+         */
+        private static final class Ewma {
+            private final double alpha;
+            private volatile double rate;
+            private boolean initialized;
+
+            Ewma(int minutes) {
+                this.alpha = 1 - Math.exp(-(double) TICK_INTERVAL / TimeUnit.MINUTES.toNanos(minutes));
+            }
+
+            void tick(long events) {
+                double instantRate = events * (double) TimeUnit.SECONDS.toNanos(1) / TICK_INTERVAL;
+                if (initialized) {
+                    rate += alpha * (instantRate - rate);
+                } else {
+                    rate = instantRate;
+                    initialized = true;
+                }
+            }
+
+            double getRate() {
+                return rate;
+            }
+        }
     }
 }
@@ -0,0 +1,179 @@
+package fr.skogrine.utilitycm;
+
+import java.util.Objects;
+
+/**
+ * OffHeapCacheManager is a cache storing its values outside of the Java heap, for caches too large to be scanned
+ * by the garbage collector without long pauses.
+ *
+ * <p>Values are serialized with a {@link CacheCodec} into direct memory managed by a slab allocator. The keys stay
+ * on heap in a {@link CacheManager}, each mapped to a small handle locating its value, so the heap footprint per
+ * entry is a few dozen bytes whatever the size of the value. The capacity is expressed in bytes of off-heap
+ * memory and bounds the memory reserved from the operating system, free chunks included: the least recently
+ * used entries (or the ones chosen by {@link CacheManager.EvictionPolicy#W_TINY_LFU}) are evicted, and their
+ * memory recycled, until a new value fits within it. Slabs are sized to a sixty-fourth of the capacity, up to
+ * 1 MiB, so that every size class in use can hold a few slabs.</p>
+ *
+ * <p>Values are copied on every {@link #put(Object, Object)} and {@link #get(Object)}. All methods are
+ * synchronized.</p>
+ *
+ * <p>Example usage:</p>
+ * <pre>{@code
+ * OffHeapCacheManager<String, String> cache = new OffHeapCacheManager<>(8L << 30, CacheCodec.utf8());
+ * cache.put("a", "1");
+ * System.out.println(cache.get("a")); // Output: 1
+ * System.out.println(cache.getUsedBytes()); // Output: 64
+ * }</pre>
+ *
+ * @param <K> key
+ * @param <V> value
+ */
+public class OffHeapCacheManager<K, V> {
+
+    /** The largest size of the slabs reserved from the operating system. */
+    private static final int MAX_SLAB_SIZE = 1 << 20;
+    /** The smallest number of slabs the capacity is cut into. */
+    private static final int MIN_SLAB_COUNT = 64;
+
+    private final CacheManager<K, SlabAllocator.Chunk> cache;
+    private final SlabAllocator allocator;
+    private final CacheCodec<V> codec;
+    private final long maximumBytes;
+
+    /**
+     * Constructs an OffHeapCacheManager evicting in LRU order.
+     *
+     * @param maximumBytes the maximum amount of off-heap memory used by the values
+     * @param codec serializes the values
+     */
+    public OffHeapCacheManager(long maximumBytes, CacheCodec<V> codec) {
+        this(maximumBytes, codec, CacheManager.EvictionPolicy.LRU);
+    }
+
+    /**
+     * Constructs an OffHeapCacheManager.
+     *
+     * @param maximumBytes the maximum amount of off-heap memory used by the values
+     * @param codec serializes the values
+     * @param evictionPolicy the strategy used to choose the entries to evict
+     */
+    public OffHeapCacheManager(long maximumBytes, CacheCodec<V> codec, CacheManager.EvictionPolicy evictionPolicy) {
+        this.codec = Objects.requireNonNull(codec, "codec");
+        this.maximumBytes = maximumBytes;
+        long slabSize = Long.highestOneBit(Math.max(64, maximumBytes / MIN_SLAB_COUNT));
+        this.allocator = new SlabAllocator((int) Math.min(MAX_SLAB_SIZE, slabSize), maximumBytes);
+        this.cache = new CacheManager<>(maximumBytes, (key, chunk) -> chunk.capacity, evictionPolicy);
+        cache.setRemovalListener((key, chunk) -> allocator.free(chunk));
+    }
+
+    /**
+     * Puts an entry into the cache, evicting other entries if the memory reserved would exceed the maximum. A value
+     * larger than the maximum is not retained.
+     *
+     * @param key the key
+     * @param value the value
+     */
+    public synchronized void put(K key, V value) {
+        Objects.requireNonNull(value, "value");
+        byte[] bytes = codec.encode(value);
+        if (!allocator.fits(bytes.length)) {
+            cache.remove(key);
+            return;
+        }
+        SlabAllocator.Chunk chunk = allocator.allocate(bytes.length);
+        while (chunk == null) {
+            // The reserved memory is at the maximum, so free chunks until one of the right size class is available
+            if (!cache.evictOne()) {
+                cache.remove(key);
+                return;
+            }
+            chunk = allocator.allocate(bytes.length);
+        }
+        chunk.write(bytes);
+        cache.put(key, chunk);
+    }
+
+    /**
+     * Gets and decodes a value.
+     *
+     * @param key the key
+     * @return the value associated with the key, or null if there is no mapping
+     */
+    public synchronized V get(Object key) {
+        SlabAllocator.Chunk chunk = cache.get(key);
+        return chunk == null ? null : codec.decode(chunk.read());
+    }
+
+    /**
+     * Checks whether the cache contains a mapping for the key. This does not count as an access.
+     *
+     * @param key the key
+     * @return true if the cache contains a mapping for the key
+     */
+    public synchronized boolean containsKey(Object key) {
+        return cache.containsKey(key);
+    }
+
+    /**
+     * Removes an entry and frees its memory.
+     *
+     * @param key the key
+     * @return true if there was a mapping for the key
+     */
+    public synchronized boolean remove(Object key) {
+        return cache.remove(key) != null;
+    }
+
+    /**
+     * Removes every entry. The memory stays reserved for new entries.
+     */
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Removes every entry and releases the reserved memory, which is returned to the operating system once the
+     * garbage collector has reclaimed the buffers. The cache can still be used afterwards.
+     */
+    public synchronized void close() {
+        cache.clear();
+        allocator.clear();
+    }
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /**
+     * Gets the maximum amount of off-heap memory used by the values.
+     *
+     * @return the number of bytes
+     */
+    public long getMaximumBytes() {
+        return maximumBytes;
+    }
+
+    /**
+     * Gets the off-heap memory used by the values, counting whole chunks.
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getUsedBytes() {
+        return cache.getWeightedSize();
+    }
+
+    /**
+     * Gets the off-heap memory reserved, which also counts the free chunks of partially used slabs and the empty
+     * slabs kept for reuse. It never exceeds the maximum.
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getReservedBytes() {
+        return allocator.getReservedBytes();
+    }
+}
@@ -0,0 +1,442 @@
+package fr.skogrine.utilitycm;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PrometheusExporter serves the metrics of a {@link MetricsCollector} in the Prometheus text exposition format,
+ * on the {@code /metrics} path of the HTTP server built into the JDK.
+ *
+ * <p>Metrics are rendered as follows, with their tags as labels and names reduced to the characters Prometheus
+ * accepts:</p>
+ * <ul>
+ *     <li>counters as {@code counter} families named {@code <name>_total};</li>
+ *     <li>gauges as {@code gauge} families;</li>
+ *     <li>meters as a {@code <name>_total} counter and a {@code <name>_rate} gauge with a {@code window} label of
+ *     {@code 1m}, {@code 5m} or {@code 15m}, in events per second;</li>
+ *     <li>histograms, including timers, as {@code summary} families with the 0.5, 0.9, 0.99 and 0.999 quantiles,
+ *     in the unit they were recorded in, nanoseconds for timers. Windowed histograms are rendered the same way,
+ *     over their window only.</li>
+ * </ul>
+ *
+ * <p>Samples are grouped by the family they are exposed in, whatever the metric they come from: the
+ * {@code <name>_total} samples of every counter and meter sharing a name form one family, and their
+ * {@code <name>_rate} samples another. Since Prometheus would reject the whole scrape, a metric is left out when
+ * its samples would clash with those already exposed: when its family is exposed with another type, such as a
+ * gauge named like the {@code _total} family of a counter, when its name is taken by a sample of another family,
+ * such as a gauge named like the {@code _count} sample of a summary, or when another metric already renders the
+ * same series once names are sanitized, such as {@code http.requests} and {@code http_requests}.</p>
+ *
+ * <p>A scrape renders into a byte buffer kept from one scrape to the next, and reads the quantiles straight from
+ * the lock-free counters of the histograms without copying them, so recorders are never blocked and scraping
+ * often costs no more garbage than scraping rarely. The sample names, suffixes included, and the labels are
+ * rendered once per metric.</p>
+ *
+ * <p>Example usage:</p>
+ * <pre>{@code
+ * MetricsCollector metrics = new MetricsCollector();
+ * PrometheusExporter exporter = new PrometheusExporter(metrics, 9400);
+ * // scrape http://localhost:9400/metrics
+ * exporter.close();
+ * }</pre>
+ */
+public class PrometheusExporter implements Closeable {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+    private static final String[] RATE_WINDOWS = {"1m", "5m", "15m"};
+    private static final String COUNTER = "counter";
+    private static final String GAUGE = "gauge";
+    private static final String SUMMARY = "summary";
+
+    private final MetricsCollector collector;
+    private final HttpServer server;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<MetricsCollector.MetricId, Rendered> rendered = new HashMap<>();
+    private final List<Family> families = new ArrayList<>();
+    private final long[] quantiles = new long[PERCENTILES.length];
+    private byte[] buffer = new byte[8192];
+    private int length;
+
+    /**
+     * Constructs a PrometheusExporter listening on all interfaces.
+     *
+     * @param collector the metrics to export
+     * @param port the port, or 0 for any free port
+     * @throws IOException if the server cannot be started
+     */
+    public PrometheusExporter(MetricsCollector collector, int port) throws IOException {
+        this(collector, new InetSocketAddress(port));
+    }
+
+    /**
+     * Constructs a PrometheusExporter.
+     *
+     * @param collector the metrics to export
+     * @param address the address to listen on
+     * @throws IOException if the server cannot be started
+     */
+    public PrometheusExporter(MetricsCollector collector, InetSocketAddress address) throws IOException {
+        this.collector = Objects.requireNonNull(collector, "collector");
+        this.server = HttpServer.create(address, 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+    }
+
+    /**
+     * Gets the port the server listens on.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Renders the metrics as a scrape would.
+     *
+     * @return the exposition text
+     */
+    public String scrape() {
+        lock.lock();
+        try {
+            render();
+            return new String(buffer, 0, length, StandardCharsets.UTF_8);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the server.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            lock.lock();
+            try {
+                render();
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                exchange.sendResponseHeaders(200, length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(buffer, 0, length);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Renders every metric into the buffer. Called with the lock held.
+     */
+    private void render() {
+        length = 0;
+        Map<MetricsCollector.MetricId, Object> metrics = collector.getMetrics();
+        if (metrics.size() != rendered.size()) {
+            // Metrics are never unregistered: only new ones need rendering
+            metrics.forEach((id, metric) -> rendered.computeIfAbsent(id, key -> new Rendered(key, metric)));
+            groupFamilies();
+        }
+        for (Family family : families) {
+            type(family.name, family.type);
+            for (Rendered metric : family.metrics) {
+                if (metric.metric instanceof MetricsCollector.Counter) {
+                    sample(metric.total, metric.labels, null, null,
+                            ((MetricsCollector.Counter) metric.metric).getCount());
+                } else if (metric.metric instanceof MetricsCollector.Gauge) {
+                    sample(metric.family, metric.labels, null, null,
+                            ((MetricsCollector.Gauge) metric.metric).getValue());
+                } else if (metric.metric instanceof MetricsCollector.Meter) {
+                    renderMeter(metric, family.type.equals(COUNTER));
+                } else if (metric.metric instanceof Histogram) {
+                    renderHistogram(metric);
+                } else if (metric.metric instanceof WindowedHistogram) {
+                    renderWindowedHistogram(metric);
+                }
+            }
+        }
+    }
+
+    /**
+     * Groups the metrics by the families their samples are exposed in, in the order of the family names then of
+     * the labels. Called with the lock held.
+     */
+    private void groupFamilies() {
+        List<Rendered> sorted = new ArrayList<>(rendered.values());
+        // Metrics sanitized to the same series are ordered by their registered name, so the same one is kept
+        sorted.sort(Comparator.comparing((Rendered r) -> r.family).thenComparing(r -> r.labels)
+                .thenComparing(r -> r.id.toString()));
+        // Every sample name in use, including the _sum and _count samples of the summaries, by family
+        Map<String, Family> bySampleName = new HashMap<>();
+        families.clear();
+        for (Rendered metric : sorted) {
+            if (metric.metric instanceof MetricsCollector.Counter) {
+                addToFamily(bySampleName, metric.total, COUNTER, metric);
+            } else if (metric.metric instanceof MetricsCollector.Gauge) {
+                addToFamily(bySampleName, metric.family, GAUGE, metric);
+            } else if (metric.metric instanceof MetricsCollector.Meter) {
+                addToFamily(bySampleName, metric.total, COUNTER, metric);
+                addToFamily(bySampleName, metric.rate, GAUGE, metric);
+            } else if (metric.metric instanceof Histogram || metric.metric instanceof WindowedHistogram) {
+                addToFamily(bySampleName, metric.family, SUMMARY, metric);
+            }
+        }
+        families.sort(Comparator.comparing(family -> family.name));
+    }
+
+    /**
+     * Adds a metric to the family of the given name, creating it if none of its sample names is in use, unless
+     * the family has another type or already holds a metric with the same labels.
+     */
+    private void addToFamily(Map<String, Family> bySampleName, String name, String type, Rendered metric) {
+        Family family = bySampleName.get(name);
+        if (family == null) {
+            String[] sampleNames = type.equals(SUMMARY)
+                    ? new String[] {name, name + "_sum", name + "_count"}
+                    : new String[] {name};
+            for (String sampleName : sampleNames) {
+                if (bySampleName.containsKey(sampleName)) {
+                    return;
+                }
+            }
+            family = new Family(name, type);
+            for (String sampleName : sampleNames) {
+                bySampleName.put(sampleName, family);
+            }
+            families.add(family);
+        } else if (!family.name.equals(name) || !family.type.equals(type)) {
+            return;
+        }
+        if (family.labels.add(metric.labels)) {
+            family.metrics.add(metric);
+        }
+    }
+
+    /**
+     * Renders the {@code _total} sample of a meter, or its {@code _rate} samples.
+     */
+    private void renderMeter(Rendered metric, boolean total) {
+        MetricsCollector.Meter meter = (MetricsCollector.Meter) metric.metric;
+        if (total) {
+            sample(metric.total, metric.labels, null, null, meter.getCount());
+            return;
+        }
+        sample(metric.rate, metric.labels, "window", RATE_WINDOWS[0], meter.getOneMinuteRate());
+        sample(metric.rate, metric.labels, "window", RATE_WINDOWS[1], meter.getFiveMinuteRate());
+        sample(metric.rate, metric.labels, "window", RATE_WINDOWS[2], meter.getFifteenMinuteRate());
+    }
+
+    private void renderHistogram(Rendered metric) {
+        Histogram histogram = (Histogram) metric.metric;
+        long count = histogram.readPercentiles(PERCENTILES, quantiles);
+        for (int i = 0; i < quantiles.length; i++) {
+            sample(metric.family, metric.labels, "quantile", QUANTILE_LABELS[i], quantiles[i]);
+        }
+        sample(metric.sum, metric.labels, null, null, histogram.getSum());
+        sample(metric.count, metric.labels, null, null, count);
+    }
+
+    private void renderWindowedHistogram(Rendered metric) {
+        Histogram.Snapshot snapshot = ((WindowedHistogram) metric.metric).snapshot();
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            sample(metric.family, metric.labels, "quantile", QUANTILE_LABELS[i],
+                    snapshot.getValueAtPercentile(PERCENTILES[i]));
+        }
+        sample(metric.sum, metric.labels, null, null, snapshot.getSum());
+        sample(metric.count, metric.labels, null, null, snapshot.getCount());
+    }
+
+    private void type(String name, String type) {
+        append("# TYPE ").append(name).append(" ").append(type).append("\n");
+    }
+
+    private void sample(String name, String labels, String extraLabel, String extraValue, long value) {
+        sampleName(name, labels, extraLabel, extraValue);
+        appendLong(value);
+        append("\n");
+    }
+
+    private void sample(String name, String labels, String extraLabel, String extraValue, double value) {
+        sampleName(name, labels, extraLabel, extraValue);
+        if (Double.isNaN(value)) {
+            append("NaN");
+        } else if (Double.isInfinite(value)) {
+            append(value > 0 ? "+Inf" : "-Inf");
+        } else if (value == (long) value && Math.abs(value) < 1e15) {
+            appendLong((long) value);
+        } else {
+            append(Double.toString(value));
+        }
+        append("\n");
+    }
+
+    private void sampleName(String name, String labels, String extraLabel, String extraValue) {
+        append(name);
+        if (!labels.isEmpty() || extraLabel != null) {
+            append("{").append(labels);
+            if (extraLabel != null) {
+                if (!labels.isEmpty()) {
+                    append(",");
+                }
+                append(extraLabel).append("=\"").append(extraValue).append("\"");
+            }
+            append("}");
+        }
+        append(" ");
+    }
+
+    /**
+     * Appends text to the buffer, which only grows. Names and labels are ASCII once sanitized; label values are
+     * encoded as UTF-8.
+     */
+    private PrometheusExporter append(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                ensure(1);
+                buffer[length++] = (byte) c;
+            } else {
+                byte[] bytes = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                if (Character.isHighSurrogate(c) && i + 1 < text.length()) {
+                    bytes = text.substring(i, i + 2).getBytes(StandardCharsets.UTF_8);
+                    i++;
+                }
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, buffer, length, bytes.length);
+                length += bytes.length;
+            }
+        }
+        return this;
+    }
+
+    private void appendLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            append(Long.toString(value));
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int start = length;
+        do {
+            buffer[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte digit = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = digit;
+        }
+    }
+
+    private void ensure(int bytes) {
+        if (length + bytes > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, length + bytes)];
+            System.arraycopy(buffer, 0, grown, 0, length);
+            buffer = grown;
+        }
+    }
+
+    /**
+     * A family of samples exposed under one name and type, with the metrics contributing to it.
+     */
+    private static final class Family {
+        final String name;
+        final String type;
+        final List<Rendered> metrics = new ArrayList<>();
+        /** The labels of the metrics, which must differ for their series to differ. */
+        final Set<String> labels = new HashSet<>();
+
+        Family(String name, String type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    /**
+     * The sanitized family name, the names of the samples and the rendered labels of a metric, with its id.
+     */
+    private static final class Rendered {
+        final String family;
+        final String total;
+        final String rate;
+        final String sum;
+        final String count;
+        final String labels;
+        final MetricsCollector.MetricId id;
+        final Object metric;
+
+        Rendered(MetricsCollector.MetricId id, Object metric) {
+            this.family = sanitize(id.getName(), true);
+            this.total = family + "_total";
+            this.rate = family + "_rate";
+            this.sum = family + "_sum";
+            this.count = family + "_count";
+            StringBuilder builder = new StringBuilder();
+            for (Map.Entry<String, String> tag : id.getTags().entrySet()) {
+                if (builder.length() > 0) {
+                    builder.append(',');
+                }
+                builder.append(sanitize(tag.getKey(), false)).append("=\"");
+                for (char c : tag.getValue().toCharArray()) {
+                    if (c == '\\' || c == '"') {
+                        builder.append('\\').append(c);
+                    } else if (c == '\n') {
+                        builder.append("\\n");
+                    } else {
+                        builder.append(c);
+                    }
+                }
+                builder.append('"');
+            }
+            this.labels = builder.toString();
+            this.id = id;
+            this.metric = metric;
+        }
+
+        /**
+         * Replaces the characters Prometheus does not accept in names by underscores.
+         */
+        private static String sanitize(String name, boolean allowColon) {
+            StringBuilder builder = new StringBuilder(name.length());
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                boolean valid = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || allowColon && c == ':'
+                        || i > 0 && c >= '0' && c <= '9';
+                builder.append(valid ? c : '_');
+            }
+            return builder.length() == 0 ? "_" : builder.toString();
+        }
+    }
+}
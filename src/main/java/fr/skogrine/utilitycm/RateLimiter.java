@@ -1,7 +1,21 @@
 package fr.skogrine.utilitycm;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
 
 /**
  * RateLimiter is a utility class for rate limiting actions, supporting different strategies such as token bucket and leaky bucket.
@@ -18,14 +32,52 @@ import java.util.concurrent.atomic.AtomicInteger;
  *     Thread.sleep(200);
  * }
  * }</pre>
+ *
+ * <p>The constructor creates a fixed window limiter, which allows bursts of twice the rate across a window
+ * boundary. A token bucket smooths the rate instead: permits are added continuously, and up to
+ * {@code burstSize} unused permits can be saved for a later burst:</p>
+ * <pre>{@code
+ * RateLimiter limiter = RateLimiter.tokenBucket(100, 1, TimeUnit.SECONDS, 20);
+ * if (limiter.tryAcquire(5)) {
+ *     sendBatch();
+ * }
+ * }</pre>
+ *
+ * <p>A sliding window enforces the limit over any window ending now rather than over calendar windows, using a
+ * ring of sub-window counters: the more sub-windows, the closer it gets to an exact sliding log, for a constant
+ * memory of one long per sub-window:</p>
+ * <pre>{@code
+ * RateLimiter limiter = RateLimiter.slidingWindow(100, 1, TimeUnit.MINUTES, 12);
+ * }</pre>
+ *
+ * <p>Every strategy keeps its state in atomic longs updated with compare-and-set loops, so limiters never lock
+ * and stay exact under contention.</p>
+ *
+ * <p>Callers that would rather wait than give up can block with {@link #acquire(int)} or get a future with
+ * {@link #acquireAsync(int)}. Waiters are served in arrival order: only the oldest one is retried, when the
+ * limiter estimates its permits are available, by the thread releasing the previous waiter or by a shared
+ * scheduler thread. Blocked threads park without holding any monitor, so virtual threads unmount while they
+ * wait. Futures are completed on the common fork-join pool, or on the executor set with
+ * {@link #setAsyncExecutor(Executor)}, so their dependent stages never run on the scheduler thread. A future
+ * cancelled after its permits were granted gives them back. {@link #tryAcquire(int)} never waits and may take
+ * permits ahead of the waiters.</p>
+ * <pre>{@code
+ * limiter.acquire(5);
+ * limiter.acquireAsync(1, 2, TimeUnit.SECONDS).thenRun(this::sendRequest);
+ * }</pre>
  */
 public class RateLimiter {
 
-    private final int maxRequests;
-    private final long timePeriod;
-    private final TimeUnit timeUnit;
-    private final AtomicInteger requestCount;
-    private long lastResetTime;
+    private final Strategy strategy;
+    private LongSupplier ticker = System::nanoTime;
+    private long origin = ticker.getAsLong();
+    private final ReentrantLock waitersLock = new ReentrantLock();
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    /** The number of waiters, read without the lock to let callers skip the queue when it is empty. */
+    private volatile int waiterCount;
+    private boolean drainScheduled;
+    private long drainTime;
+    private volatile Executor asyncExecutor = ForkJoinPool.commonPool();
 
     /**
      * Constructs a RateLimiter with the specified rate limit.
@@ -35,11 +87,63 @@ public class RateLimiter {
      * @param timeUnit the time unit for the time period
      */
     public RateLimiter(int maxRequests, long timePeriod, TimeUnit timeUnit) {
-        this.maxRequests = maxRequests;
-        this.timePeriod = timePeriod;
-        this.timeUnit = timeUnit;
-        this.requestCount = new AtomicInteger(0);
-        this.lastResetTime = System.nanoTime();
+        this(new FixedWindow(maxRequests, timeUnit.toNanos(timePeriod)));
+    }
+
+    private RateLimiter(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * Creates a token bucket limiter whose burst size equals the number of permits per period.
+     *
+     * @param permits the number of permits added per period
+     * @param period the period
+     * @param unit the time unit of the period
+     * @return the limiter
+     */
+    public static RateLimiter tokenBucket(int permits, long period, TimeUnit unit) {
+        return tokenBucket(permits, period, unit, permits);
+    }
+
+    /**
+     * Creates a token bucket limiter. The bucket starts full.
+     *
+     * @param permits the number of permits added per period
+     * @param period the period
+     * @param unit the time unit of the period
+     * @param burstSize the maximum number of permits saved up while the limiter is unused, at most 1048575
+     * @return the limiter
+     */
+    public static RateLimiter tokenBucket(int permits, long period, TimeUnit unit, int burstSize) {
+        return new RateLimiter(new TokenBucket(permits, unit.toNanos(period), burstSize));
+    }
+
+    /**
+     * Creates a sliding window limiter. The window is divided into sub-windows with their own counter; the
+     * oldest sub-window, only partly covered by the window ending now, is weighted by the part still covered.
+     * With a single sub-window this is the classic sliding window counter weighting the previous window.
+     *
+     * @param maxRequests the maximum number of permits granted over any window
+     * @param window the duration of the window
+     * @param unit the time unit of the window
+     * @param subWindows the number of sub-windows the window is divided into
+     * @return the limiter
+     */
+    public static RateLimiter slidingWindow(int maxRequests, long window, TimeUnit unit, int subWindows) {
+        return new RateLimiter(new SlidingWindow(maxRequests, unit.toNanos(window), subWindows));
+    }
+
+    /**
+     * Sets the executor completing the futures returned by {@link #acquireAsync(int)}, on which their dependent
+     * stages run. Defaults to the common fork-join pool.
+     *
+     * @param asyncExecutor the executor
+     * @return this RateLimiter
+     */
+    public RateLimiter setAsyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = Objects.requireNonNull(asyncExecutor, "asyncExecutor");
+        return this;
     }
 
     /**
@@ -48,14 +152,680 @@ public class RateLimiter {
      * @return true if the action is allowed, false if the rate limit is exceeded
      */
     public boolean tryAcquire() {
-        long currentTime = System.nanoTime();
-        long elapsedTime = currentTime - lastResetTime;
+        return tryAcquire(1);
+    }
+
+    /**
+     * Attempts to acquire several permits at once. Either all of them are granted or none is.
+     *
+     * @param permits the number of permits
+     * @return true if the permits were granted, false if the rate limit is exceeded
+     */
+    public boolean tryAcquire(int permits) {
+        strategy.checkPermits(permits);
+        return strategy.tryAcquire(permits, ticker.getAsLong() - origin);
+    }
+
+    /**
+     * Acquires a permit, waiting as long as needed.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        acquire(1);
+    }
+
+    /**
+     * Acquires several permits at once, waiting as long as needed behind the threads and futures already waiting.
+     *
+     * @param permits the number of permits
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void acquire(int permits) throws InterruptedException {
+        await(permits, Long.MAX_VALUE);
+    }
+
+    /**
+     * Acquires several permits at once, waiting behind the threads and futures already waiting at most the given
+     * time.
+     *
+     * @param permits the number of permits
+     * @param timeout the maximum time to wait
+     * @param unit the time unit of the timeout
+     * @return true if the permits were granted, false if the timeout elapsed first
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean tryAcquire(int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        return await(permits, Math.max(0, unit.toNanos(timeout)));
+    }
+
+    /**
+     * Acquires several permits at once without blocking the caller.
+     *
+     * @param permits the number of permits
+     * @return a future completed once the permits are granted, in the order the futures were requested
+     */
+    public CompletableFuture<Void> acquireAsync(int permits) {
+        return acquireAsync(permits, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Acquires several permits at once without blocking the caller, giving up after the given time. Cancelling
+     * the future also gives up.
+     *
+     * @param permits the number of permits
+     * @param timeout the maximum time to wait
+     * @param unit the time unit of the timeout
+     * @return a future completed once the permits are granted, or exceptionally with a {@link TimeoutException}
+     */
+    public CompletableFuture<Void> acquireAsync(int permits, long timeout, TimeUnit unit) {
+        strategy.checkPermits(permits);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (waiterCount == 0 && tryAcquire(permits)) {
+            future.complete(null);
+            return future;
+        }
+        Waiter waiter = new Waiter(permits, null, future);
+        enqueue(waiter);
+        long timeoutNanos = unit.toNanos(timeout);
+        if (timeoutNanos < Long.MAX_VALUE && !future.isDone()) {
+            Scheduler.INSTANCE.schedule(() -> {
+                if (cancel(waiter)) {
+                    completeAsync(() -> future.completeExceptionally(new TimeoutException("Permits not acquired "
+                            + "within " + timeout + " " + unit)));
+                }
+            }, timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        return future;
+    }
+
+    private boolean await(int permits, long timeoutNanos) throws InterruptedException {
+        strategy.checkPermits(permits);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (waiterCount == 0 && tryAcquire(permits)) {
+            return true;
+        }
+        Waiter waiter = new Waiter(permits, Thread.currentThread(), null);
+        enqueue(waiter);
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (!waiter.granted) {
+            long remaining = deadline - System.nanoTime();
+            if (timeoutNanos != Long.MAX_VALUE && remaining <= 0) {
+                return !cancel(waiter);
+            }
+            if (timeoutNanos == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, remaining);
+            }
+            if (Thread.interrupted()) {
+                if (cancel(waiter)) {
+                    throw new InterruptedException();
+                }
+                // Granted while being interrupted: keep the permits and the interrupt status
+                Thread.currentThread().interrupt();
+                return true;
+            }
+        }
+        return true;
+    }
+
+    private void enqueue(Waiter waiter) {
+        waitersLock.lock();
+        try {
+            waiters.add(waiter);
+            waiterCount = waiters.size();
+        } finally {
+            waitersLock.unlock();
+        }
+        drain();
+    }
+
+    /**
+     * Withdraws a waiter from the queue.
+     *
+     * @return true if the waiter was withdrawn, false if its permits were already granted
+     */
+    private boolean cancel(Waiter waiter) {
+        waitersLock.lock();
+        try {
+            if (waiter.granted) {
+                return false;
+            }
+            waiter.cancelled = true;
+        } finally {
+            waitersLock.unlock();
+        }
+        // The waiters behind may be served now
+        drain();
+        return true;
+    }
+
+    /**
+     * Grants permits to the waiters in arrival order until the oldest one has to wait, then schedules a new
+     * attempt for when its permits should be available.
+     */
+    private void drain() {
+        List<Waiter> granted = new ArrayList<>();
+        waitersLock.lock();
+        try {
+            Waiter head;
+            while ((head = waiters.peek()) != null) {
+                if (head.cancelled || head.future != null && head.future.isDone()) {
+                    waiters.poll();
+                    continue;
+                }
+                long elapsedNanos = ticker.getAsLong() - origin;
+                if (!strategy.tryAcquire(head.permits, elapsedNanos)) {
+                    schedule(elapsedNanos, Math.max(1, strategy.nanosUntilAvailable(head.permits, elapsedNanos)));
+                    break;
+                }
+                waiters.poll();
+                head.grantedAt = elapsedNanos;
+                head.granted = true;
+                granted.add(head);
+            }
+            waiterCount = waiters.size();
+        } finally {
+            waitersLock.unlock();
+        }
+        for (Waiter waiter : granted) {
+            if (waiter.thread != null) {
+                LockSupport.unpark(waiter.thread);
+            } else {
+                completeAsync(() -> {
+                    if (!waiter.future.complete(null)) {
+                        // Cancelled after its permits were granted: the waiters behind may use them
+                        strategy.release(waiter.permits, waiter.grantedAt);
+                        drain();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Completes a future on the async executor, or on the current thread if the executor rejects the task.
+     */
+    private void completeAsync(Runnable completion) {
+        try {
+            asyncExecutor.execute(completion);
+        } catch (RejectedExecutionException e) {
+            completion.run();
+        }
+    }
 
-        if (elapsedTime > timeUnit.toNanos(timePeriod)) {
-            requestCount.set(0);
-            lastResetTime = currentTime;
+    /**
+     * Schedules a drain, unless one is already scheduled early enough. Called with the waiters lock held.
+     */
+    private void schedule(long elapsedNanos, long delayNanos) {
+        long time = elapsedNanos + delayNanos;
+        if (drainScheduled && drainTime - time <= 0) {
+            return;
+        }
+        drainScheduled = true;
+        drainTime = time;
+        Scheduler.INSTANCE.schedule(() -> {
+            waitersLock.lock();
+            try {
+                if (drainTime == time) {
+                    drainScheduled = false;
+                }
+            } finally {
+                waitersLock.unlock();
+            }
+            drain();
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the time source, in nanoseconds, and restarts the limiter from a full state. Visible for testing.
+     */
+    void setTicker(LongSupplier ticker) {
+        this.ticker = Objects.requireNonNull(ticker, "ticker");
+        this.origin = ticker.getAsLong();
+        strategy.reset();
+    }
+
+    /**
+     * A rate limiting algorithm. Times are nanoseconds elapsed since the limiter was created.
+     */
+    private interface Strategy {
+
+        /**
+         * Throws an exception if the number of permits can never be granted at once.
+         */
+        void checkPermits(int permits);
+
+        boolean tryAcquire(int permits, long elapsedNanos);
+
+        /**
+         * Estimates the time after which the permits may be granted if no other permit is taken meanwhile. The
+         * estimate may be late but should not be early, so that waiters are not retried in vain.
+         *
+         * @return the delay in nanoseconds
+         */
+        long nanosUntilAvailable(int permits, long elapsedNanos);
+
+        /**
+         * Gives back permits granted and not used. Permits granted in a window that has passed are not given back.
+         *
+         * @param permits the number of permits
+         * @param grantedAt the time they were granted at
+         */
+        void release(int permits, long grantedAt);
+
+        /**
+         * Restores the state of a new limiter.
+         */
+        void reset();
+    }
+
+    /**
+     * A thread or a future waiting for permits. The flags are written with the waiters lock held.
+     */
+    private static final class Waiter {
+        final int permits;
+        final Thread thread;
+        final CompletableFuture<Void> future;
+        volatile boolean granted;
+        boolean cancelled;
+        long grantedAt;
+
+        Waiter(int permits, Thread thread, CompletableFuture<Void> future) {
+            this.permits = permits;
+            this.thread = thread;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Holds the daemon thread shared by all limiters to retry their waiters, created on first use.
+     */
+    private static final class Scheduler {
+        static final ScheduledThreadPoolExecutor INSTANCE = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "RateLimiter-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            INSTANCE.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    /**
+     * Counts the permits granted in the current window, packing the window number (high 32 bits) and the count
+     * (low 32 bits) into one long so that moving to a new window and counting are a single atomic update.
+     */
+    private static final class FixedWindow implements Strategy {
+        private final int maxRequests;
+        private final long windowNanos;
+        private final AtomicLong state = new AtomicLong();
+
+        FixedWindow(int maxRequests, long windowNanos) {
+            if (maxRequests <= 0) {
+                throw new IllegalArgumentException("Max requests must be positive");
+            }
+            if (windowNanos <= 0) {
+                throw new IllegalArgumentException("Time period must be positive");
+            }
+            this.maxRequests = maxRequests;
+            this.windowNanos = windowNanos;
+        }
+
+        @Override
+        public void checkPermits(int permits) {
+            if (permits <= 0 || permits > maxRequests) {
+                throw new IllegalArgumentException("Permits must be between 1 and " + maxRequests);
+            }
         }
 
-        return requestCount.incrementAndGet() <= maxRequests;
+        @Override
+        public boolean tryAcquire(int permits, long elapsedNanos) {
+            int window = (int) (elapsedNanos / windowNanos);
+            for (;;) {
+                long current = state.get();
+                int currentWindow = (int) (current >>> 32);
+                int count = (int) current;
+                if (window - currentWindow > 0) {
+                    count = 0;
+                } else {
+                    // A thread that read the clock before another moved to the next window counts in the new one
+                    window = currentWindow;
+                }
+                if (count > maxRequests - permits) {
+                    return false;
+                }
+                long next = ((long) window << 32) | (count + permits);
+                if (state.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public long nanosUntilAvailable(int permits, long elapsedNanos) {
+            return windowNanos - elapsedNanos % windowNanos;
+        }
+
+        @Override
+        public void release(int permits, long grantedAt) {
+            int window = (int) (grantedAt / windowNanos);
+            for (;;) {
+                long current = state.get();
+                if ((int) (current >>> 32) != window || state.compareAndSet(current, current - permits)) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void reset() {
+            state.set(0);
+        }
+    }
+
+    /**
+     * A ring of sub-window counters, each slot packing the number of its sub-window (high 32 bits) and its count
+     * (low 32 bits), so that a slot left over from an older revolution of the ring is recognized and restarted.
+     * The ring has one slot more than the window has sub-windows, to keep the partly covered oldest sub-window.
+     *
+     * <p>Only the slot of the current sub-window changes while it is current, so checking the limit and counting
+     * the permits is a compare-and-set of that slot conditioned on the counts of the past sub-windows. The newest
+     * sub-window is also tracked on its own: a thread that read the clock before another moved to a later
+     * sub-window counts in the later one, and takes its permits back if the move happened while it was counting,
+     * since the later sub-window may have been granted permits without seeing them.</p>
+     */
+    private static final class SlidingWindow implements Strategy {
+        private final int maxRequests;
+        private final int subWindows;
+        private final long subWindowNanos;
+        private final AtomicLongArray slots;
+        private final AtomicLong newest = new AtomicLong();
+
+        SlidingWindow(int maxRequests, long windowNanos, int subWindows) {
+            if (maxRequests <= 0) {
+                throw new IllegalArgumentException("Max requests must be positive");
+            }
+            if (subWindows <= 0) {
+                throw new IllegalArgumentException("Sub-windows must be positive");
+            }
+            if (windowNanos < subWindows) {
+                throw new IllegalArgumentException("Window must be at least one nanosecond per sub-window");
+            }
+            this.maxRequests = maxRequests;
+            this.subWindows = subWindows;
+            this.subWindowNanos = windowNanos / subWindows;
+            this.slots = new AtomicLongArray(subWindows + 1);
+            reset();
+        }
+
+        @Override
+        public void checkPermits(int permits) {
+            if (permits <= 0 || permits > maxRequests) {
+                throw new IllegalArgumentException("Permits must be between 1 and " + maxRequests);
+            }
+        }
+
+        @Override
+        public boolean tryAcquire(int permits, long elapsedNanos) {
+            long current = elapsedNanos / subWindowNanos;
+            long progress = elapsedNanos % subWindowNanos;
+            for (;;) {
+                long latest = newest.get();
+                if (current < latest) {
+                    // Another thread read a more recent clock and already moved to a later sub-window
+                    current = latest;
+                    progress = 0;
+                } else if (current > latest && !newest.compareAndSet(latest, current)) {
+                    continue;
+                }
+                int index = (int) Math.floorMod(current, (long) slots.length());
+                long slot = slots.get(index);
+                int ahead = (int) (slot >>> 32) - (int) current;
+                if (ahead > 0) {
+                    continue;
+                }
+                int count = ahead == 0 ? (int) slot : 0;
+                long total = count + pastCount(current, progress);
+                if (total > maxRequests - permits) {
+                    return false;
+                }
+                if (slots.compareAndSet(index, slot, (current << 32) | (count + permits))) {
+                    if (newest.get() == current) {
+                        return true;
+                    }
+                    release(index, current, permits);
+                }
+            }
+        }
+
+        /**
+         * Takes back permits counted in a sub-window, unless its slot has moved on to a later sub-window.
+         */
+        private void release(int index, long window, int permits) {
+            for (;;) {
+                long slot = slots.get(index);
+                if ((int) (slot >>> 32) != (int) window || slots.compareAndSet(index, slot, slot - permits)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Sums the full past sub-windows and the covered part of the oldest one.
+         */
+        private long pastCount(long current, long progress) {
+            long total = 0;
+            for (int i = 1; i <= subWindows; i++) {
+                long window = current - i;
+                long slot = slots.get((int) Math.floorMod(window, (long) slots.length()));
+                if ((int) (slot >>> 32) != (int) window) {
+                    continue;
+                }
+                int count = (int) slot;
+                if (i < subWindows) {
+                    total += count;
+                } else {
+                    total += count * (subWindowNanos - progress) / subWindowNanos;
+                }
+            }
+            return total;
+        }
+
+        /**
+         * Waits for the next sub-window, when the oldest counts leave the window. The partly covered sub-window
+         * decays continuously, so permits might be available slightly earlier.
+         */
+        @Override
+        public long nanosUntilAvailable(int permits, long elapsedNanos) {
+            return subWindowNanos - elapsedNanos % subWindowNanos;
+        }
+
+        @Override
+        public void release(int permits, long grantedAt) {
+            long window = grantedAt / subWindowNanos;
+            release((int) Math.floorMod(window, (long) slots.length()), window, permits);
+        }
+
+        @Override
+        public void reset() {
+            for (int i = 0; i < slots.length(); i++) {
+                // Empty counters of the sub-windows of the previous revolution of the ring
+                slots.set(i, (long) (i - slots.length()) << 32);
+            }
+            newest.set(0);
+        }
+    }
+
+    /**
+     * A token bucket packing the number of missing tokens (high 20 bits) and the time of the last refill (low 44
+     * bits) into one long. Counting the missing tokens rather than the available ones makes 0 the state of a full
+     * bucket, whatever its last refill time; {@link KeyedRateLimiter} relies on it to treat absent keys as full.
+     *
+     * <p>Time is counted in ticks, a tick being the time needed to generate one token. The tick of an instant is
+     * computed from the elapsed time with integer arithmetic only, so refilling adds exactly the number of ticks
+     * that started since the last refill and no fraction of a token is ever lost or gained, however often the
+     * bucket is read. Ticks are stored modulo 2<sup>44</sup>; differences are interpreted within half that range,
+     * which spans more than 100 days even at a million permits per second.</p>
+     */
+    static final class TokenBucket implements Strategy {
+        static final int TOKEN_BITS = 20;
+        static final int TICK_BITS = Long.SIZE - TOKEN_BITS;
+        static final long TICK_MASK = (1L << TICK_BITS) - 1;
+        static final int MAX_BURST_SIZE = (1 << TOKEN_BITS) - 1;
+
+        private final long permits;
+        /** The period, in time units of {@code unitNanos} nanoseconds. */
+        private final long period;
+        /** The resolution of the clock, coarsened for slow rates so that {@code period * permits} fits a long. */
+        private final long unitNanos;
+        private final long burstSize;
+        private final AtomicLong state = new AtomicLong();
+
+        TokenBucket(int permits, long periodNanos, int burstSize) {
+            if (permits <= 0) {
+                throw new IllegalArgumentException("Permits must be positive");
+            }
+            if (periodNanos <= 0) {
+                throw new IllegalArgumentException("Period must be positive");
+            }
+            if (burstSize <= 0 || burstSize > MAX_BURST_SIZE) {
+                throw new IllegalArgumentException("Burst size must be between 1 and " + MAX_BURST_SIZE);
+            }
+            long period = periodNanos;
+            long unitNanos = 1;
+            while (Math.multiplyHigh(period, permits) != 0 || period * permits < 0) {
+                period /= 1000;
+                unitNanos *= 1000;
+            }
+            this.permits = permits;
+            this.period = Math.max(1, period);
+            this.unitNanos = unitNanos;
+            this.burstSize = burstSize;
+        }
+
+        @Override
+        public void checkPermits(int permits) {
+            if (permits <= 0 || permits > burstSize) {
+                throw new IllegalArgumentException("Permits must be between 1 and the burst size " + burstSize);
+            }
+        }
+
+        @Override
+        public boolean tryAcquire(int permits, long elapsedNanos) {
+            long tick = tick(elapsedNanos);
+            for (;;) {
+                long current = state.get();
+                long tokens = available(current, tick);
+                if (tokens < permits) {
+                    return false;
+                }
+                if (state.compareAndSet(current, acquire(current, tokens, permits, tick))) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Waits for the missing tokens, rounding each token up to a whole tick.
+         */
+        @Override
+        public long nanosUntilAvailable(int permits, long elapsedNanos) {
+            long missing = permits - available(state.get(), tick(elapsedNanos));
+            if (missing <= 0) {
+                return 0;
+            }
+            return (long) Math.ceil((double) missing * period / this.permits) * unitNanos;
+        }
+
+        /**
+         * Puts the tokens back in the bucket, whenever they were taken.
+         */
+        @Override
+        public void release(int permits, long grantedAt) {
+            for (;;) {
+                long current = state.get();
+                long missing = current >>> TICK_BITS;
+                long next = Math.max(0, missing - permits) << TICK_BITS | (current & TICK_MASK);
+                if (missing == 0 || state.compareAndSet(current, next)) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void reset() {
+            state.set(0);
+        }
+
+        /**
+         * Computes {@code floor(elapsed * permits / period)} without overflowing, modulo 2<sup>44</sup>.
+         *
+         * @param elapsedNanos the time elapsed since the limiter was created
+         * @return the tick
+         */
+        long tick(long elapsedNanos) {
+            long elapsed = elapsedNanos / unitNanos;
+            return ((elapsed / period) * permits + (elapsed % period) * permits / period) & TICK_MASK;
+        }
+
+        /**
+         * Computes the tokens available in a bucket after refilling it up to the given tick.
+         *
+         * @param state the packed state
+         * @param tick the current tick
+         * @return the number of tokens
+         */
+        long available(long state, long tick) {
+            long missing = state >>> TICK_BITS;
+            if (missing == 0) {
+                return burstSize;
+            }
+            long delta = (tick - (state & TICK_MASK)) & TICK_MASK;
+            if (delta > TICK_MASK >>> 1) {
+                // Another thread already refilled from a more recent clock reading
+                return burstSize - missing;
+            }
+            return Math.min(burstSize, burstSize - missing + delta);
+        }
+
+        /**
+         * Computes the state of a bucket once permits are taken from it.
+         *
+         * @param state the packed state
+         * @param available the tokens available, as computed by {@link #available(long, long)}
+         * @param permits the number of permits taken, at most {@code available}
+         * @param tick the current tick
+         * @return the new packed state
+         */
+        long acquire(long state, long available, int permits, long tick) {
+            long lastTick = state & TICK_MASK;
+            boolean stale = state >>> TICK_BITS != 0 && ((tick - lastTick) & TICK_MASK) > TICK_MASK >>> 1;
+            return (burstSize - available + permits) << TICK_BITS | (stale ? lastTick : tick);
+        }
+
+        /**
+         * Checks whether a bucket has refilled completely, so that forgetting it changes nothing.
+         *
+         * @param state the packed state
+         * @param tick the current tick
+         * @return true if the bucket is full
+         */
+        boolean isFull(long state, long tick) {
+            return available(state, tick) == burstSize;
+        }
+
+        /**
+         * Gets the maximum number of tokens of the bucket.
+         *
+         * @return the burst size
+         */
+        long getBurstSize() {
+            return burstSize;
+        }
     }
 }
@@ -0,0 +1,344 @@
+package fr.skogrine.utilitycm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A slab allocator handing out chunks of direct memory, used by {@link OffHeapCacheManager}.
+ *
+ * <p>Memory is reserved from the operating system in slabs of a fixed size, each slab being cut into chunks of a
+ * single size class. Size classes grow by a factor of 1.5 then 4/3 alternately (64, 96, 128, 192, 256...), so a
+ * chunk wastes at most a third of its size. Allocating and freeing a chunk only pushes or pops a free-list, and
+ * the Java heap only sees one small {@link Chunk} object per chunk, created the first time the chunk is handed
+ * out. A slab whose chunks are all free goes back to a small pool and can be cut again for another size class,
+ * so the memory follows the size distribution of the data; the slabs beyond the pool are released. Requests
+ * larger than a slab are spread over several whole slabs.</p>
+ *
+ * <p>The memory reserved never exceeds a limit: when serving a request would need more, the allocation fails
+ * and the caller is expected to free chunks and try again.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ */
+final class SlabAllocator {
+
+    private static final int MIN_CHUNK_SIZE = 64;
+    /** The number of empty slabs kept for reuse instead of being released. */
+    private static final int MAX_EMPTY_SLABS = 4;
+
+    private final int slabSize;
+    private final long maximumBytes;
+    private final int[] chunkSizes;
+    /** For each size class, the slabs having at least one free chunk. */
+    private final Slab[] partialSlabs;
+    private final ArrayDeque<ByteBuffer> emptySlabs = new ArrayDeque<>();
+    private long reservedBytes;
+
+    /**
+     * Constructs an allocator.
+     *
+     * @param slabSize the size of the slabs, a power of two of at least 64 bytes
+     * @param maximumBytes the maximum amount of memory reserved
+     */
+    SlabAllocator(int slabSize, long maximumBytes) {
+        if (slabSize < MIN_CHUNK_SIZE || Integer.bitCount(slabSize) != 1) {
+            throw new IllegalArgumentException("Slab size must be a power of two of at least " + MIN_CHUNK_SIZE);
+        }
+        this.slabSize = slabSize;
+        this.maximumBytes = maximumBytes;
+        int classes = 2 * Integer.numberOfTrailingZeros(slabSize / MIN_CHUNK_SIZE) + 1;
+        this.chunkSizes = new int[classes];
+        for (int i = 0; i < classes; i++) {
+            int power = MIN_CHUNK_SIZE << (i / 2);
+            chunkSizes[i] = i % 2 == 0 ? power : power + power / 2;
+        }
+        this.partialSlabs = new Slab[classes];
+    }
+
+    /**
+     * Allocates a chunk of at least the given length.
+     *
+     * @param length the number of bytes needed
+     * @return the chunk, or null if it would reserve more than the maximum
+     */
+    Chunk allocate(int length) {
+        if (length > slabSize) {
+            return allocateLarge(length);
+        }
+        int sizeClass = sizeClassOf(length);
+        Slab slab = partialSlabs[sizeClass];
+        if (slab == null) {
+            ByteBuffer memory = reserveSlab();
+            if (memory == null) {
+                return null;
+            }
+            slab = new Slab(memory, chunkSizes[sizeClass], sizeClass);
+            linkPartial(slab);
+        }
+        Chunk chunk = slab.take();
+        if (slab.isFull()) {
+            unlinkPartial(slab);
+        }
+        return chunk;
+    }
+
+    /**
+     * Gives a chunk back. The chunk must not be used afterwards.
+     *
+     * @param chunk the chunk
+     */
+    void free(Chunk chunk) {
+        Slab slab = chunk.slab;
+        if (slab == null) {
+            for (ByteBuffer memory : ((LargeChunk) chunk).slabs) {
+                releaseSlab(memory);
+            }
+            return;
+        }
+        if (slab.isFull()) {
+            linkPartial(slab);
+        }
+        slab.give(chunk);
+        if (slab.used == 0) {
+            unlinkPartial(slab);
+            releaseSlab(slab.memory);
+        }
+    }
+
+    /**
+     * Drops every slab. Chunks allocated before must not be used afterwards.
+     */
+    void clear() {
+        for (int i = 0; i < partialSlabs.length; i++) {
+            partialSlabs[i] = null;
+        }
+        emptySlabs.clear();
+        reservedBytes = 0;
+    }
+
+    /**
+     * Gets the amount of direct memory reserved, including the free chunks and the empty slabs kept for reuse.
+     *
+     * @return the number of bytes
+     */
+    long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * Gets the size of the chunk that would be allocated for the given length.
+     *
+     * @param length the number of bytes needed
+     * @return the chunk size in bytes
+     */
+    int chunkSize(int length) {
+        return length > slabSize ? slabsFor(length) * slabSize : chunkSizes[sizeClassOf(length)];
+    }
+
+    /**
+     * Checks whether a chunk of the given length can be allocated once enough chunks are freed.
+     *
+     * @param length the number of bytes needed
+     * @return true if the chunk fits within the maximum
+     */
+    boolean fits(int length) {
+        return (long) slabsFor(length) * slabSize <= maximumBytes;
+    }
+
+    private int slabsFor(int length) {
+        return (int) (((long) length + slabSize - 1) / slabSize);
+    }
+
+    private int sizeClassOf(int length) {
+        int sizeClass = 0;
+        while (chunkSizes[sizeClass] < length) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    private Chunk allocateLarge(int length) {
+        int count = slabsFor(length);
+        long available = emptySlabs.size() + (maximumBytes - reservedBytes) / slabSize;
+        if (available < count) {
+            return null;
+        }
+        ByteBuffer[] slabs = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            slabs[i] = reserveSlab();
+        }
+        return new LargeChunk(slabs, count * slabSize);
+    }
+
+    /**
+     * Takes an empty slab from the pool, or reserves a new one if the maximum allows it.
+     */
+    private ByteBuffer reserveSlab() {
+        ByteBuffer memory = emptySlabs.poll();
+        if (memory == null) {
+            if (reservedBytes + slabSize > maximumBytes) {
+                return null;
+            }
+            memory = ByteBuffer.allocateDirect(slabSize);
+            reservedBytes += slabSize;
+        }
+        return memory;
+    }
+
+    /**
+     * Keeps an empty slab in the pool, or releases it to the garbage collector if the pool is full.
+     */
+    private void releaseSlab(ByteBuffer memory) {
+        if (emptySlabs.size() < MAX_EMPTY_SLABS) {
+            emptySlabs.push(memory);
+        } else {
+            reservedBytes -= slabSize;
+        }
+    }
+
+    private void linkPartial(Slab slab) {
+        Slab head = partialSlabs[slab.sizeClass];
+        slab.prev = null;
+        slab.next = head;
+        if (head != null) {
+            head.prev = slab;
+        }
+        partialSlabs[slab.sizeClass] = slab;
+    }
+
+    private void unlinkPartial(Slab slab) {
+        if (slab.prev == null) {
+            partialSlabs[slab.sizeClass] = slab.next;
+        } else {
+            slab.prev.next = slab.next;
+        }
+        if (slab.next != null) {
+            slab.next.prev = slab.prev;
+        }
+        slab.prev = null;
+        slab.next = null;
+    }
+
+    /**
+     * A slab cut into chunks of one size class. The chunks are carved from the start of the slab as needed, and
+     * freed chunks are kept in a stack linked through the chunks themselves.
+     */
+    private static final class Slab {
+        final ByteBuffer memory;
+        final int chunkSize;
+        final int chunkCount;
+        final int sizeClass;
+        /** The number of chunks carved so far. */
+        int carved;
+        int used;
+        Chunk free;
+        Slab prev;
+        Slab next;
+
+        Slab(ByteBuffer memory, int chunkSize, int sizeClass) {
+            this.memory = memory;
+            this.chunkSize = chunkSize;
+            this.chunkCount = memory.capacity() / chunkSize;
+            this.sizeClass = sizeClass;
+        }
+
+        boolean isFull() {
+            return used == chunkCount;
+        }
+
+        Chunk take() {
+            Chunk chunk = free;
+            if (chunk != null) {
+                free = chunk.nextFree;
+                chunk.nextFree = null;
+            } else {
+                chunk = new Chunk(this, memory, carved++ * chunkSize, chunkSize);
+            }
+            used++;
+            return chunk;
+        }
+
+        void give(Chunk chunk) {
+            chunk.nextFree = free;
+            free = chunk;
+            used--;
+        }
+    }
+
+    /**
+     * A range of direct memory, used as the handle of an off-heap value.
+     */
+    static class Chunk {
+        private final Slab slab;
+        private final ByteBuffer memory;
+        private final int offset;
+        final int capacity;
+        /** The number of bytes written at the start of the chunk. */
+        int length;
+        private Chunk nextFree;
+
+        Chunk(Slab slab, ByteBuffer memory, int offset, int capacity) {
+            this.slab = slab;
+            this.memory = memory;
+            this.offset = offset;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Copies bytes to the start of the chunk.
+         *
+         * @param bytes the bytes, no more than the capacity
+         */
+        void write(byte[] bytes) {
+            ByteBuffer target = memory.duplicate();
+            target.position(offset);
+            target.put(bytes);
+            this.length = bytes.length;
+        }
+
+        /**
+         * Gets a read-only view of the bytes written to the chunk.
+         *
+         * @return the buffer
+         */
+        ByteBuffer read() {
+            ByteBuffer view = memory.asReadOnlyBuffer();
+            view.limit(offset + length);
+            view.position(offset);
+            return view.slice();
+        }
+    }
+
+    /**
+     * A chunk spread over several whole slabs. Reading it copies the bytes back together on heap.
+     */
+    private static final class LargeChunk extends Chunk {
+        final ByteBuffer[] slabs;
+
+        LargeChunk(ByteBuffer[] slabs, int capacity) {
+            super(null, null, 0, capacity);
+            this.slabs = slabs;
+        }
+
+        @Override
+        void write(byte[] bytes) {
+            int offset = 0;
+            for (ByteBuffer slab : slabs) {
+                int count = Math.min(slab.capacity(), bytes.length - offset);
+                slab.duplicate().put(bytes, offset, count);
+                offset += count;
+            }
+            this.length = bytes.length;
+        }
+
+        @Override
+        ByteBuffer read() {
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            for (ByteBuffer slab : slabs) {
+                ByteBuffer view = slab.duplicate();
+                view.limit(Math.min(view.capacity(), copy.remaining()));
+                copy.put(view);
+            }
+            return copy.flip().asReadOnlyBuffer();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package fr.skogrine.utilitycm;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates the statistics of a cache into {@link LongAdder} counters, which stay cheap when many threads
+ * record at once because each contending thread updates its own cell. Caches that do not record statistics have
+ * no counter at all, so disabled statistics cost a single null check per operation.
+ */
+final class StatsCounter {
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder evictionWeight = new LongAdder();
+    private final LongAdder loadSuccessCount = new LongAdder();
+    private final LongAdder loadFailureCount = new LongAdder();
+    private final LongAdder totalLoadTime = new LongAdder();
+    private final LongAdder[] loadTimeHistogram = new LongAdder[CacheStats.LOAD_TIME_BUCKETS];
+
+    StatsCounter() {
+        for (int i = 0; i < loadTimeHistogram.length; i++) {
+            loadTimeHistogram[i] = new LongAdder();
+        }
+    }
+
+    void recordHits(int count) {
+        hitCount.add(count);
+    }
+
+    void recordMisses(int count) {
+        missCount.add(count);
+    }
+
+    void recordEviction(long weight) {
+        evictionCount.increment();
+        evictionWeight.add(weight);
+    }
+
+    void recordLoadSuccess(long loadTimeNanos) {
+        loadSuccessCount.increment();
+        recordLoadTime(loadTimeNanos);
+    }
+
+    void recordLoadFailure(long loadTimeNanos) {
+        loadFailureCount.increment();
+        recordLoadTime(loadTimeNanos);
+    }
+
+    private void recordLoadTime(long loadTimeNanos) {
+        long nanos = Math.max(0, loadTimeNanos);
+        totalLoadTime.add(nanos);
+        loadTimeHistogram[Long.SIZE - Long.numberOfLeadingZeros(nanos)].increment();
+    }
+
+    /**
+     * Takes a snapshot of the counters. Operations recorded concurrently may be partially included.
+     *
+     * @return the statistics
+     */
+    CacheStats snapshot() {
+        long[] histogram = new long[loadTimeHistogram.length];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = loadTimeHistogram[i].sum();
+        }
+        return new CacheStats(hitCount.sum(), missCount.sum(), evictionCount.sum(), evictionWeight.sum(),
+                loadSuccessCount.sum(), loadFailureCount.sum(), totalLoadTime.sum(), histogram);
+    }
+}
@@ -1,142 +1,500 @@
 package fr.skogrine.utilitycm;
 
-import fr.skogrine.utilitycm.annotation.NotFinished;
+import fr.skogrine.utilitycm.jfr.TaskRunEvent;
 
-import java.util.PriorityQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A class that manages and schedules tasks based on priority and delay.
  * Tasks with higher priority are executed before tasks with lower priority.
  * Tasks can be scheduled with a delay and a periodic interval.
+ *
+ * <p>Tasks are run by a fixed set of worker threads. Priorities are grouped into bands, one per priority level,
+ * rather than ordered in a global heap: a worker always takes a task from the highest band that holds one. Within
+ * a band, tasks submitted from other threads run in submission order, but not those submitted from a worker. Each
+ * worker has its own deque per band: tasks submitted from a worker, such as subtasks, are pushed onto it and
+ * popped last-in first-out while their data is still in cache, while idle workers steal the oldest tasks of the
+ * busy ones. Tasks submitted from other threads go through a
+ * shared queue per band. Delayed and periodic tasks wait in a {@link TaskScheduler} until they are due, then join
+ * the band of their priority.</p>
+ *
+ * <p>Strict priorities let a steady flow of urgent tasks starve the others. With {@link #setAging(long, TimeUnit)},
+ * a task that waited for the aging interval in its band moves up to the next one, so its effective priority rises
+ * with its wait time until it runs. The workers promote tasks from the heads of the bands, which hold their oldest
+ * tasks, as they look for work: nothing is ever sorted again. The time each task waited for a worker is recorded
+ * per priority, see {@link #getWaitTimeSnapshot(int)}.</p>
+ *
+ * <p>Example usage:</p>
+ * <pre>{@code
+ * TaskQueue taskQueue = new TaskQueue(4);
+ * taskQueue.addTask(9, () -> handleInteractiveRequest());
+ * taskQueue.addTask(1, () -> rebuildIndex());
+ * taskQueue.setAging(100, TimeUnit.MILLISECONDS);
+ * taskQueue.addTask(5, () -> flushMetrics(), 10, 10, TimeUnit.SECONDS);
+ * taskQueue.shutdown();
+ * }</pre>
  */
-@NotFinished
 public class TaskQueue {
-    private final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(1);
-    private final PriorityQueue<ScheduledTask> taskQueue = new PriorityQueue<>();
+
+    /** The default number of priority levels, for priorities from 0 to 9. */
+    public static final int DEFAULT_PRIORITY_LEVELS = 10;
+
+    private static final AtomicInteger QUEUE_COUNT = new AtomicInteger();
+
+    private final Worker[] workers;
+    private final Queue<Task>[] submissions;
+    /** The number of queued tasks per band, so that workers skip the empty bands without looking at deques. */
+    private final AtomicIntegerArray queuedPerBand;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger idle = new AtomicInteger();
+    /** The time waited before running, per priority band. */
+    private final Histogram[] waitTimes;
+    /** The aging interval in nanoseconds, or 0 if tasks never age. */
+    private volatile long agingNanos;
+    /** When the next promotion of aged tasks is due, so that a single worker promotes them at a time. */
+    private final AtomicLong nextAging = new AtomicLong();
+    private volatile boolean shutdown;
+    private volatile TaskScheduler scheduler;
+
+    /**
+     * Constructs a TaskQueue with a worker per available processor and the default priority levels.
+     */
+    public TaskQueue() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a TaskQueue with the default priority levels.
+     *
+     * @param workers the number of worker threads
+     */
+    public TaskQueue(int workers) {
+        this(workers, DEFAULT_PRIORITY_LEVELS);
+    }
+
+    /**
+     * Constructs a TaskQueue.
+     *
+     * @param workers the number of worker threads
+     * @param priorityLevels the number of priority levels: priorities go from 0 to {@code priorityLevels - 1}, and
+     *                       priorities outside of that range are clamped into it
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TaskQueue(int workers, int priorityLevels) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("Workers must be positive");
+        }
+        if (priorityLevels <= 0) {
+            throw new IllegalArgumentException("Priority levels must be positive");
+        }
+        this.submissions = new Queue[priorityLevels];
+        for (int band = 0; band < priorityLevels; band++) {
+            submissions[band] = new ConcurrentLinkedQueue<>();
+        }
+        this.queuedPerBand = new AtomicIntegerArray(priorityLevels);
+        this.waitTimes = new Histogram[priorityLevels];
+        for (int band = 0; band < priorityLevels; band++) {
+            waitTimes[band] = new Histogram();
+        }
+        this.workers = new Worker[workers];
+        int id = QUEUE_COUNT.incrementAndGet();
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = new Worker("TaskQueue-" + id + "-worker-" + i, priorityLevels);
+        }
+        for (Worker worker : this.workers) {
+            worker.start();
+        }
+    }
 
     /**
      * Adds a task to the queue with the specified priority.
-     * The task will be executed immediately without any delay.
+     * The task will be executed once, as soon as a worker is free and no task of higher priority is waiting.
      *
      * @param priority the priority of the task; higher values indicate higher priority
      * @param task     the task to be executed
+     * @throws IllegalStateException if the queue is shut down
      */
-    public synchronized void addTask(int priority, Runnable task) {
-        addTask(priority, task, 0, 1, TimeUnit.MILLISECONDS);
+    public void addTask(int priority, Runnable task) {
+        submit(new Task(priority, band(priority), Objects.requireNonNull(task, "task"), null));
     }
 
     /**
      * Adds a task to the queue with the specified priority, delay, and periodic interval.
      * The task will be executed after the specified delay and then periodically
-     * based on the specified period.
+     * based on the specified period. A run that is due while the previous one is still queued or running is
+     * skipped.
      *
      * @param priority the priority of the task; higher values indicate higher priority
      * @param task     the task to be executed
      * @param delay    the delay before the task is first executed
-     * @param period   the period between successive executions of the task
+     * @param period   the period between successive executions of the task, or 0 to execute it once
      * @param timeUnit the time unit for delay and period
+     * @throws IllegalStateException if the queue is shut down
      */
-    public synchronized void addTask(int priority, Runnable task, long delay, long period, TimeUnit timeUnit) {
+    public void addTask(int priority, Runnable task, long delay, long period, TimeUnit timeUnit) {
         if (delay < 0 || period < 0) {
             throw new IllegalArgumentException("Delay and period must be non-negative");
         }
+        Objects.requireNonNull(task, "task");
         if (period == 0) {
-            throw new IllegalArgumentException("Period must be positive if specified");
+            if (delay == 0) {
+                addTask(priority, task);
+            } else {
+                Task oneShot = new Task(priority, band(priority), task, null);
+                scheduler().schedule(() -> submitIfRunning(oneShot), delay, timeUnit);
+            }
+            return;
         }
+        // The same task is queued again at every period, unless its previous run is not over
+        Task periodic = new Task(priority, band(priority), task, new AtomicBoolean());
+        scheduler().scheduleAtFixedRate(() -> {
+            if (periodic.pending.compareAndSet(false, true)) {
+                submitIfRunning(periodic);
+            }
+        }, delay, period, timeUnit, TaskScheduler.OverlapPolicy.SKIP);
+    }
 
-        ScheduledTask scheduledTask = new ScheduledTask(priority, task, delay, period, timeUnit);
-        taskQueue.add(scheduledTask);
-        scheduleNextTask();
+    /**
+     * Sets the aging interval: a task that waited that long in its priority band moves up to the next one, so that
+     * low priority tasks eventually run even while higher priority tasks keep coming. Aging is disabled by default.
+     *
+     * @param interval the aging interval, or 0 to disable aging
+     * @param unit the time unit of the interval
+     * @return this TaskQueue
+     */
+    public TaskQueue setAging(long interval, TimeUnit unit) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Aging interval must be non-negative");
+        }
+        nextAging.set(System.nanoTime());
+        this.agingNanos = unit.toNanos(interval);
+        return this;
+    }
+
+    /**
+     * Gets the aging interval.
+     *
+     * @param unit the time unit of the result
+     * @return the aging interval, or 0 if aging is disabled
+     */
+    public long getAging(TimeUnit unit) {
+        return unit.convert(agingNanos, TimeUnit.NANOSECONDS);
     }
 
     /**
-     * Schedules the next task in the queue to be executed.
-     * The task with the highest priority is selected and scheduled.
+     * Gets the distribution of the time tasks of a priority waited for a worker, from their submission, or from
+     * the time they became due for delayed and periodic tasks, until they started to run. Promoted tasks count for
+     * the priority they were added with.
+     *
+     * @param priority the priority, clamped like the priority of tasks
+     * @return the wait times, in nanoseconds
+     */
+    public Histogram.Snapshot getWaitTimeSnapshot(int priority) {
+        return waitTimes[band(priority)].snapshot();
+    }
+
+    /**
+     * Gets the number of tasks waiting for a worker.
+     *
+     * @return the number of queued tasks
      */
-    private synchronized void scheduleNextTask() {
-        ScheduledTask task = taskQueue.poll();
-        if (task != null) {
-            executorService.scheduleAtFixedRate(task, task.getDelay(), task.getPeriod(), task.getTimeUnit());
+    public int getQueuedTaskCount() {
+        return queued.get();
+    }
+
+    /**
+     * Stops accepting tasks and cancels the delayed and periodic ones. The workers run the tasks already queued,
+     * then stop.
+     */
+    public void shutdown() {
+        shutdown = true;
+        TaskScheduler current = scheduler;
+        if (current != null) {
+            current.cancel();
+        }
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker);
         }
     }
 
     /**
-     * A private inner class representing a task with a specified priority,
-     * delay, and periodic interval.
+     * Waits for the workers to stop after a {@link #shutdown()}.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the time unit of the timeout
+     * @return true if every worker stopped, false if the timeout elapsed first
+     * @throws InterruptedException if the current thread is interrupted while waiting
      */
-    private static class ScheduledTask extends java.util.TimerTask implements Comparable<ScheduledTask> {
-        private final int priority;
-        private final Runnable task;
-        private final long delay;
-        private final long period;
-        private final TimeUnit timeUnit;
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Worker worker : workers) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                TimeUnit.NANOSECONDS.timedJoin(worker, remaining);
+            }
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        /**
-         * Constructs a ScheduledTask with the specified priority, task, delay, period, and time unit.
-         *
-         * @param priority the priority of the task; higher values indicate higher priority
-         * @param task     the task to be executed
-         * @param delay    the delay before the task is first executed
-         * @param period   the period between successive executions of the task
-         * @param timeUnit the time unit for delay and period
-         */
-        public ScheduledTask(int priority, Runnable task, long delay, long period, TimeUnit timeUnit) {
-            this.priority = priority;
-            this.task = task;
-            this.delay = delay;
-            this.period = period;
-            this.timeUnit = timeUnit;
+    private int band(int priority) {
+        return Math.max(0, Math.min(submissions.length - 1, priority));
+    }
+
+    private TaskScheduler scheduler() {
+        TaskScheduler current = scheduler;
+        if (current == null) {
+            synchronized (this) {
+                current = scheduler;
+                if (current == null) {
+                    // Due tasks are only moved into their band, which the timer thread can do itself
+                    current = new TaskScheduler(1, TimeUnit.MILLISECONDS, Runnable::run);
+                    scheduler = current;
+                }
+            }
+        }
+        if (shutdown) {
+            current.cancel();
+            throw new IllegalStateException("The task queue is shut down");
         }
+        return current;
+    }
 
-        /**
-         * Gets the delay before the task is first executed, in milliseconds.
-         *
-         * @return the delay in milliseconds
-         */
-        public long getDelay() {
-            return timeUnit.toMillis(delay);
+    private void submit(Task task) {
+        if (shutdown) {
+            throw new IllegalStateException("The task queue is shut down");
+        }
+        task.enqueueTime = System.nanoTime();
+        task.bandTime = task.enqueueTime;
+        Thread current = Thread.currentThread();
+        if (current instanceof Worker && ((Worker) current).owner() == this) {
+            ((Worker) current).deques[task.band].offerLast(task);
+        } else {
+            submissions[task.band].offer(task);
         }
+        queuedPerBand.incrementAndGet(task.band);
+        queued.incrementAndGet();
+        signalWork();
+    }
 
-        /**
-         * Gets the period between successive executions of the task, in milliseconds.
-         *
-         * @return the period in milliseconds
-         */
-        public long getPeriod() {
-            return timeUnit.toMillis(period);
+    /**
+     * Submits a task that became due, unless the queue was shut down meanwhile. Called by the timer thread of the
+     * scheduler, which must not be stopped by an exception.
+     */
+    private void submitIfRunning(Task task) {
+        try {
+            submit(task);
+        } catch (IllegalStateException e) {
+            // Shut down concurrently, the task is dropped like the other delayed ones
         }
+    }
 
-        /**
-         * Gets the time unit used for delay and period.
-         *
-         * @return the time unit
-         */
-        public TimeUnit getTimeUnit() {
-            return timeUnit;
+    /**
+     * Moves the tasks that waited for the aging interval in their band up to the next one, unless another worker
+     * did so recently. The bands are processed from the top down, so that a task moves up one band at a time.
+     */
+    private void promoteAgedTasks(long now, long aging) {
+        long next = nextAging.get();
+        // Promoting several times per interval keeps the effective priority close to the wait time
+        if (now - next < 0 || !nextAging.compareAndSet(next, now + aging / 4)) {
+            return;
+        }
+        for (int band = submissions.length - 2; band >= 0; band--) {
+            if (queuedPerBand.get(band) == 0) {
+                continue;
+            }
+            promoteAgedTasks(submissions[band], band, now, aging);
+            for (Worker worker : workers) {
+                promoteAgedTasks(worker.deques[band], band, now, aging);
+            }
+        }
+    }
+
+    private void promoteAgedTasks(Queue<Task> lane, int band, long now, long aging) {
+        Task task;
+        // Tasks are queued in order, so the aged ones are at the head
+        while ((task = lane.peek()) != null && now - task.bandTime >= aging) {
+            if (!lane.remove(task)) {
+                // Taken by a worker meanwhile
+                continue;
+            }
+            task.bandTime += aging;
+            submissions[band + 1].offer(task);
+            queuedPerBand.incrementAndGet(band + 1);
+            queuedPerBand.decrementAndGet(band);
+        }
+    }
+
+    /**
+     * Wakes up an idle worker, if any. Workers count themselves idle before checking for queued tasks one last
+     * time, so a task queued meanwhile is either seen by that check or followed by this wake-up.
+     */
+    private void signalWork() {
+        if (idle.get() == 0) {
+            return;
+        }
+        for (Worker worker : workers) {
+            if (worker.parked) {
+                worker.parked = false;
+                LockSupport.unpark(worker);
+                return;
+            }
+        }
+    }
+
+    /**
+     * A task with its priority band.
+     */
+    private static final class Task {
+        final int priority;
+        final int band;
+        final Runnable runnable;
+        /** Set while a periodic task is queued or running, null for other tasks. */
+        final AtomicBoolean pending;
+        volatile long enqueueTime;
+        /** When the task entered the band it is queued in, as far as aging is concerned. */
+        long bandTime;
+
+        Task(int priority, int band, Runnable runnable, AtomicBoolean pending) {
+            this.priority = priority;
+            this.band = band;
+            this.runnable = runnable;
+            this.pending = pending;
+        }
+    }
+
+    /**
+     * A worker thread with its own deque per band.
+     */
+    private final class Worker extends Thread {
+        final ConcurrentLinkedDeque<Task>[] deques;
+        volatile boolean parked;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Worker(String name, int priorityLevels) {
+            super(name);
+            this.deques = new ConcurrentLinkedDeque[priorityLevels];
+            for (int band = 0; band < priorityLevels; band++) {
+                deques[band] = new ConcurrentLinkedDeque<>();
+            }
+        }
+
+        TaskQueue owner() {
+            return TaskQueue.this;
         }
 
-        /**
-         * Executes the task.
-         */
         @Override
         public void run() {
-            task.run();
+            while (true) {
+                Task task = poll();
+                if (task != null) {
+                    if (queued.get() > 0) {
+                        // More work is waiting, let another worker help
+                        signalWork();
+                    }
+                    execute(task);
+                    continue;
+                }
+                // The count may briefly be negative, when a task is taken before its submitter counted it
+                if (shutdown && queued.get() <= 0) {
+                    return;
+                }
+                parked = true;
+                idle.incrementAndGet();
+                if (queued.get() <= 0 && !shutdown) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+                idle.decrementAndGet();
+            }
         }
 
         /**
-         * Compares this task with another based on priority.
-         *
-         * @param other the other task to compare with
-         * @return a negative integer, zero, or a positive integer as this task's priority
-         *         is greater than, equal to, or less than the other task's priority
+         * Takes a task from the highest band holding one: from this worker's deque first, newest first, then from
+         * the shared queue, then from the other workers, oldest first. With aging, a task of the shared queue that
+         * waited for the aging interval comes first, as tasks of the top band cannot be promoted any further.
          */
-        @Override
-        public int compareTo(ScheduledTask other) {
-            return Integer.compare(other.priority, this.priority);
+        private Task poll() {
+            long aging = agingNanos;
+            long now = aging > 0 ? System.nanoTime() : 0;
+            if (aging > 0) {
+                promoteAgedTasks(now, aging);
+            }
+            for (int band = deques.length - 1; band >= 0; band--) {
+                if (queuedPerBand.get(band) == 0) {
+                    continue;
+                }
+                Task task = aging > 0 ? pollAged(submissions[band], now, aging) : null;
+                if (task == null) {
+                    task = deques[band].pollLast();
+                }
+                if (task == null) {
+                    task = submissions[band].poll();
+                }
+                if (task == null) {
+                    task = steal(band);
+                }
+                if (task != null) {
+                    queuedPerBand.decrementAndGet(band);
+                    queued.decrementAndGet();
+                    return task;
+                }
+            }
+            return null;
+        }
+
+        private Task pollAged(Queue<Task> lane, long now, long aging) {
+            Task head = lane.peek();
+            return head != null && now - head.bandTime >= aging && lane.remove(head) ? head : null;
+        }
+
+        private Task steal(int band) {
+            int start = ThreadLocalRandom.current().nextInt(workers.length);
+            for (int i = 0; i < workers.length; i++) {
+                Worker victim = workers[(start + i) % workers.length];
+                if (victim != this) {
+                    Task task = victim.deques[band].pollFirst();
+                    if (task != null) {
+                        return task;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void execute(Task task) {
+            long start = System.nanoTime();
+            waitTimes[task.band].record(Math.max(0, start - task.enqueueTime));
+            TaskRunEvent event = new TaskRunEvent();
+            event.begin();
+            try {
+                task.runnable.run();
+            } catch (Throwable e) {
+                // A failing task must not take its worker down
+                getUncaughtExceptionHandler().uncaughtException(this, e);
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.priority = task.priority;
+                    event.queueDelay = Math.max(0, start - task.enqueueTime);
+                    event.commit();
+                }
+                if (task.pending != null) {
+                    task.pending.set(false);
+                }
+            }
         }
     }
 }
-
@@ -1,7 +1,19 @@
 package fr.skogrine.utilitycm;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * TaskScheduler is an advanced task scheduling system that supports cron-like scheduling, delayed tasks, and repeated tasks.
@@ -12,16 +24,122 @@ import java.util.TimerTask;
  * scheduler.schedule(() -> System.out.println("Task executed!"), 1000);
  * scheduler.scheduleAtFixedRate(() -> System.out.println("Repeated task!"), 0, 1000);
  * }</pre>
+ *
+ * <p>Tasks are kept in a hierarchical timing wheel, so scheduling and cancelling are O(1) whatever the number of
+ * pending tasks: millions of request deadlines that are mostly cancelled before they fire cost little more than
+ * their handles. A timer thread advances the wheel once per tick and hands the tasks that are due to an executor,
+ * so a slow task delays neither the timer nor the other tasks. A task runs at most one tick after it is due: a
+ * coarser tick wakes the timer thread less often, a finer one is more precise. While no task is scheduled, the
+ * timer thread sleeps until one is added, so an idle scheduler costs no CPU.</p>
+ * <pre>{@code
+ * TaskScheduler scheduler = new TaskScheduler(10, TimeUnit.MILLISECONDS, workers);
+ * TaskScheduler.ScheduledTask deadline = scheduler.schedule(request::timeOut, 2, TimeUnit.SECONDS);
+ * request.onComplete(deadline::cancel);
+ * }</pre>
+ *
+ * <p>Tasks doing blocking I/O can run on virtual threads, one per execution, so thousands of them can block at
+ * once without as many platform threads. The {@link OverlapPolicy} of a repeated task tells what happens when it
+ * is due while its previous execution is still running:</p>
+ * <pre>{@code
+ * TaskScheduler scheduler = TaskScheduler.withVirtualThreads();
+ * scheduler.scheduleAtFixedRate(this::pollRemote, 0, 1, TimeUnit.SECONDS, TaskScheduler.OverlapPolicy.SKIP);
+ * }</pre>
+ *
+ * <p>Tasks can also follow a {@link CronExpression}. A cron task sits in the wheel at its next fire time like any
+ * other task, so hundreds of thousands of them cost nothing between their fire times:</p>
+ * <pre>{@code
+ * scheduler.schedule("0 2 * * *", this::compactDatabase);
+ * }</pre>
  */
 public class TaskScheduler {
 
-    private final Timer timer;
+    private static final int WHEEL_SIZE = 512;
+    private static final int WHEEL_LEVELS = 4;
+    private static final AtomicLong THREAD_COUNT = new AtomicLong();
+
+    private final long tickNanos;
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private final TimerWheel<Runnable> wheel;
+    private final Queue<Task> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Task> cancelled = new ConcurrentLinkedQueue<>();
+    private final Thread timerThread;
+    private volatile boolean running = true;
 
     /**
-     * Constructs a TaskScheduler.
+     * Constructs a TaskScheduler with a tick of one millisecond, running its tasks on its own threads.
      */
     public TaskScheduler() {
-        this.timer = new Timer();
+        this(1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructs a TaskScheduler running its tasks on its own threads.
+     *
+     * @param tickDuration the granularity of the scheduler
+     * @param unit the time unit of the tick duration
+     */
+    public TaskScheduler(long tickDuration, TimeUnit unit) {
+        this(tickDuration, unit, null);
+    }
+
+    /**
+     * Constructs a TaskScheduler.
+     *
+     * @param tickDuration the granularity of the scheduler
+     * @param unit the time unit of the tick duration
+     * @param executor runs the tasks that are due, or null to run them on threads owned by the scheduler
+     */
+    public TaskScheduler(long tickDuration, TimeUnit unit, Executor executor) {
+        this(tickDuration, unit, executor != null ? executor : Executors.newCachedThreadPool(runnable ->
+                new Thread(runnable, "TaskScheduler-worker-" + THREAD_COUNT.incrementAndGet())), executor == null);
+    }
+
+    private TaskScheduler(long tickDuration, TimeUnit unit, Executor executor, boolean ownsExecutor) {
+        this.tickNanos = unit.toNanos(tickDuration);
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive");
+        }
+        this.ownsExecutor = ownsExecutor;
+        this.executor = executor;
+        long startTime = System.nanoTime();
+        this.wheel = new TimerWheel<>(startTime, tickNanos, WHEEL_SIZE, WHEEL_LEVELS);
+        this.timerThread = new Thread(() -> runTimer(startTime),
+                "TaskScheduler-timer-" + THREAD_COUNT.incrementAndGet());
+        timerThread.start();
+    }
+
+    /**
+     * Creates a TaskScheduler with a tick of one millisecond, running every execution of its tasks on a new
+     * virtual thread.
+     *
+     * @return the scheduler
+     * @throws UnsupportedOperationException if the runtime does not support virtual threads, before Java 21
+     */
+    public static TaskScheduler withVirtualThreads() {
+        return withVirtualThreads(1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a TaskScheduler running every execution of its tasks on a new virtual thread. The timer thread
+     * only keeps time.
+     *
+     * @param tickDuration the granularity of the scheduler
+     * @param unit the time unit of the tick duration
+     * @return the scheduler
+     * @throws UnsupportedOperationException if the runtime does not support virtual threads, before Java 21
+     */
+    public static TaskScheduler withVirtualThreads(long tickDuration, TimeUnit unit) {
+        ExecutorService executor;
+        try {
+            // Looked up reflectively, the library itself does not require Java 21
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later", e);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create a virtual thread executor", e);
+        }
+        return new TaskScheduler(tickDuration, unit, executor, true);
     }
 
     /**
@@ -29,14 +147,56 @@ public class TaskScheduler {
      *
      * @param task the task to be executed
      * @param delay the delay in milliseconds
+     * @return the handle of the task
      */
-    public void schedule(Runnable task, long delay) {
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                task.run();
-            }
-        }, delay);
+    public ScheduledTask schedule(Runnable task, long delay) {
+        return schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules a one-time task to be executed after a specified delay.
+     *
+     * @param task the task to be executed
+     * @param delay the delay
+     * @param unit the time unit of the delay
+     * @return the handle of the task
+     */
+    public ScheduledTask schedule(Runnable task, long delay, TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Delay must not be negative");
+        }
+        return add(new Task(task, System.nanoTime() + unit.toNanos(delay), 0, OverlapPolicy.QUEUE));
+    }
+
+    /**
+     * Schedules a task to be executed whenever a cron expression fires, in the default time zone.
+     *
+     * @param cronExpression the cron expression, as accepted by {@link CronExpression#parse(String)}
+     * @param task the task to be executed
+     * @return the handle of the task
+     * @throws IllegalArgumentException if the expression is invalid or never fires
+     */
+    public ScheduledTask schedule(String cronExpression, Runnable task) {
+        return schedule(CronExpression.parse(cronExpression), ZoneId.systemDefault(), task);
+    }
+
+    /**
+     * Schedules a task to be executed whenever a cron expression fires. An execution still running when the
+     * expression fires again makes the task skip that fire time. A task that throws an exception is not run
+     * again.
+     *
+     * @param cron the cron expression
+     * @param zone the time zone in which the expression is evaluated
+     * @param task the task to be executed
+     * @return the handle of the task
+     * @throws IllegalArgumentException if the expression never fires
+     */
+    public ScheduledTask schedule(CronExpression cron, ZoneId zone, Runnable task) {
+        CronTask cronTask = new CronTask(task, cron, zone);
+        if (!cronTask.advance()) {
+            throw new IllegalArgumentException("Cron expression never fires: " + cron);
+        }
+        return add(cronTask);
     }
 
     /**
@@ -45,20 +205,325 @@ public class TaskScheduler {
      * @param task the task to be executed
      * @param initialDelay the initial delay in milliseconds
      * @param period the period between successive executions in milliseconds
+     * @return the handle of the task
      */
-    public void scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                task.run();
-            }
-        }, initialDelay, period);
+    public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+        return scheduleAtFixedRate(task, initialDelay, period, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Cancels the scheduler and all scheduled tasks.
+     * Schedules a task to be executed repeatedly at a fixed rate, with the {@link OverlapPolicy#QUEUE QUEUE}
+     * policy: an execution that runs late is followed by the next one at the first tick after it ends, never
+     * concurrently with it. A task that throws an exception is not run again.
+     *
+     * @param task the task to be executed
+     * @param initialDelay the initial delay
+     * @param period the period between successive executions
+     * @param unit the time unit of the delay and the period
+     * @return the handle of the task
+     */
+    public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        return scheduleAtFixedRate(task, initialDelay, period, unit, OverlapPolicy.QUEUE);
+    }
+
+    /**
+     * Schedules a task to be executed repeatedly at a fixed rate. A task that throws an exception is not run
+     * again.
+     *
+     * @param task the task to be executed
+     * @param initialDelay the initial delay
+     * @param period the period between successive executions
+     * @param unit the time unit of the delay and the period
+     * @param overlapPolicy what to do when the task is due while its previous execution is still running
+     * @return the handle of the task
+     */
+    public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit,
+                                             OverlapPolicy overlapPolicy) {
+        if (initialDelay < 0) {
+            throw new IllegalArgumentException("Delay must not be negative");
+        }
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive");
+        }
+        Objects.requireNonNull(overlapPolicy, "overlapPolicy");
+        return add(new Task(task, System.nanoTime() + unit.toNanos(initialDelay), unit.toNanos(period),
+                overlapPolicy));
+    }
+
+    /**
+     * Cancels the scheduler and all scheduled tasks. Tasks already running are left to finish.
      */
     public void cancel() {
-        timer.cancel();
+        running = false;
+        LockSupport.unpark(timerThread);
+        if (ownsExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    private ScheduledTask add(Task task) {
+        Objects.requireNonNull(task.item, "task");
+        if (!running) {
+            throw new IllegalStateException("The scheduler is cancelled");
+        }
+        added.add(task);
+        if (!running) {
+            // The timer thread may have stopped before seeing the task
+            Task.STATE.compareAndSet(task, Task.WAITING, Task.CANCELLED);
+        }
+        LockSupport.unpark(timerThread);
+        return task;
+    }
+
+    /**
+     * The loop of the timer thread, the only thread touching the wheel: it links the tasks added since the last
+     * tick, unlinks the cancelled ones, and dispatches the tasks that are due.
+     */
+    private void runTimer(long startTime) {
+        long tick = 0;
+        while (running) {
+            if (wheel.isEmpty() && added.isEmpty()) {
+                // Nothing can fire: sleep until a task is added rather than waking every tick
+                LockSupport.park(this);
+                tick = (System.nanoTime() - startTime) / tickNanos;
+                continue;
+            }
+            long deadline = startTime + ++tick * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) - deadline < 0 && running) {
+                LockSupport.parkNanos(this, deadline - now);
+            }
+            if (now - deadline >= tickNanos) {
+                // Skip the ticks missed while the thread was not scheduled
+                tick = (now - startTime) / tickNanos;
+            }
+            Task task;
+            while ((task = added.poll()) != null) {
+                if (task.state == Task.WAITING) {
+                    wheel.schedule(task);
+                }
+            }
+            while ((task = cancelled.poll()) != null) {
+                wheel.deschedule(task);
+            }
+            wheel.advance(now, this::dispatch);
+        }
+        // Tasks left waiting would never be done: cancel them, including the ones added while the loop ended
+        wheel.clear(timer -> Task.STATE.compareAndSet((Task) timer, Task.WAITING, Task.CANCELLED));
+        Task task;
+        while ((task = added.poll()) != null) {
+            Task.STATE.compareAndSet(task, Task.WAITING, Task.CANCELLED);
+        }
+        cancelled.clear();
+    }
+
+    private void dispatch(TimerWheel.Timer<Runnable> timer) {
+        Task task = (Task) timer;
+        if (task.period > 0 && task.overlapPolicy != OverlapPolicy.QUEUE) {
+            dispatchOverlapping(task);
+            return;
+        }
+        if (!Task.STATE.compareAndSet(task, Task.WAITING, Task.RUNNING)) {
+            return;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.state = Task.DONE;
+        }
+    }
+
+    /**
+     * Dispatches a repeated task that stays in the wheel while it runs: the timer thread reschedules it right
+     * away, and either skips the execution or starts another one if the previous one is still running.
+     */
+    private void dispatchOverlapping(Task task) {
+        if (task.state != Task.WAITING) {
+            return;
+        }
+        task.time += task.period;
+        wheel.schedule(task);
+        if (task.overlapPolicy == OverlapPolicy.SKIP) {
+            if (!Task.ACTIVE.compareAndSet(task, 0, 1)) {
+                return;
+            }
+        } else {
+            Task.ACTIVE.incrementAndGet(task);
+        }
+        try {
+            executor.execute(task::runOverlapping);
+        } catch (RejectedExecutionException e) {
+            Task.ACTIVE.decrementAndGet(task);
+        }
+    }
+
+    /**
+     * What a repeated task does when it is due while its previous execution is still running.
+     */
+    public enum OverlapPolicy {
+        /** Skips the execution that is due, the next one is at the following period. */
+        SKIP,
+        /** Runs the execution that is due as soon as the previous one ends. */
+        QUEUE,
+        /** Runs the execution that is due concurrently with the previous one. */
+        CONCURRENT
+    }
+
+    /**
+     * The handle of a scheduled task.
+     */
+    public interface ScheduledTask {
+
+        /**
+         * Cancels the task. A task that is running is left to finish, but a repeated task is not run again.
+         *
+         * @return true if the task was cancelled, false if it already completed or was cancelled before
+         */
+        boolean cancel();
+
+        /**
+         * Checks whether the task was cancelled.
+         *
+         * @return true if the task was cancelled
+         */
+        boolean isCancelled();
+
+        /**
+         * Checks whether the task will not run anymore, because it completed, failed or was cancelled.
+         *
+         * @return true if the task is done
+         */
+        boolean isDone();
+    }
+
+    /**
+     * A task linked into the wheel, whose state tells the timer thread and the workers which of them owns it.
+     */
+    private class Task extends TimerWheel.Timer<Runnable> implements ScheduledTask, Runnable {
+        static final int WAITING = 0;
+        static final int RUNNING = 1;
+        static final int CANCELLED = 2;
+        static final int DONE = 3;
+        static final AtomicIntegerFieldUpdater<Task> STATE = AtomicIntegerFieldUpdater.newUpdater(Task.class,
+                "state");
+        static final AtomicIntegerFieldUpdater<Task> ACTIVE = AtomicIntegerFieldUpdater.newUpdater(Task.class,
+                "active");
+
+        final long period;
+        final OverlapPolicy overlapPolicy;
+        volatile int state;
+        /** The number of running executions, for the policies that keep the task in the wheel while it runs. */
+        volatile int active;
+
+        Task(Runnable task, long time, long period, OverlapPolicy overlapPolicy) {
+            super(task);
+            this.time = time;
+            this.period = period;
+            this.overlapPolicy = overlapPolicy;
+        }
+
+        void runOverlapping() {
+            boolean completed = false;
+            try {
+                item.run();
+                completed = true;
+            } finally {
+                ACTIVE.decrementAndGet(this);
+                if (!completed && STATE.compareAndSet(this, WAITING, DONE)) {
+                    cancelled.add(this);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean completed = false;
+            try {
+                item.run();
+                completed = true;
+            } finally {
+                // Only the worker sees the task while it runs, the timer thread reads the time once it is added
+                if (completed && advance()) {
+                    if (STATE.compareAndSet(this, RUNNING, WAITING)) {
+                        added.add(this);
+                        LockSupport.unpark(timerThread);
+                        if (!running) {
+                            // The timer thread may have stopped before seeing the task
+                            STATE.compareAndSet(this, WAITING, CANCELLED);
+                        }
+                    }
+                } else {
+                    STATE.compareAndSet(this, RUNNING, DONE);
+                }
+            }
+        }
+
+        /**
+         * Moves the time of a repeated task to its next execution.
+         *
+         * @return false if the task does not run again
+         */
+        boolean advance() {
+            if (period <= 0) {
+                return false;
+            }
+            time += period;
+            return true;
+        }
+
+        @Override
+        public boolean cancel() {
+            for (;;) {
+                int current = state;
+                if (current == CANCELLED || current == DONE) {
+                    return false;
+                }
+                if (STATE.compareAndSet(this, current, CANCELLED)) {
+                    if (current == WAITING) {
+                        cancelled.add(this);
+                    }
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        @Override
+        public boolean isDone() {
+            return state == CANCELLED || state == DONE;
+        }
+    }
+
+    /**
+     * A task run whenever a cron expression fires.
+     */
+    private final class CronTask extends Task {
+        private final CronExpression cron;
+        private final ZoneId zone;
+        private ZonedDateTime fireTime;
+
+        CronTask(Runnable task, CronExpression cron, ZoneId zone) {
+            super(task, 0, 0, OverlapPolicy.QUEUE);
+            this.cron = Objects.requireNonNull(cron, "cron");
+            this.zone = Objects.requireNonNull(zone, "zone");
+        }
+
+        @Override
+        boolean advance() {
+            ZonedDateTime now = ZonedDateTime.now(zone);
+            // Never before the last fire time, in case the wheel fired a little ahead of the wall clock
+            ZonedDateTime after = fireTime == null || now.isAfter(fireTime) ? now : fireTime;
+            ZonedDateTime next = cron.next(after);
+            if (next == null) {
+                return false;
+            }
+            fireTime = next;
+            time = System.nanoTime() + ChronoUnit.NANOS.between(now, next);
+            return true;
+        }
     }
 }
@@ -0,0 +1,255 @@
+package fr.skogrine.utilitycm;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timing wheel holding timers ordered by their deadline.
+ *
+ * <p>Level 0 is a ring of buckets that each cover one tick; every higher level has buckets covering a whole
+ * revolution of the level below. Scheduling and cancelling a timer only link or unlink it from the doubly-linked
+ * list of its bucket, which is O(1). Advancing the wheel visits the buckets whose time has passed: timers that
+ * are due are handed to the caller, the others are cascaded down to a finer level. Timers further away than the
+ * top level can represent are parked in the top level and cascaded again when their bucket comes around.</p>
+ *
+ * <p>A timer fires at most one tick after its deadline, and only when {@link #advance(long, Consumer)} is called.
+ * All times are in nanoseconds from the same origin as {@link System#nanoTime()}. This class is not
+ * thread-safe.</p>
+ *
+ * @param <T> the type of the items attached to the timers
+ */
+final class TimerWheel<T> {
+
+    private final Timer<T>[][] wheel;
+    private final long[] spans;
+    private final long origin;
+    /** The time of the last advance, relative to the origin. */
+    private long elapsed;
+    /** The number of timers scheduled. */
+    private int size;
+
+    /**
+     * Constructs a timing wheel.
+     *
+     * @param startTime the current time, in nanoseconds
+     * @param tickNanos the duration covered by a bucket of the finest level
+     * @param wheelSize the number of buckets per level, a power of two
+     * @param levels the number of levels
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(long startTime, long tickNanos, int wheelSize, int levels) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive");
+        }
+        if (wheelSize < 2 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of two greater than 1");
+        }
+        if (levels <= 0) {
+            throw new IllegalArgumentException("Levels must be positive");
+        }
+        this.origin = startTime;
+        this.wheel = new Timer[levels][wheelSize];
+        this.spans = new long[levels + 1];
+        long span = tickNanos;
+        for (int level = 0; level <= levels; level++) {
+            spans[level] = span;
+            span = span > Long.MAX_VALUE / wheelSize ? Long.MAX_VALUE : span * wheelSize;
+        }
+        for (Timer<T>[] buckets : wheel) {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = Timer.sentinel();
+            }
+        }
+    }
+
+    /**
+     * Schedules a timer to fire at its {@link Timer#time}. The timer must not be scheduled already.
+     *
+     * @param timer the timer
+     */
+    void schedule(Timer<T> timer) {
+        link(findBucket(timer.time - origin), timer);
+    }
+
+    /**
+     * Moves an already scheduled timer after its {@link Timer#time} was changed.
+     *
+     * @param timer the timer
+     */
+    void reschedule(Timer<T> timer) {
+        unlink(timer);
+        schedule(timer);
+    }
+
+    /**
+     * Cancels a timer. Cancelling a timer that is not scheduled does nothing.
+     *
+     * @param timer the timer
+     */
+    void deschedule(Timer<T> timer) {
+        unlink(timer);
+    }
+
+    /**
+     * Checks whether no timer is scheduled.
+     *
+     * @return true if the wheel is empty
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Cancels every timer.
+     */
+    void clear() {
+        clear(timer -> { });
+    }
+
+    /**
+     * Cancels every timer and hands each of them to the consumer once it is descheduled.
+     *
+     * @param removed the consumer of the timers cancelled
+     */
+    void clear(Consumer<Timer<T>> removed) {
+        for (Timer<T>[] buckets : wheel) {
+            for (Timer<T> sentinel : buckets) {
+                while (sentinel.next != sentinel) {
+                    Timer<T> timer = sentinel.next;
+                    unlink(timer);
+                    removed.accept(timer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Advances the wheel to the current time and hands every timer that is due to the consumer. The timer is
+     * descheduled before the consumer sees it, so the consumer may schedule it again or update other timers.
+     *
+     * @param currentTime the current time, in nanoseconds
+     * @param expired the consumer of the timers that are due
+     */
+    void advance(long currentTime, Consumer<Timer<T>> expired) {
+        long previous = elapsed;
+        long current = currentTime - origin;
+        if (current <= previous) {
+            return;
+        }
+        elapsed = current;
+        for (int level = 0; level < wheel.length; level++) {
+            long previousTicks = previous / spans[level];
+            long delta = current / spans[level] - previousTicks;
+            if (delta <= 0) {
+                // Coarser levels cannot have moved either
+                break;
+            }
+            expire(level, previousTicks, delta, expired);
+        }
+    }
+
+    /**
+     * Visits the buckets of a level from the previous tick to the current one.
+     */
+    private void expire(int level, long previousTicks, long delta, Consumer<Timer<T>> expired) {
+        Timer<T>[] buckets = wheel[level];
+        int mask = buckets.length - 1;
+        long steps = Math.min(1 + delta, buckets.length);
+        Timer<T> pending = Timer.sentinel();
+        for (long tick = previousTicks; tick < previousTicks + steps; tick++) {
+            Timer<T> sentinel = buckets[(int) (tick & mask)];
+            if (sentinel.next == sentinel) {
+                continue;
+            }
+            // Move the bucket aside first, timers that are not due yet may be rescheduled into the same bucket
+            pending.next = sentinel.next;
+            pending.prev = sentinel.prev;
+            pending.next.prev = pending;
+            pending.prev.next = pending;
+            sentinel.next = sentinel;
+            sentinel.prev = sentinel;
+
+            while (pending.next != pending) {
+                Timer<T> timer = pending.next;
+                unlink(timer);
+                if (timer.time - origin > elapsed) {
+                    schedule(timer);
+                } else {
+                    expired.accept(timer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the bucket of the finest level able to hold a timer due at the given relative time.
+     */
+    private Timer<T> findBucket(long time) {
+        long duration = time - elapsed;
+        int top = wheel.length - 1;
+        for (int level = 0; level < top; level++) {
+            if (duration < spans[level + 1]) {
+                return bucket(level, time);
+            }
+        }
+        return bucket(top, time);
+    }
+
+    private Timer<T> bucket(int level, long time) {
+        long ticks = Math.max(time, elapsed) / spans[level];
+        return wheel[level][(int) (ticks & (wheel[level].length - 1))];
+    }
+
+    private void link(Timer<T> sentinel, Timer<T> timer) {
+        size++;
+        timer.prev = sentinel.prev;
+        timer.next = sentinel;
+        sentinel.prev.next = timer;
+        sentinel.prev = timer;
+    }
+
+    private void unlink(Timer<T> timer) {
+        if (timer.next != null) {
+            size--;
+            timer.prev.next = timer.next;
+            timer.next.prev = timer.prev;
+            timer.next = null;
+            timer.prev = null;
+        }
+    }
+
+    /**
+     * A timer of the wheel. Subclasses may attach extra state.
+     *
+     * @param <T> the type of the attached item
+     */
+    static class Timer<T> {
+        final T item;
+        /** The deadline, in nanoseconds. Only change it while the timer is not scheduled, or reschedule it. */
+        long time;
+        Timer<T> prev;
+        Timer<T> next;
+
+        Timer(T item) {
+            this.item = item;
+        }
+
+        /**
+         * Creates the head of an empty circular list of timers.
+         */
+        static <T> Timer<T> sentinel() {
+            Timer<T> sentinel = new Timer<>(null);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            return sentinel;
+        }
+
+        /**
+         * Checks whether the timer is currently linked into the wheel.
+         *
+         * @return true if the timer is scheduled
+         */
+        boolean isScheduled() {
+            return next != null;
+        }
+    }
+}
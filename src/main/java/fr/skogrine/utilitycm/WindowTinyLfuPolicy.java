@@ -0,0 +1,277 @@
+package fr.skogrine.utilitycm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The W-TinyLFU eviction policy used by {@link CacheManager} when created with
+ * {@link CacheManager.EvictionPolicy#W_TINY_LFU}.
+ *
+ * <p>New entries land in a small LRU admission window (1% of the capacity). Entries leaving the window become
+ * candidates for the main space, a segmented LRU made of a probation and a protected segment (80% of the main
+ * space). When the cache is full, the candidate is only admitted if the {@link FrequencySketch} estimates that it
+ * was requested more often than the probation victim; otherwise the candidate itself is evicted. A scan of
+ * one-hit-wonders therefore only churns the window and never flushes the frequently used entries.</p>
+ *
+ * <p>The policy only tracks keys and their weights; the values stay in the cache. Every size in this class is a
+ * weight, which is simply 1 per entry for caches bounded by their number of entries. This class is not
+ * thread-safe.</p>
+ *
+ * @param <K> the type of keys
+ */
+final class WindowTinyLfuPolicy<K> {
+
+    private enum Region {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    private final Map<K, Node<K>> nodes = new HashMap<>();
+    private final FrequencySketch<K> sketch;
+    private final AccessOrderDeque<K> window = new AccessOrderDeque<>();
+    private final AccessOrderDeque<K> probation = new AccessOrderDeque<>();
+    private final AccessOrderDeque<K> protectedSegment = new AccessOrderDeque<>();
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private long windowSize;
+    private long protectedSize;
+
+    /**
+     * Constructs the policy for a cache holding at most {@code maximum} entries, or entries weighing at most
+     * {@code maximum} in total.
+     *
+     * @param maximum the capacity or the maximum weight of the cache
+     * @param expectedEntries an initial estimate of the number of entries, used to size the frequency sketch
+     */
+    WindowTinyLfuPolicy(long maximum, long expectedEntries) {
+        // The cache briefly holds one entry more than its capacity before evicting: sized exactly, the sketch
+        // would grow, and forget what it learned while the cache filled up, on the first eviction
+        this.sketch = new FrequencySketch<>(2 * expectedEntries);
+        this.windowMaximum = Math.max(1, maximum / 100);
+        this.protectedMaximum = (long) (0.8 * Math.max(0, maximum - windowMaximum));
+    }
+
+    /**
+     * Records a read or an update of an existing entry.
+     *
+     * @param key the key
+     */
+    void recordAccess(K key) {
+        sketch.increment(key);
+        Node<K> node = nodes.get(key);
+        if (node == null) {
+            return;
+        }
+        switch (node.region) {
+            case WINDOW:
+                window.moveToBack(node);
+                break;
+            case PROBATION:
+                // A second hit while on probation promotes the entry to the protected segment
+                probation.remove(node);
+                node.region = Region.PROTECTED;
+                protectedSegment.addLast(node);
+                protectedSize += node.weight;
+                demoteProtected();
+                break;
+            case PROTECTED:
+                protectedSegment.moveToBack(node);
+                break;
+        }
+    }
+
+    /**
+     * Records the replacement of the value of an existing entry, which counts as an access.
+     *
+     * @param key the key
+     * @param weight the weight of the new value
+     */
+    void recordUpdate(K key, long weight) {
+        Node<K> node = nodes.get(key);
+        if (node != null) {
+            long delta = weight - node.weight;
+            node.weight = weight;
+            if (node.region == Region.WINDOW) {
+                windowSize += delta;
+            } else if (node.region == Region.PROTECTED) {
+                protectedSize += delta;
+            }
+        }
+        recordAccess(key);
+        demoteProtected();
+    }
+
+    /**
+     * Records the insertion of a new entry.
+     *
+     * @param key the key
+     * @param weight the weight of the entry
+     */
+    void recordInsertion(K key, long weight) {
+        sketch.increment(key);
+        Node<K> node = new Node<>(key, weight);
+        Node<K> previous = nodes.put(key, node);
+        if (previous != null) {
+            unlink(previous);
+        }
+        node.region = Region.WINDOW;
+        window.addLast(node);
+        windowSize += node.weight;
+        sketch.ensureCapacity(nodes.size());
+    }
+
+    /**
+     * Records the removal of an entry, whatever the cause.
+     *
+     * @param key the key
+     */
+    void recordRemoval(K key) {
+        Node<K> node = nodes.remove(key);
+        if (node != null) {
+            unlink(node);
+        }
+    }
+
+    /**
+     * Forgets every tracked key while keeping the frequency history.
+     */
+    void clear() {
+        nodes.clear();
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        windowSize = 0;
+        protectedSize = 0;
+    }
+
+    /**
+     * Selects the key to evict from a cache that exceeds its capacity. The caller is expected to remove the key
+     * from the cache and then call {@link #recordRemoval(Object)}.
+     *
+     * @return the key to evict, or null if no key is tracked
+     */
+    K selectVictim() {
+        // Entries overflowing the window move to probation, the last one moved is the admission candidate
+        Node<K> candidate = null;
+        while (windowSize > windowMaximum) {
+            Node<K> first = window.pollFirst();
+            windowSize -= first.weight;
+            first.region = Region.PROBATION;
+            probation.addLast(first);
+            candidate = first;
+        }
+
+        Node<K> victim = probation.peekFirst();
+        if (victim == null) {
+            victim = protectedSegment.peekFirst();
+        }
+        if (victim == null) {
+            victim = window.peekFirst();
+        }
+        if (victim == null) {
+            return null;
+        }
+        if (candidate == null || candidate == victim) {
+            return victim.key;
+        }
+        return sketch.frequency(candidate.key) > sketch.frequency(victim.key) ? victim.key : candidate.key;
+    }
+
+    private void demoteProtected() {
+        while (protectedSize > protectedMaximum) {
+            Node<K> demoted = protectedSegment.pollFirst();
+            protectedSize -= demoted.weight;
+            demoted.region = Region.PROBATION;
+            probation.addLast(demoted);
+        }
+    }
+
+    private void unlink(Node<K> node) {
+        switch (node.region) {
+            case WINDOW:
+                window.remove(node);
+                windowSize -= node.weight;
+                break;
+            case PROBATION:
+                probation.remove(node);
+                break;
+            case PROTECTED:
+                protectedSegment.remove(node);
+                protectedSize -= node.weight;
+                break;
+        }
+    }
+
+    /**
+     * A key tracked by the policy, linked into the deque of its region.
+     */
+    private static final class Node<K> {
+        final K key;
+        long weight;
+        Region region;
+        Node<K> prev;
+        Node<K> next;
+
+        Node(K key, long weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * An intrusive doubly-linked list ordered from least to most recently used.
+     */
+    private static final class AccessOrderDeque<K> {
+        private Node<K> first;
+        private Node<K> last;
+
+        Node<K> peekFirst() {
+            return first;
+        }
+
+        Node<K> pollFirst() {
+            Node<K> node = first;
+            if (node != null) {
+                remove(node);
+            }
+            return node;
+        }
+
+        void addLast(Node<K> node) {
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+        }
+
+        void remove(Node<K> node) {
+            if (node.prev == null) {
+                first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToBack(Node<K> node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        void clear() {
+            first = null;
+            last = null;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package fr.skogrine.utilitycm;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * WindowedHistogram records values like a {@link Histogram}, but only remembers those of a recent time window,
+ * such as the last minute, so a regression shows in its percentiles right away instead of being diluted in
+ * hours of history.
+ *
+ * <p>The window is divided into intervals, each recorded into its own histogram of a fixed ring. Once an
+ * interval has passed out of the window, the first value recorded in the ring slot it occupied resets the slot
+ * for the current interval: the rotation is a single compare-and-set on the interval number of the slot, without
+ * locks or background threads, and memory stays the same whatever the throughput. A {@link #snapshot() snapshot}
+ * merges the slots of the intervals still inside the window.</p>
+ *
+ * <p>The current interval is partial, so a snapshot covers between {@code window - window / intervals} and
+ * {@code window} of history: more intervals make the window sharper, at the cost of one histogram each. Values
+ * recorded while their slot is being reset may be lost.</p>
+ *
+ * <p>Example usage:</p>
+ * <pre>{@code
+ * WindowedHistogram latency = new WindowedHistogram(60, TimeUnit.SECONDS, 6);
+ * latency.recordNanosSince(start);
+ * System.out.println("p99 over the last minute: " + latency.snapshot().getP99() + " ns");
+ * }</pre>
+ */
+public class WindowedHistogram {
+
+    /** The default number of intervals the window is divided into. */
+    public static final int DEFAULT_INTERVALS = 6;
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final LongSupplier ticker;
+    private final long intervalNanos;
+    private final Histogram[] slots;
+    private final AtomicLongArray intervals;
+
+    /**
+     * Constructs a WindowedHistogram divided into the default number of intervals.
+     *
+     * @param window the length of the window
+     * @param unit the time unit of the window
+     */
+    public WindowedHistogram(long window, TimeUnit unit) {
+        this(window, unit, DEFAULT_INTERVALS);
+    }
+
+    /**
+     * Constructs a WindowedHistogram.
+     *
+     * @param window the length of the window
+     * @param unit the time unit of the window
+     * @param intervals the number of intervals the window is divided into
+     */
+    public WindowedHistogram(long window, TimeUnit unit, int intervals) {
+        this(window, unit, intervals, System::nanoTime);
+    }
+
+    WindowedHistogram(long window, TimeUnit unit, int intervals, LongSupplier ticker) {
+        if (intervals < 1) {
+            throw new IllegalArgumentException("Intervals must be positive");
+        }
+        long windowNanos = unit.toNanos(window);
+        if (windowNanos < intervals) {
+            throw new IllegalArgumentException("Window must be at least one nanosecond per interval");
+        }
+        this.ticker = Objects.requireNonNull(ticker, "ticker");
+        this.intervalNanos = windowNanos / intervals;
+        this.slots = new Histogram[intervals];
+        this.intervals = new AtomicLongArray(intervals);
+        for (int i = 0; i < intervals; i++) {
+            slots[i] = new Histogram();
+            this.intervals.set(i, EMPTY);
+        }
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value the value, such as a duration in nanoseconds
+     * @throws IllegalArgumentException if the value is negative
+     */
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Value must not be negative: " + value);
+        }
+        long interval = Math.floorDiv(ticker.getAsLong(), intervalNanos);
+        int slot = (int) Math.floorMod(interval, (long) slots.length);
+        long slotInterval = intervals.get(slot);
+        if (slotInterval < interval && intervals.compareAndSet(slot, slotInterval, interval)) {
+            slots[slot].reset();
+        }
+        slots[slot].record(value);
+    }
+
+    /**
+     * Records the time elapsed since an instant read from {@link System#nanoTime()}.
+     *
+     * @param startNanos the start instant
+     */
+    public void recordNanosSince(long startNanos) {
+        record(Math.max(0, System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Takes a snapshot of the values recorded within the window.
+     *
+     * @return the snapshot
+     */
+    public Histogram.Snapshot snapshot() {
+        long current = Math.floorDiv(ticker.getAsLong(), intervalNanos);
+        long[] counts = new long[Histogram.bucketCount(Histogram.DEFAULT_PRECISION_BITS)];
+        long count = 0;
+        long sum = 0;
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < slots.length; i++) {
+            long interval = intervals.get(i);
+            if (interval == EMPTY || interval <= current - slots.length || interval > current) {
+                continue;
+            }
+            long slotCount = slots[i].addCountsTo(counts);
+            if (slotCount > 0) {
+                count += slotCount;
+                sum += slots[i].getSum();
+                min = Math.min(min, slots[i].getMin());
+                max = Math.max(max, slots[i].getMax());
+            }
+        }
+        return new Histogram.Snapshot(Histogram.DEFAULT_PRECISION_BITS, counts, count, sum,
+                count == 0 ? 0 : min, max);
+    }
+
+    /**
+     * Gets the length of the window.
+     *
+     * @param unit the time unit of the result
+     * @return the window, in the given unit
+     */
+    public long getWindow(TimeUnit unit) {
+        return unit.convert(intervalNanos * slots.length, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,25 @@
+package fr.skogrine.utilitycm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event emitted by {@link fr.skogrine.utilitycm.CacheManager#computeIfAbsent} for every
+ * value it loads, lasting as long as the mapping function ran.
+ */
+@Name("fr.skogrine.utilitycm.CacheLoad")
+@Label("Cache Load")
+@Category({"UtilityCM", "Cache"})
+@Description("A value computed and inserted by a cache on a miss")
+public final class CacheLoadEvent extends Event {
+
+    @Label("Key")
+    public String key;
+
+    @Label("Success")
+    @Description("Whether the mapping function returned a value")
+    public boolean success;
+}
@@ -0,0 +1,24 @@
+package fr.skogrine.utilitycm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event emitted by {@link fr.skogrine.utilitycm.EventBus#publish} for every published
+ * event, lasting as long as its subscribers ran.
+ */
+@Name("fr.skogrine.utilitycm.EventBusDispatch")
+@Label("Event Bus Dispatch")
+@Category({"UtilityCM", "Event Bus"})
+@Description("The dispatch of an event to the subscribers of an event bus")
+public final class EventBusDispatchEvent extends Event {
+
+    @Label("Event Type")
+    public String eventType;
+
+    @Label("Subscribers")
+    public int subscribers;
+}
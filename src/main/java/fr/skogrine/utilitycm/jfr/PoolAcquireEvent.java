@@ -0,0 +1,27 @@
+package fr.skogrine.utilitycm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event emitted by {@link fr.skogrine.utilitycm.ConcurrentResourcePool} for every acquisition,
+ * lasting from the moment an executor thread handles the acquisition until the resource is handed over or its
+ * creation fails. The wait for that thread is not included.
+ */
+@Name("fr.skogrine.utilitycm.PoolAcquire")
+@Label("Pool Acquire")
+@Category({"UtilityCM", "Pool"})
+@Description("The wait for a resource of a pool")
+public final class PoolAcquireEvent extends Event {
+
+    @Label("Created")
+    @Description("Whether the pool was empty and a new resource was created")
+    public boolean created;
+
+    @Label("Success")
+    @Description("Whether a resource was handed over, false if its creation threw an exception")
+    public boolean success;
+}
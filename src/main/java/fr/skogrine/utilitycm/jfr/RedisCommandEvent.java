@@ -0,0 +1,28 @@
+package fr.skogrine.utilitycm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event emitted by {@link fr.skogrine.utilitycm.redis.AdvancedRedisClient} for every
+ * command, lasting from the borrowing of a connection until the reply.
+ */
+@Name("fr.skogrine.utilitycm.RedisCommand")
+@Label("Redis Command")
+@Category({"UtilityCM", "Redis"})
+@Description("A command sent to Redis")
+public final class RedisCommandEvent extends Event {
+
+    @Label("Command")
+    public String command;
+
+    @Label("Key")
+    @Description("The first key of the command")
+    public String key;
+
+    @Label("Success")
+    public boolean success;
+}
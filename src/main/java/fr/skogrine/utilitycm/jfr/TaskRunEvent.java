@@ -0,0 +1,27 @@
+package fr.skogrine.utilitycm.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A Java Flight Recorder event emitted by {@link fr.skogrine.utilitycm.TaskQueue} for every run of a task,
+ * lasting as long as the task ran. The time the task waited past its due time is recorded as the queue delay.
+ */
+@Name("fr.skogrine.utilitycm.TaskRun")
+@Label("Task Run")
+@Category({"UtilityCM", "Task Queue"})
+@Description("A run of a task of a task queue")
+public final class TaskRunEvent extends Event {
+
+    @Label("Priority")
+    public int priority;
+
+    @Label("Queue Delay")
+    @Description("The time between the moment the task was due and the moment it started")
+    @Timespan(Timespan.NANOSECONDS)
+    public long queueDelay;
+}
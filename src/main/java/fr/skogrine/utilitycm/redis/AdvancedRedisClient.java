@@ -1,10 +1,20 @@
 package fr.skogrine.utilitycm.redis;
 
+import fr.skogrine.utilitycm.jfr.RedisCommandEvent;
+
 import redis.clients.jedis.*;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 
@@ -39,6 +49,8 @@ public class AdvancedRedisClient {
     private final JedisCluster jedisCluster;
     private Consumer<Throwable> onError;
     private Consumer<String> performanceLogger;
+    /** The SHA-1 digests of the scripts run so far, by source. */
+    private final Map<String, String> scriptDigests = new ConcurrentHashMap<>();
 
     /**
      * Constructs an AdvancedRedisClient with a single Redis instance.
@@ -93,13 +105,18 @@ public class AdvancedRedisClient {
     public CompletableFuture<Boolean> setAsync(String key, String value) {
         return CompletableFuture.supplyAsync(() -> {
             long startTime = System.currentTimeMillis();
+            RedisCommandEvent event = new RedisCommandEvent();
+            event.begin();
+            boolean success = false;
             try (Jedis jedis = jedisPool.getResource()) {
                 jedis.set(key, value);
+                success = true;
                 return true;
             } catch (JedisConnectionException e) {
                 if (onError != null) onError.accept(e);
                 return false;
             } finally {
+                commit(event, "SET", key, success);
                 logPerformance("SET command executed in " + (System.currentTimeMillis() - startTime) + " ms");
             }
         });
@@ -114,17 +131,100 @@ public class AdvancedRedisClient {
     public CompletableFuture<String> getAsync(String key) {
         return CompletableFuture.supplyAsync(() -> {
             long startTime = System.currentTimeMillis();
+            RedisCommandEvent event = new RedisCommandEvent();
+            event.begin();
+            boolean success = false;
             try (Jedis jedis = jedisPool.getResource()) {
-                return jedis.get(key);
+                String value = jedis.get(key);
+                success = true;
+                return value;
             } catch (JedisConnectionException e) {
                 if (onError != null) onError.accept(e);
                 return null;
             } finally {
+                commit(event, "GET", key, success);
                 logPerformance("GET command executed in " + (System.currentTimeMillis() - startTime) + " ms");
             }
         });
     }
 
+    /**
+     * Runs a Lua script asynchronously in Redis. The script is sent by its SHA-1 digest, so that Redis only
+     * receives its source the first time, or again after a restart or a {@code SCRIPT FLUSH}. Digests are computed
+     * once per script and kept for the life of the client, so scripts should be constants rather than built per
+     * call.
+     *
+     * @param script the Lua script
+     * @param keys the keys accessed by the script, available as {@code KEYS}
+     * @param args the other arguments, available as {@code ARGV}
+     * @return a CompletableFuture containing the reply of the script, or null if the script could not be run
+     */
+    public CompletableFuture<Object> evalAsync(String script, List<String> keys, List<String> args) {
+        String sha1 = scriptDigests.computeIfAbsent(script, AdvancedRedisClient::sha1);
+        return CompletableFuture.supplyAsync(() -> {
+            long startTime = System.currentTimeMillis();
+            RedisCommandEvent event = new RedisCommandEvent();
+            event.begin();
+            boolean success = false;
+            // The command actually run, EVAL once Redis answered it does not know the digest
+            String command = "EVALSHA";
+            try {
+                Object reply;
+                if (jedisCluster != null) {
+                    try {
+                        reply = jedisCluster.evalsha(sha1, keys, args);
+                    } catch (JedisNoScriptException e) {
+                        command = "EVAL";
+                        reply = jedisCluster.eval(script, keys, args);
+                    }
+                } else {
+                    try (Jedis jedis = jedisPool.getResource()) {
+                        try {
+                            reply = jedis.evalsha(sha1, keys, args);
+                        } catch (JedisNoScriptException e) {
+                            command = "EVAL";
+                            reply = jedis.eval(script, keys, args);
+                        }
+                    }
+                }
+                success = true;
+                return reply;
+            } catch (JedisException e) {
+                if (onError != null) onError.accept(e);
+                return null;
+            } finally {
+                commit(event, command, keys.isEmpty() ? null : keys.get(0), success);
+                logPerformance(command + " command executed in " + (System.currentTimeMillis() - startTime) + " ms");
+            }
+        });
+    }
+
+    private static String sha1(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    /**
+     * Commits a Java Flight Recorder event for a command, if a recording enabled it.
+     */
+    private static void commit(RedisCommandEvent event, String command, String key, boolean success) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.command = command;
+            event.key = key;
+            event.success = success;
+            event.commit();
+        }
+    }
+
     /**
      * Logs performance metrics if a performance logger is set.
      *
@@ -0,0 +1,279 @@
+package fr.skogrine.utilitycm.redis;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * DistributedRateLimiter enforces one token bucket limit across every node of a cluster, by keeping the bucket
+ * in Redis and updating it with an atomic Lua script run through {@link AdvancedRedisClient}. The script reads
+ * the clock of the Redis server, so the nodes do not need synchronized clocks.
+ *
+ * <p>Calling Redis for every permit costs a network round trip per call. With {@link #setLeaseSize(int, long,
+ * TimeUnit)}, a node instead leases a batch of permits at once and hands them out locally until they run out
+ * or the lease expires, so that most calls never leave the JVM. Leased permits are taken from the shared bucket
+ * when they are leased, so the cluster never exceeds the limit; the price is that permits leased by an idle node
+ * are unavailable to the others until its lease expires, so batches should stay small compared to the rate.
+ * A node denied by Redis also denies calls locally until the bucket had time to refill.</p>
+ *
+ * <p>When Redis cannot be reached, calls are denied, or granted after {@code setFailOpen(true)}.</p>
+ *
+ * <p>Example usage:</p>
+ * <pre>{@code
+ * DistributedRateLimiter limiter = new DistributedRateLimiter(redisClient, "ratelimit:search",
+ *         1_000, 1, TimeUnit.SECONDS, 1_000)
+ *     .setLeaseSize(20, 100, TimeUnit.MILLISECONDS);
+ * if (!limiter.tryAcquire()) {
+ *     return tooManyRequests();
+ * }
+ * }</pre>
+ */
+public class DistributedRateLimiter {
+
+    /**
+     * Refills the bucket stored in the hash {@code KEYS[1]} from the time elapsed since its last update, then
+     * takes between {@code ARGV[5]} and {@code ARGV[4]} whole tokens if at least the minimum is available. The
+     * key expires once the bucket would be full again, since a missing bucket is a full one. Times are stored as
+     * integral microseconds, which {@code tostring} would round to 14 digits. {@code redis.replicate_commands()}
+     * lets Redis versions before 5 run a script that writes after reading the clock.
+     *
+     * <p>ARGV: burst size, permits per period, period in microseconds, requested permits, minimum permits.
+     * Returns the number of permits granted.</p>
+     */
+    static final String SCRIPT = String.join("\n",
+            "redis.replicate_commands()",
+            "local burst = tonumber(ARGV[1])",
+            "local permits = tonumber(ARGV[2])",
+            "local period = tonumber(ARGV[3])",
+            "local requested = tonumber(ARGV[4])",
+            "local minimum = tonumber(ARGV[5])",
+            "local time = redis.call('TIME')",
+            "local now = tonumber(time[1]) * 1000000 + tonumber(time[2])",
+            "local state = redis.call('HMGET', KEYS[1], 'tokens', 'time')",
+            "local tokens = tonumber(state[1])",
+            "local last = tonumber(state[2])",
+            "if tokens == nil or last == nil then",
+            "  tokens = burst",
+            "  last = now",
+            "end",
+            "tokens = math.min(burst, tokens + math.max(0, now - last) * permits / period)",
+            "local granted = 0",
+            "if tokens >= minimum then",
+            "  granted = math.min(requested, math.floor(tokens))",
+            "end",
+            "tokens = tokens - granted",
+            "redis.call('HSET', KEYS[1], 'tokens', tostring(tokens), 'time', string.format('%.0f', now))",
+            "redis.call('PEXPIRE', KEYS[1], math.ceil((burst - tokens) * period / permits / 1000) + 1000)",
+            "return granted");
+
+    private final AdvancedRedisClient client;
+    private final List<String> keys;
+    private final int permits;
+    private final long periodMicros;
+    private final int burstSize;
+    private int leaseSize;
+    private long leaseNanos;
+    private boolean failOpen;
+    private final AtomicLong leased = new AtomicLong();
+    private volatile long leaseDeadline;
+    /** Before this time, the shared bucket is known not to hold enough tokens for a lease. */
+    private volatile long retryDeadline;
+    /** The lease request in flight, which concurrent callers wait for rather than sending their own. */
+    private final AtomicReference<CompletableFuture<Long>> pendingLease = new AtomicReference<>();
+    private LongSupplier ticker = System::nanoTime;
+
+    /**
+     * Constructs a DistributedRateLimiter. Limiters created with the same key on different nodes share their
+     * limit, and should be created with the same rate.
+     *
+     * @param client the Redis client
+     * @param key the Redis key of the bucket
+     * @param permits the number of permits added per period
+     * @param period the period
+     * @param unit the time unit of the period
+     * @param burstSize the maximum number of permits saved up while the limiter is unused
+     */
+    public DistributedRateLimiter(AdvancedRedisClient client, String key, int permits, long period, TimeUnit unit,
+                                  int burstSize) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Permits must be positive");
+        }
+        if (unit.toMicros(period) <= 0) {
+            throw new IllegalArgumentException("Period must be at least one microsecond");
+        }
+        if (burstSize <= 0) {
+            throw new IllegalArgumentException("Burst size must be positive");
+        }
+        this.client = Objects.requireNonNull(client, "client");
+        this.keys = List.of(Objects.requireNonNull(key, "key"));
+        this.permits = permits;
+        this.periodMicros = unit.toMicros(period);
+        this.burstSize = burstSize;
+        this.leaseDeadline = ticker.getAsLong();
+        this.retryDeadline = leaseDeadline;
+    }
+
+    /**
+     * Enables local leasing: permits are taken from Redis in batches and handed out locally.
+     *
+     * @param leaseSize the number of permits leased at once, at most the burst size
+     * @param leaseDuration how long leased permits stay usable
+     * @param unit the time unit of the duration
+     * @return this DistributedRateLimiter
+     */
+    public DistributedRateLimiter setLeaseSize(int leaseSize, long leaseDuration, TimeUnit unit) {
+        if (leaseSize <= 0 || leaseSize > burstSize) {
+            throw new IllegalArgumentException("Lease size must be between 1 and the burst size " + burstSize);
+        }
+        if (leaseDuration <= 0) {
+            throw new IllegalArgumentException("Lease duration must be positive");
+        }
+        this.leaseSize = leaseSize;
+        this.leaseNanos = unit.toNanos(leaseDuration);
+        return this;
+    }
+
+    /**
+     * Sets whether calls are granted rather than denied when Redis cannot be reached.
+     *
+     * @param failOpen true to grant permits when Redis is down
+     * @return this DistributedRateLimiter
+     */
+    public DistributedRateLimiter setFailOpen(boolean failOpen) {
+        this.failOpen = failOpen;
+        return this;
+    }
+
+    /**
+     * Attempts to acquire a permit.
+     *
+     * @return true if the action is allowed, false if the rate limit is exceeded
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    /**
+     * Attempts to acquire several permits at once. Either all of them are granted or none is.
+     *
+     * @param permits the number of permits
+     * @return true if the permits were granted, false if the rate limit is exceeded
+     */
+    public boolean tryAcquire(int permits) {
+        return tryAcquireAsync(permits).join();
+    }
+
+    /**
+     * Attempts to acquire several permits at once without blocking on Redis.
+     *
+     * @param permits the number of permits
+     * @return a CompletableFuture completed with true if the permits were granted
+     */
+    public CompletableFuture<Boolean> tryAcquireAsync(int permits) {
+        if (permits <= 0 || permits > burstSize) {
+            throw new IllegalArgumentException("Permits must be between 1 and the burst size " + burstSize);
+        }
+        if (leaseSize == 0) {
+            return request(permits, permits).thenApply(granted -> granted == null ? failOpen : granted == permits);
+        }
+        return acquireLeased(permits);
+    }
+
+    /**
+     * Sets the time source used for lease expiry, in nanoseconds, and drops the current lease. Visible for
+     * testing.
+     */
+    void setTicker(LongSupplier ticker) {
+        this.ticker = Objects.requireNonNull(ticker, "ticker");
+        this.leased.set(0);
+        this.leaseDeadline = ticker.getAsLong();
+        this.retryDeadline = leaseDeadline;
+    }
+
+    private boolean takeLeased(int permits) {
+        if (ticker.getAsLong() - leaseDeadline >= 0) {
+            return false;
+        }
+        for (;;) {
+            long available = leased.get();
+            if (available < permits) {
+                return false;
+            }
+            if (leased.compareAndSet(available, available - permits)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes permits from the current lease, or from a new one once it is granted. Concurrent callers may drain a
+     * new lease first, in which case another one is requested, until Redis runs short of tokens.
+     */
+    private CompletableFuture<Boolean> acquireLeased(int permits) {
+        if (takeLeased(permits)) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if (ticker.getAsLong() - retryDeadline < 0) {
+            return CompletableFuture.completedFuture(false);
+        }
+        // Chained rather than joined, so that no thread blocks while Redis answers
+        return lease(permits).thenCompose(granted -> {
+            if (granted == null) {
+                return CompletableFuture.completedFuture(failOpen);
+            }
+            return acquireLeased(permits);
+        });
+    }
+
+    /**
+     * Leases a new batch, unless a lease is already in flight, in which case its result is shared.
+     *
+     * @return a CompletableFuture completed with the number of permits granted, or null if Redis could not be
+     *         reached, once the lease is recorded
+     */
+    private CompletableFuture<Long> lease(int needed) {
+        CompletableFuture<Long> lease = new CompletableFuture<>();
+        CompletableFuture<Long> current = pendingLease.compareAndExchange(null, lease);
+        if (current != null) {
+            return current;
+        }
+        long now = ticker.getAsLong();
+        if (now - leaseDeadline >= 0) {
+            // Permits not used in time go back to nobody: the shared bucket already refilled meanwhile
+            leased.set(0);
+        }
+        long missing = Math.max(1, needed - leased.get());
+        request(Math.max(leaseSize, missing), missing).whenComplete((granted, error) -> {
+            Long result = error == null ? granted : null;
+            if (result != null) {
+                if (result > 0) {
+                    leased.addAndGet(result);
+                    leaseDeadline = now + leaseNanos;
+                }
+                if (result < missing) {
+                    // Do not ask again before the bucket has had time to refill the missing tokens
+                    long refill = (missing - result) * periodMicros / permits;
+                    retryDeadline = now + TimeUnit.MICROSECONDS.toNanos(refill);
+                }
+            }
+            pendingLease.set(null);
+            lease.complete(result);
+        });
+        return lease;
+    }
+
+    /**
+     * Runs the script, returning the number of permits granted or null if Redis could not be reached or gave an
+     * unexpected reply.
+     */
+    private CompletableFuture<Long> request(long requested, long minimum) {
+        List<String> args = List.of(String.valueOf(burstSize), String.valueOf(permits), String.valueOf(periodMicros),
+                String.valueOf(requested), String.valueOf(minimum));
+        return client.evalAsync(SCRIPT, keys, args)
+                .thenApply(reply -> reply instanceof Number ? ((Number) reply).longValue() : null);
+    }
+}
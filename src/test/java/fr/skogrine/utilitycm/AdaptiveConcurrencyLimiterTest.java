@@ -0,0 +1,122 @@
+package fr.skogrine.utilitycm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link AdaptiveConcurrencyLimiter} class.
+ */
+class AdaptiveConcurrencyLimiterTest {
+
+    @Test
+    void testLimitIsEnforced() {
+        AdaptiveConcurrencyLimiter limiter = AdaptiveConcurrencyLimiter.aimd(2, 1, 10, 0.5);
+
+        Optional<AdaptiveConcurrencyLimiter.Token> first = limiter.acquire();
+        Optional<AdaptiveConcurrencyLimiter.Token> second = limiter.acquire();
+        assertTrue(first.isPresent());
+        assertTrue(second.isPresent());
+        assertFalse(limiter.acquire().isPresent());
+        assertEquals(2, limiter.getInFlight());
+
+        first.get().release(AdaptiveConcurrencyLimiter.Outcome.IGNORED);
+        assertEquals(2, limiter.getLimit());
+        assertThrows(IllegalStateException.class,
+                () -> first.get().release(AdaptiveConcurrencyLimiter.Outcome.SUCCESS));
+        assertTrue(limiter.acquire().isPresent());
+    }
+
+    /**
+     * Tests that AIMD grows the limit while requests succeed and backs off when they are dropped.
+     */
+    @Test
+    void testAimd() {
+        AdaptiveConcurrencyLimiter limiter = AdaptiveConcurrencyLimiter.aimd(10, 2, 100, 0.5);
+
+        // Every full round of successful requests adds about one to the limit
+        for (int round = 0; round < 10; round++) {
+            releaseAll(acquireAll(limiter), AdaptiveConcurrencyLimiter.Outcome.SUCCESS, 10);
+        }
+        int limit = limiter.getLimit();
+        assertTrue(limit >= 18 && limit <= 20, "Unexpected limit: " + limit);
+
+        List<AdaptiveConcurrencyLimiter.Token> tokens = acquireAll(limiter);
+        releaseAll(tokens.subList(0, 1), AdaptiveConcurrencyLimiter.Outcome.DROPPED, 10);
+        assertEquals(limit / 2, limiter.getLimit());
+        releaseAll(tokens.subList(1, tokens.size()), AdaptiveConcurrencyLimiter.Outcome.IGNORED, 10);
+
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire().get().release(AdaptiveConcurrencyLimiter.Outcome.DROPPED, 10, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(2, limiter.getLimit(), "The limit should not go below the minimum");
+    }
+
+    /**
+     * Tests that the gradient algorithm finds the concurrency a backend sustains, by simulating a backend whose
+     * latency grows with the requests in flight beyond its capacity.
+     */
+    @Test
+    void testGradientFollowsCapacity() {
+        AdaptiveConcurrencyLimiter limiter = AdaptiveConcurrencyLimiter.gradient(10, 1, 1_000);
+        int capacity = 50;
+
+        for (int round = 0; round < 300; round++) {
+            List<AdaptiveConcurrencyLimiter.Token> tokens = acquireAll(limiter);
+            releaseAll(tokens, AdaptiveConcurrencyLimiter.Outcome.SUCCESS, latency(tokens.size(), capacity));
+        }
+        int limit = limiter.getLimit();
+        assertTrue(limit >= capacity / 2 && limit <= capacity * 3, "Limit far from the capacity: " + limit);
+
+        // The backend becomes four times slower
+        capacity = 10;
+        for (int round = 0; round < 100; round++) {
+            List<AdaptiveConcurrencyLimiter.Token> tokens = acquireAll(limiter);
+            releaseAll(tokens, AdaptiveConcurrencyLimiter.Outcome.SUCCESS, latency(tokens.size(), capacity));
+        }
+        assertTrue(limiter.getLimit() < limit / 2, "Limit did not shrink: " + limiter.getLimit());
+    }
+
+    /**
+     * Tests that a token released without an explicit latency measures it with the ticker.
+     */
+    @Test
+    void testLatencyIsMeasured() {
+        long[] time = {0};
+        AdaptiveConcurrencyLimiter limiter = AdaptiveConcurrencyLimiter.gradient(4, 1, 100);
+        limiter.setTicker(() -> time[0]);
+
+        AdaptiveConcurrencyLimiter.Token token = limiter.acquire().get();
+        time[0] += TimeUnit.MILLISECONDS.toNanos(5);
+        token.release(AdaptiveConcurrencyLimiter.Outcome.SUCCESS);
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    private static List<AdaptiveConcurrencyLimiter.Token> acquireAll(AdaptiveConcurrencyLimiter limiter) {
+        List<AdaptiveConcurrencyLimiter.Token> tokens = new ArrayList<>();
+        Optional<AdaptiveConcurrencyLimiter.Token> token;
+        while ((token = limiter.acquire()).isPresent()) {
+            tokens.add(token.get());
+        }
+        return tokens;
+    }
+
+    private static void releaseAll(List<AdaptiveConcurrencyLimiter.Token> tokens,
+                                   AdaptiveConcurrencyLimiter.Outcome outcome, long latencyMillis) {
+        for (AdaptiveConcurrencyLimiter.Token token : tokens) {
+            token.release(outcome, latencyMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Models a backend serving {@code capacity} requests in parallel in 10 ms and queuing the others.
+     */
+    private static long latency(int inFlight, int capacity) {
+        return 10L * Math.max(1, (inFlight + capacity - 1) / capacity);
+    }
+}
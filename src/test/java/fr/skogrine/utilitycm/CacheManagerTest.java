@@ -0,0 +1,485 @@
+package fr.skogrine.utilitycm;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link CacheManager} class.
+ */
+class CacheManagerTest {
+
+    /**
+     * Tests the default LRU eviction.
+     */
+    @Test
+    void testLruEviction() {
+        CacheManager<String, String> cache = new CacheManager<>(3);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        assertEquals("1", cache.get("a"));
+        cache.put("d", "4");
+
+        assertNull(cache.get("b"));
+        assertEquals(3, cache.size());
+    }
+
+    /**
+     * Tests that the W-TinyLFU policy keeps the capacity and the map operations consistent.
+     */
+    @Test
+    void testTinyLfuBasicOperations() {
+        CacheManager<String, Integer> cache = new CacheManager<>(3, CacheManager.EvictionPolicy.W_TINY_LFU);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("c", 3);
+        for (int i = 0; i < 5; i++) {
+            cache.get("a");
+            cache.get("b");
+            cache.get("c");
+        }
+        // Keys never read again must not displace the frequently used ones
+        for (int i = 0; i < 10; i++) {
+            cache.put("cold" + i, i);
+            assertTrue(cache.size() <= 3);
+        }
+        assertEquals(1, cache.get("a"));
+        assertEquals(2, cache.get("b"));
+
+        assertEquals(3, cache.merge("a", 2, Integer::sum));
+        assertEquals(3, cache.remove("a"));
+        assertFalse(cache.containsKey("a"));
+        cache.clear();
+        assertTrue(cache.isEmpty());
+        cache.computeIfAbsent("z", k -> 26);
+        assertEquals(26, cache.get("z"));
+    }
+
+    /**
+     * Tests that W-TinyLFU counts computeIfAbsent hits, so that a key only read that way survives a scan.
+     */
+    @Test
+    void testTinyLfuComputeIfAbsentHits() {
+        CacheManager<String, Integer> cache = new CacheManager<>(10, CacheManager.EvictionPolicy.W_TINY_LFU);
+        // Each scanned key is loaded then read once, while the hot key keeps being read
+        for (int i = 0; i < 1_000; i++) {
+            if (i % 5 == 0) {
+                assertEquals(1, cache.computeIfAbsent("hot", key -> 1));
+            }
+            cache.put("scan" + i, i);
+            cache.get("scan" + i);
+            assertTrue(cache.containsKey("hot"), "Evicted after " + i + " scanned keys");
+        }
+    }
+
+    /**
+     * Tests that a W-TinyLFU cache with a power-of-two capacity keeps the frequencies learned while it filled up,
+     * so its hot set survives the first scan once it is full.
+     */
+    @Test
+    void testTinyLfuKeepsFrequenciesOnceFull() {
+        int capacity = 1024;
+        CacheManager<Integer, Integer> cache = new CacheManager<>(capacity, CacheManager.EvictionPolicy.W_TINY_LFU);
+        for (int key = 0; key < capacity; key++) {
+            cache.put(key, key);
+            cache.get(key);
+            cache.get(key);
+        }
+        for (int key = capacity; key < 3 * capacity; key++) {
+            cache.put(key, key);
+        }
+        int hot = 0;
+        for (int key = 0; key < capacity; key++) {
+            if (cache.containsKey(key)) {
+                hot++;
+            }
+        }
+        // Only the small window admits scanned keys without comparing frequencies
+        assertTrue(hot >= capacity * 95 / 100, "Hot keys left: " + hot);
+    }
+
+    /**
+     * Tests that the collection views of a W-TinyLFU cache cannot remove entries behind the policy's back.
+     */
+    @Test
+    void testTinyLfuReadOnlyViews() {
+        CacheManager<String, Integer> cache = new CacheManager<>(3, CacheManager.EvictionPolicy.W_TINY_LFU);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        assertThrows(UnsupportedOperationException.class, () -> cache.keySet().remove("a"));
+        assertThrows(UnsupportedOperationException.class, () -> cache.values().remove(2));
+        assertThrows(UnsupportedOperationException.class, () -> cache.entrySet().clear());
+
+        // Removing through the map keeps the policy consistent
+        assertEquals(1, cache.remove("a"));
+        for (int i = 0; i < 10; i++) {
+            cache.put("key" + i, i);
+            assertTrue(cache.size() <= 3);
+        }
+        assertEquals(3, cache.size());
+    }
+
+    /**
+     * Tests that a weighted cache evicts by accumulated weight and accounts for replaced values.
+     */
+    @Test
+    void testWeightBoundedEviction() {
+        CacheManager<String, byte[]> cache = new CacheManager<>(100, (key, value) -> value.length);
+        cache.put("a", new byte[40]);
+        cache.put("b", new byte[40]);
+        assertEquals(80, cache.getWeightedSize());
+
+        cache.get("a");
+        cache.put("c", new byte[30]);
+        assertFalse(cache.containsKey("b"), "The least recently used entry should make room for c");
+        assertEquals(70, cache.getWeightedSize());
+
+        // Growing a value evicts others, shrinking it releases weight
+        cache.put("c", new byte[70]);
+        assertEquals(70, cache.getWeightedSize());
+        assertFalse(cache.containsKey("a"));
+        cache.put("c", new byte[10]);
+        assertEquals(10, cache.getWeightedSize());
+
+        cache.put("d", new byte[20]);
+        cache.remove("c");
+        assertEquals(20, cache.getWeightedSize());
+        cache.merge("d", new byte[5], (oldValue, value) -> new byte[oldValue.length + value.length]);
+        assertEquals(25, cache.getWeightedSize());
+
+        // Entries heavier than the whole cache are not retained
+        cache.put("huge", new byte[200]);
+        assertFalse(cache.containsKey("huge"));
+        assertTrue(cache.getWeightedSize() <= 100);
+
+        cache.clear();
+        assertEquals(0, cache.getWeightedSize());
+        assertThrows(UnsupportedOperationException.class, () -> cache.keySet().clear());
+    }
+
+    /**
+     * Tests that the W-TinyLFU policy also honours a maximum weight.
+     */
+    @Test
+    void testWeightBoundedTinyLfu() {
+        CacheManager<Integer, String> cache = new CacheManager<>(1_000, (key, value) -> value.length(),
+                CacheManager.EvictionPolicy.W_TINY_LFU);
+        Random random = new Random(3);
+        for (int i = 0; i < 10_000; i++) {
+            int key = random.nextInt(500);
+            if (cache.get(key) == null) {
+                cache.put(key, "x".repeat(1 + key % 20));
+            }
+            assertTrue(cache.getWeightedSize() <= 1_000);
+        }
+        long weight = 0;
+        for (Map.Entry<Integer, String> entry : cache.entrySet()) {
+            weight += entry.getValue().length();
+        }
+        assertEquals(weight, cache.getWeightedSize());
+    }
+
+    /**
+     * Tests expiration after write, including entries given their own time to live.
+     */
+    @Test
+    void testExpireAfterWrite() {
+        AtomicLong time = new AtomicLong();
+        CacheManager<String, String> cache = new CacheManager<>(100);
+        cache.setTicker(time::get);
+        cache.setExpireAfterWrite(10, TimeUnit.SECONDS);
+
+        cache.put("a", "1");
+        cache.put("b", "2", 2, TimeUnit.SECONDS);
+        time.addAndGet(TimeUnit.SECONDS.toNanos(3));
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"), "b has its own shorter time to live");
+        assertFalse(cache.containsKey("b"));
+
+        // Replacing the value restarts the countdown
+        time.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        cache.put("a", "2");
+        time.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        assertEquals("2", cache.get("a"));
+        time.addAndGet(TimeUnit.SECONDS.toNanos(6));
+        assertNull(cache.get("a"));
+        assertTrue(cache.isEmpty());
+    }
+
+    /**
+     * Tests that reads extend the lifetime of entries expiring after access, but containsKey does not.
+     */
+    @Test
+    void testExpireAfterAccess() {
+        AtomicLong time = new AtomicLong();
+        CacheManager<String, String> cache = new CacheManager<>(100);
+        cache.setTicker(time::get);
+        cache.setExpireAfterAccess(10, TimeUnit.SECONDS);
+
+        cache.put("a", "1");
+        cache.put("b", "2");
+        for (int i = 0; i < 5; i++) {
+            time.addAndGet(TimeUnit.SECONDS.toNanos(4));
+            assertEquals("1", cache.get("a"));
+            cache.containsKey("b");
+        }
+        assertFalse(cache.containsKey("b"));
+        assertEquals("1", cache.get("a"));
+    }
+
+    /**
+     * Tests that computeIfAbsent hits extend the lifetime of entries expiring after access, like get.
+     */
+    @Test
+    void testComputeIfAbsentExtendsExpireAfterAccess() {
+        AtomicLong time = new AtomicLong();
+        CacheManager<String, String> cache = new CacheManager<>(100);
+        cache.setTicker(time::get);
+        cache.setExpireAfterAccess(10, TimeUnit.SECONDS);
+
+        cache.put("a", "1");
+        for (int i = 0; i < 5; i++) {
+            time.addAndGet(TimeUnit.SECONDS.toNanos(4));
+            assertEquals("1", cache.computeIfAbsent("a", key -> "reloaded"));
+        }
+        time.addAndGet(TimeUnit.SECONDS.toNanos(11));
+        assertEquals("reloaded", cache.computeIfAbsent("a", key -> "reloaded"));
+    }
+
+    /**
+     * Tests that expired entries are removed by unrelated operations, without reading them.
+     */
+    @Test
+    void testExpiredEntriesAreRemovedIncrementally() {
+        AtomicLong time = new AtomicLong();
+        CacheManager<Integer, Integer> cache = new CacheManager<>(100_000, (key, value) -> 1);
+        cache.setTicker(time::get);
+        for (int i = 0; i < 6_000; i++) {
+            cache.put(i, i, 1 + i % 60, TimeUnit.SECONDS);
+        }
+        assertEquals(6_000, cache.getWeightedSize());
+
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(30_500));
+        cache.get(-1);
+        assertEquals(3_000, cache.size(), "Entries living up to 30 seconds should be gone");
+        assertEquals(3_000, cache.getWeightedSize());
+
+        time.addAndGet(TimeUnit.SECONDS.toNanos(31));
+        cache.put(-1, -1);
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * Tests that a snapshot restores the entries in their recency order, keeping the hottest ones when the new
+     * cache is smaller.
+     */
+    @Test
+    void testSnapshotRoundTrip() throws IOException {
+        CacheManager<String, String> cache = new CacheManager<>(100);
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, "v" + i);
+        }
+        cache.put(null, "null key");
+        cache.get("k0");
+        Path file = Files.createTempFile("cache", ".bin");
+        try {
+            assertSnapshotRoundTrip(cache, file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Tests that a snapshot can be replaced right after it was read, and holds entries larger than its buffer.
+     */
+    @Test
+    void testSnapshotRewriteAndLargeEntries() throws IOException {
+        CacheManager<String, String> cache = new CacheManager<>(100);
+        cache.put("small", "value");
+        cache.put("large", "x".repeat(1 << 20));
+        Path file = Files.createTempFile("cache", ".bin");
+        try {
+            assertEquals(2, cache.writeSnapshot(file, CacheCodec.utf8(), CacheCodec.utf8()));
+            CacheManager<String, String> restored = new CacheManager<>(100);
+            assertEquals(2, restored.readSnapshot(file, CacheCodec.utf8(), CacheCodec.utf8()));
+            assertEquals(cache.get("large"), restored.get("large"));
+
+            restored.put("other", "value");
+            assertEquals(3, restored.writeSnapshot(file, CacheCodec.utf8(), CacheCodec.utf8()));
+            CacheManager<String, String> rewritten = new CacheManager<>(100);
+            assertEquals(3, rewritten.readSnapshot(file, CacheCodec.utf8(), CacheCodec.utf8()));
+            assertEquals("value", rewritten.get("small"));
+            assertEquals(cache.get("large"), rewritten.get("large"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void assertSnapshotRoundTrip(CacheManager<String, String> cache, Path file) throws IOException {
+        assertEquals(11, cache.writeSnapshot(file, CacheCodec.utf8(), CacheCodec.utf8()));
+
+        CacheManager<String, String> restored = new CacheManager<>(100);
+        assertEquals(11, restored.readSnapshot(file, CacheCodec.utf8(), CacheCodec.utf8()));
+        assertEquals(new ArrayList<>(cache.keySet()), new ArrayList<>(restored.keySet()));
+        assertEquals("null key", restored.get(null));
+
+        CacheManager<String, String> smaller = new CacheManager<>(3, CacheManager.EvictionPolicy.W_TINY_LFU);
+        assertEquals(3, smaller.readSnapshot(file, CacheCodec.utf8(), CacheCodec.utf8()));
+        assertEquals(Arrays.asList("k9", null, "k0"), new ArrayList<>(smaller.keySet()));
+        assertEquals("v0", smaller.get("k0"));
+
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+        assertThrows(IOException.class, () -> restored.readSnapshot(file, CacheCodec.utf8(), CacheCodec.utf8()));
+    }
+
+    /**
+     * Tests the recorded statistics and their snapshots.
+     */
+    @Test
+    void testStats() {
+        CacheManager<String, String> cache = new CacheManager<String, String>(2).setRecordStats(true);
+        cache.put("a", "1");
+        cache.get("a");
+        cache.get("b");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        CacheStats before = cache.getStats();
+        assertEquals(1, before.getHitCount());
+        assertEquals(1, before.getMissCount());
+        assertEquals(0.5, before.getHitRate());
+        assertEquals(1, before.getEvictionCount());
+
+        assertEquals("4", cache.computeIfAbsent("d", key -> "4"));
+        assertNull(cache.computeIfAbsent("e", key -> null));
+        assertThrows(IllegalStateException.class, () -> cache.computeIfAbsent("f", key -> {
+            throw new IllegalStateException();
+        }));
+        assertEquals("4", cache.computeIfAbsent("d", key -> "5"));
+
+        CacheStats delta = cache.getStats().minus(before);
+        assertEquals(1, delta.getHitCount());
+        assertEquals(3, delta.getMissCount());
+        assertEquals(1, delta.getLoadSuccessCount());
+        assertEquals(2, delta.getLoadFailureCount());
+        assertEquals(1, delta.getEvictionCount());
+        assertEquals(3, Arrays.stream(delta.getLoadTimeHistogram()).sum());
+        assertTrue(delta.getLoadTimePercentileNanos(100) >= delta.getTotalLoadTimeNanos() / 3);
+
+        cache.setRecordStats(false);
+        cache.get("a");
+        assertEquals(CacheStats.empty(), cache.getStats());
+    }
+
+    /**
+     * Tests that evictions of a weighted cache report the evicted weight.
+     */
+    @Test
+    void testStatsEvictionWeight() {
+        AtomicLong time = new AtomicLong();
+        CacheManager<String, byte[]> cache = new CacheManager<>(100, (key, value) -> value.length);
+        cache.setTicker(time::get);
+        cache.setRecordStats(true);
+        cache.put("a", new byte[60]);
+        cache.put("b", new byte[60]);
+        cache.put("c", new byte[10], 1, TimeUnit.SECONDS);
+        time.addAndGet(TimeUnit.SECONDS.toNanos(3));
+        cache.get("b");
+
+        CacheStats stats = cache.getStats();
+        assertEquals(2, stats.getEvictionCount());
+        assertEquals(70, stats.getEvictionWeight());
+    }
+
+    /**
+     * Compares the hit rates of the eviction policies on a skewed trace interrupted by large scans.
+     */
+    @Test
+    void testHitRateOnScanHeavyTrace() {
+        int[] trace = scanHeavyTrace(new Random(42), 1_000, 200_000);
+        double lru = hitRate(CacheManager.EvictionPolicy.LRU, 500, trace);
+        double tinyLfu = hitRate(CacheManager.EvictionPolicy.W_TINY_LFU, 500, trace);
+        System.out.printf("Scan-heavy trace hit rate: LRU %.2f%%, W-TinyLFU %.2f%%%n", lru * 100, tinyLfu * 100);
+
+        assertTrue(tinyLfu > lru + 0.05, "W-TinyLFU should resist the scans that flush LRU");
+    }
+
+    /**
+     * Compares the hit rates of the eviction policies on a Zipf distributed trace.
+     */
+    @Test
+    void testHitRateOnZipfTrace() {
+        Random random = new Random(7);
+        double[] cdf = zipfCdf(10_000, 0.9);
+        int[] trace = new int[200_000];
+        for (int i = 0; i < trace.length; i++) {
+            trace[i] = nextZipf(random, cdf);
+        }
+        double lru = hitRate(CacheManager.EvictionPolicy.LRU, 500, trace);
+        double tinyLfu = hitRate(CacheManager.EvictionPolicy.W_TINY_LFU, 500, trace);
+        System.out.printf("Zipf trace hit rate: LRU %.2f%%, W-TinyLFU %.2f%%%n", lru * 100, tinyLfu * 100);
+
+        assertTrue(tinyLfu >= lru, "W-TinyLFU should not do worse than LRU on a frequency skewed trace");
+    }
+
+    private static double hitRate(CacheManager.EvictionPolicy policy, int capacity, int[] trace) {
+        CacheManager<Integer, Integer> cache = new CacheManager<>(capacity, policy);
+        int hits = 0;
+        for (int key : trace) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        return (double) hits / trace.length;
+    }
+
+    /**
+     * Builds a trace where a Zipf distributed working set is regularly interrupted by a full scan of keys that
+     * are never requested again, like a periodic batch job sharing the cache with interactive traffic.
+     */
+    private static int[] scanHeavyTrace(Random random, int workingSet, int length) {
+        double[] cdf = zipfCdf(workingSet, 0.8);
+        int[] trace = new int[length];
+        int scanKey = workingSet;
+        int i = 0;
+        while (i < length) {
+            for (int j = 0; j < 2_000 && i < length; j++) {
+                trace[i++] = nextZipf(random, cdf);
+            }
+            for (int j = 0; j < 1_000 && i < length; j++) {
+                trace[i++] = scanKey++;
+            }
+        }
+        return trace;
+    }
+
+    private static double[] zipfCdf(int size, double exponent) {
+        double[] cdf = new double[size];
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < size; i++) {
+            cdf[i] /= sum;
+        }
+        return cdf;
+    }
+
+    private static int nextZipf(Random random, double[] cdf) {
+        int index = Arrays.binarySearch(cdf, random.nextDouble());
+        return index >= 0 ? index : Math.min(cdf.length - 1, -index - 1);
+    }
+}
@@ -0,0 +1,135 @@
+package fr.skogrine.utilitycm;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * Contention benchmark comparing a lock-guarded {@link CacheManager} with {@link ConcurrentCacheManager}.
+ *
+ * <p>Each thread performs about one write for every fifteen reads over a skewed key distribution, which is the
+ * workload where the access-ordered {@link java.util.LinkedHashMap} behind {@link CacheManager} needs a global lock
+ * even for reads. The benchmark prints the throughput of both caches for an increasing number of threads.</p>
+ *
+ * <p>Run it with:</p>
+ * <pre>{@code
+ * java -cp build/classes/java/main:build/classes/java/test fr.skogrine.utilitycm.ConcurrentCacheManagerBenchmark
+ * }</pre>
+ * The measurement time per run can be changed with {@code -Dbenchmark.millis=2000}.
+ */
+public class ConcurrentCacheManagerBenchmark {
+
+    private static final int CAPACITY = 10_000;
+    private static final int KEY_SPACE = 4 * CAPACITY;
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = Long.getLong("benchmark.millis", 1_000L);
+        int maxThreads = Integer.getInteger("benchmark.threads", 2 * Runtime.getRuntime().availableProcessors());
+        int[] keys = skewedKeys();
+
+        System.out.printf("%8s %22s %22s %8s%n", "threads", "synchronized (ops/s)", "concurrent (ops/s)", "ratio");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double locked = run(threads, millis, keys, capacity -> {
+                CacheManager<Integer, Integer> cache = new CacheManager<>(capacity);
+                return new BenchmarkCache() {
+                    @Override
+                    public Integer get(Integer key) {
+                        synchronized (cache) {
+                            return cache.get(key);
+                        }
+                    }
+
+                    @Override
+                    public void put(Integer key, Integer value) {
+                        synchronized (cache) {
+                            cache.put(key, value);
+                        }
+                    }
+                };
+            });
+            double concurrent = run(threads, millis, keys, capacity -> {
+                ConcurrentCacheManager<Integer, Integer> cache = new ConcurrentCacheManager<>(capacity);
+                return new BenchmarkCache() {
+                    @Override
+                    public Integer get(Integer key) {
+                        return cache.get(key);
+                    }
+
+                    @Override
+                    public void put(Integer key, Integer value) {
+                        cache.put(key, value);
+                    }
+                };
+            });
+            System.out.printf("%8d %22.0f %22.0f %8.2f%n", threads, locked, concurrent, concurrent / locked);
+        }
+    }
+
+    /**
+     * The subset of cache operations exercised by the benchmark.
+     */
+    private interface BenchmarkCache {
+        Integer get(Integer key);
+
+        void put(Integer key, Integer value);
+    }
+
+    private static double run(int threads, long millis, int[] keys, IntFunction<BenchmarkCache> factory) throws InterruptedException {
+        BenchmarkCache cache = factory.apply(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            cache.put(keys[i], i);
+        }
+
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long[] deadline = new long[1];
+
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                int index = ThreadLocalRandom.current().nextInt(keys.length);
+                long count = 0;
+                while ((count & 1023) != 0 || System.nanoTime() < deadline[0]) {
+                    Integer key = keys[index];
+                    index = (index + 1) & (keys.length - 1);
+                    if ((count & 15) == 0) {
+                        cache.put(key, index);
+                    } else if (cache.get(key) == null && (count & 7) == 0) {
+                        cache.put(key, index);
+                    }
+                    count++;
+                }
+                operations.add(count);
+                done.countDown();
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        deadline[0] = System.nanoTime() + millis * 1_000_000L;
+        start.countDown();
+        done.await();
+        return operations.sum() * 1_000.0 / millis;
+    }
+
+    /**
+     * Precomputes a Zipf-like sequence of keys so that key generation does not dominate the measurement.
+     */
+    private static int[] skewedKeys() {
+        int[] keys = new int[1 << 20];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < keys.length; i++) {
+            // Squaring a uniform variable concentrates the accesses on the low keys
+            double u = random.nextDouble();
+            keys[i] = (int) (u * u * KEY_SPACE);
+        }
+        return keys;
+    }
+}
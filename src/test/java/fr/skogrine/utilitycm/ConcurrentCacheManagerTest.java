@@ -0,0 +1,97 @@
+package fr.skogrine.utilitycm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link ConcurrentCacheManager} class.
+ */
+class ConcurrentCacheManagerTest {
+
+    /**
+     * Tests that a small cache evicts the least recently used entry, like {@link CacheManager}.
+     */
+    @Test
+    void testLruEviction() {
+        ConcurrentCacheManager<String, String> cache = new ConcurrentCacheManager<>(3);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        assertEquals("1", cache.get("a"));
+
+        cache.put("d", "4");
+
+        assertNull(cache.get("b"), "b should be evicted because a was read more recently");
+        assertEquals("1", cache.get("a"));
+        assertEquals("3", cache.get("c"));
+        assertEquals("4", cache.get("d"));
+        assertEquals(3, cache.size());
+    }
+
+    /**
+     * Tests updating, removing and clearing entries.
+     */
+    @Test
+    void testUpdateRemoveAndClear() {
+        ConcurrentCacheManager<String, Integer> cache = new ConcurrentCacheManager<>(10);
+        assertNull(cache.put("a", 1));
+        assertEquals(1, cache.put("a", 2));
+        assertEquals(2, cache.get("a"));
+        assertTrue(cache.containsKey("a"));
+
+        assertEquals(2, cache.remove("a"));
+        assertNull(cache.remove("a"));
+        assertFalse(cache.containsKey("a"));
+
+        cache.put("b", 1);
+        cache.get("b");
+        cache.clear();
+        assertEquals(0, cache.size());
+        cache.put("c", 3);
+        assertEquals(3, cache.get("c"));
+    }
+
+    /**
+     * Tests that concurrent readers and writers never exceed the capacity or mix up values.
+     */
+    @Test
+    void testConcurrentAccess() throws InterruptedException {
+        int capacity = 1_000;
+        ConcurrentCacheManager<Integer, Integer> cache = new ConcurrentCacheManager<>(capacity, 8);
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 50_000; i++) {
+                    int key = random.nextInt(4 * capacity);
+                    if (random.nextInt(10) == 0) {
+                        cache.put(key, key * 2);
+                    } else {
+                        Integer value = cache.get(key);
+                        if (value != null && value != key * 2) {
+                            synchronized (failures) {
+                                failures.add(new AssertionError("Wrong value " + value + " for key " + key));
+                            }
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(failures.isEmpty(), () -> failures.get(0).getMessage());
+        assertTrue(cache.size() <= capacity, "Cache should never hold more than its capacity");
+        assertTrue(cache.size() > 0);
+    }
+}
@@ -0,0 +1,127 @@
+package fr.skogrine.utilitycm;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link CronExpression} class.
+ */
+class CronExpressionTest {
+
+    @Test
+    void testNext() {
+        assertNext("*/15 * * * *", "2024-03-10T10:07:30", "2024-03-10T10:15:00");
+        assertNext("0 9-17 * * MON-FRI", "2024-03-08T17:30:00", "2024-03-11T09:00:00");
+        assertNext("30 0 1 JAN,jul *", "2024-02-01T00:00:00", "2024-07-01T00:30:00");
+        assertNext("0 0 29 2 *", "2024-03-01T00:00:00", "2028-02-29T00:00:00");
+        assertNext("10/20 * * * * *", "2024-03-10T10:00:50", "2024-03-10T10:01:10");
+        assertNext("0 0 31 * *", "2024-04-01T00:00:00", "2024-05-31T00:00:00");
+        assertNext("59 23 31 12 *", "2024-12-31T23:59:00", "2025-12-31T23:59:00");
+        // Sunday is both 0 and 7
+        assertNext("0 12 * * 7", "2024-03-06T00:00:00", "2024-03-10T12:00:00");
+        // Either restricted day field matches: the 15th or a Monday
+        assertNext("0 0 15 * 1", "2024-03-12T00:00:00", "2024-03-15T00:00:00");
+        assertNext("0 0 15 * 1", "2024-03-15T00:00:00", "2024-03-18T00:00:00");
+        // A step over * is not a restriction: an odd day of the month that is also a Monday
+        assertNext("0 0 */2 * MON", "2024-03-04T00:00:00", "2024-03-11T00:00:00");
+        assertNext("0 0 1-31 * MON", "2024-03-04T00:00:00", "2024-03-05T00:00:00");
+        assertNull(CronExpression.parse("0 0 30 2 *").next(ZonedDateTime.now(ZoneOffset.UTC)));
+    }
+
+    @Test
+    void testInvalidExpressions() {
+        assertThrows(IllegalArgumentException.class, () -> CronExpression.parse("* * * *"));
+        assertThrows(IllegalArgumentException.class, () -> CronExpression.parse("60 * * * *"));
+        assertThrows(IllegalArgumentException.class, () -> CronExpression.parse("* * 0 * *"));
+        assertThrows(IllegalArgumentException.class, () -> CronExpression.parse("5-1 * * * *"));
+        assertThrows(IllegalArgumentException.class, () -> CronExpression.parse("*/0 * * * *"));
+        assertThrows(IllegalArgumentException.class, () -> CronExpression.parse("* * * FOO *"));
+    }
+
+    /**
+     * Tests that a time skipped by a daylight saving transition fires right after the gap, and a repeated one
+     * fires once.
+     */
+    @Test
+    void testDaylightSaving() {
+        ZoneId paris = ZoneId.of("Europe/Paris");
+        CronExpression cron = CronExpression.parse("30 2 * * *");
+        ZonedDateTime spring = cron.next(ZonedDateTime.of(2024, 3, 31, 0, 0, 0, 0, paris));
+        assertEquals(LocalDateTime.of(2024, 3, 31, 3, 30), spring.toLocalDateTime());
+
+        ZonedDateTime autumn = cron.next(ZonedDateTime.of(2024, 10, 27, 0, 0, 0, 0, paris));
+        assertEquals(LocalDateTime.of(2024, 10, 27, 2, 30), autumn.toLocalDateTime());
+        assertEquals(LocalDateTime.of(2024, 10, 28, 2, 30), cron.next(autumn).toLocalDateTime());
+    }
+
+    /**
+     * Tests the bitset computation against a minute-by-minute scan.
+     */
+    @Test
+    void testAgainstScan() {
+        Random random = new Random(7);
+        String[] expressions = {"*/7 3,9 * * *", "0 0 1-7 * MON", "15 * */3 2-11 SAT,SUN", "0 12 13 * FRI",
+                "0 6 */2 * MON", "0 0 10-20 * */2"};
+        for (String expression : expressions) {
+            CronExpression cron = CronExpression.parse(expression);
+            for (int i = 0; i < 20; i++) {
+                ZonedDateTime start = ZonedDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC)
+                        .plusMinutes(random.nextInt(500_000));
+                ZonedDateTime expected = start.plusMinutes(1);
+                while (!matches(expression, expected)) {
+                    expected = expected.plusMinutes(1);
+                }
+                assertEquals(expected, cron.next(start), expression + " after " + start);
+            }
+        }
+    }
+
+    private static boolean matches(String expression, ZonedDateTime time) {
+        String[] fields = expression.split(" ");
+        boolean dayOfMonth = matches(fields[2], time.getDayOfMonth(), 1);
+        boolean dayOfWeek = matches(fields[4], time.getDayOfWeek().getValue() % 7, 0);
+        // As in Vixie cron, a day field starting with * is not restricted, and both must match then
+        boolean day = fields[2].startsWith("*") || fields[4].startsWith("*") ? dayOfMonth && dayOfWeek
+                : dayOfMonth || dayOfWeek;
+        return matches(fields[0], time.getMinute(), 0) && matches(fields[1], time.getHour(), 0) && day
+                && matches(fields[3], time.getMonthValue(), 1);
+    }
+
+    private static boolean matches(String field, int value, int min) {
+        String[] days = {"SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT"};
+        for (String part : field.split(",")) {
+            for (int i = 0; i < days.length; i++) {
+                part = part.replace(days[i], Integer.toString(i));
+            }
+            if (part.equals("*")) {
+                return true;
+            }
+            if (part.startsWith("*/")) {
+                if ((value - min) % Integer.parseInt(part.substring(2)) == 0) {
+                    return true;
+                }
+            } else if (part.contains("-")) {
+                String[] range = part.split("-");
+                if (value >= Integer.parseInt(range[0]) && value <= Integer.parseInt(range[1])) {
+                    return true;
+                }
+            } else if (Integer.parseInt(part) == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void assertNext(String expression, String after, String expected) {
+        ZonedDateTime start = LocalDateTime.parse(after).atZone(ZoneOffset.UTC);
+        assertEquals(LocalDateTime.parse(expected), CronExpression.parse(expression).next(start).toLocalDateTime(),
+                expression + " after " + after);
+    }
+}
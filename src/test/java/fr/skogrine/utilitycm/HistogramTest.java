@@ -0,0 +1,139 @@
+package fr.skogrine.utilitycm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link Histogram} class.
+ */
+class HistogramTest {
+
+    /**
+     * Tests that every value lands in a bucket holding it, and that buckets follow each other without gaps.
+     */
+    @Test
+    void testBuckets() {
+        for (int precisionBits = 1; precisionBits <= 10; precisionBits++) {
+            int buckets = Histogram.bucketCount(precisionBits);
+            assertEquals(0, Histogram.lowestValue(0, precisionBits));
+            for (int i = 1; i < buckets; i++) {
+                assertEquals(Histogram.highestValue(i - 1, precisionBits) + 1, Histogram.lowestValue(i, precisionBits));
+            }
+            assertEquals(Long.MAX_VALUE, Histogram.highestValue(buckets - 1, precisionBits));
+
+            Random random = new Random(precisionBits);
+            for (int i = 0; i < 10_000; i++) {
+                long value = random.nextLong() >>> random.nextInt(64);
+                int index = Histogram.bucketIndex(value, precisionBits);
+                assertTrue(Histogram.lowestValue(index, precisionBits) <= value);
+                assertTrue(Histogram.highestValue(index, precisionBits) >= value);
+            }
+        }
+    }
+
+    @Test
+    void testPercentiles() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1_000);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(100_000, snapshot.getCount());
+        assertEquals(1_000, snapshot.getMin());
+        assertEquals(100_000_000, snapshot.getMax());
+        assertEquals(50_000_500.0, snapshot.getMean(), 0.001);
+        assertWithinPrecision(50_000_000, snapshot.getP50());
+        assertWithinPrecision(90_000_000, snapshot.getP90());
+        assertWithinPrecision(99_000_000, snapshot.getP99());
+        assertWithinPrecision(99_900_000, snapshot.getP999());
+        assertEquals(100_000_000, snapshot.getValueAtPercentile(100));
+        assertThrows(IllegalArgumentException.class, () -> histogram.record(-1));
+
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getP99());
+    }
+
+    /**
+     * Tests that a snapshot whose minimum and maximum were read before a concurrent record or reset updated them
+     * still reports percentiles within the recorded buckets.
+     */
+    @Test
+    void testSnapshotWithStaleMinAndMax() {
+        long[] counts = new long[Histogram.bucketCount(7)];
+        counts[Histogram.bucketIndex(9, 7)] = 1;
+        counts[Histogram.bucketIndex(1_000_000, 7)] = 1;
+        Histogram.Snapshot snapshot = new Histogram.Snapshot(7, counts, 2, 1_000_009, Long.MAX_VALUE, 0);
+        assertEquals(9, snapshot.getMin());
+        assertEquals(9, snapshot.getP50());
+        assertTrue(snapshot.getMax() >= 1_000_000);
+        assertTrue(snapshot.getP99() >= 1_000_000 && snapshot.getP99() <= snapshot.getMax());
+
+        long[] values = new long[2];
+        Histogram histogram = new Histogram();
+        histogram.record(9);
+        histogram.reset();
+        assertEquals(0, histogram.readPercentiles(new double[] {50, 99}, values));
+        histogram.record(9);
+        assertEquals(1, histogram.readPercentiles(new double[] {50, 99}, values));
+        assertEquals(9, values[0]);
+        assertEquals(9, values[1]);
+    }
+
+    @Test
+    void testMerge() {
+        Histogram fast = new Histogram();
+        Histogram slow = new Histogram();
+        for (int i = 0; i < 990; i++) {
+            fast.record(1_000);
+        }
+        for (int i = 0; i < 10; i++) {
+            slow.record(1_000_000);
+        }
+        Histogram.Snapshot merged = fast.snapshot().merge(slow.snapshot());
+
+        assertEquals(1_000, merged.getCount());
+        assertEquals(1_000, merged.getMin());
+        assertEquals(1_000_000, merged.getMax());
+        assertWithinPrecision(1_000, merged.getP99());
+        assertWithinPrecision(1_000_000, merged.getP999());
+        assertThrows(IllegalArgumentException.class, () -> merged.merge(new Histogram(3).snapshot()));
+    }
+
+    /**
+     * Tests that no value is lost when threads record concurrently.
+     */
+    @Test
+    void testConcurrentRecording() throws InterruptedException {
+        Histogram histogram = new Histogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(i % 1_000);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(400_000, snapshot.getCount());
+        assertEquals(4L * 100 * (999 * 1_000 / 2), snapshot.getSum());
+        assertEquals(999, snapshot.getMax());
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        double error = Math.abs(actual - expected) / (double) expected;
+        assertTrue(error < 1.0 / (1 << (Histogram.DEFAULT_PRECISION_BITS - 1)),
+                "Expected about " + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,141 @@
+package fr.skogrine.utilitycm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link KeyedRateLimiter} class.
+ */
+class KeyedRateLimiterTest {
+
+    @Test
+    void testKeysAreLimitedIndependently() {
+        AtomicLong time = new AtomicLong();
+        KeyedRateLimiter limiter = new KeyedRateLimiter(1, 1, TimeUnit.SECONDS, 2, 1_000);
+        limiter.setTicker(time::get);
+
+        assertTrue(limiter.tryAcquire("alice", 2));
+        assertFalse(limiter.tryAcquire("alice"));
+        assertTrue(limiter.tryAcquire("bob"));
+        assertTrue(limiter.tryAcquire(42L));
+        assertTrue(limiter.tryAcquire(42L));
+        assertFalse(limiter.tryAcquire(42L));
+
+        time.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertTrue(limiter.tryAcquire("alice"));
+        assertFalse(limiter.tryAcquire("alice"));
+        assertThrows(IllegalArgumentException.class, () -> limiter.tryAcquire("alice", 3));
+    }
+
+    /**
+     * Tests that idle keys are evicted without changing the decisions made for them.
+     */
+    @Test
+    void testIdleKeysAreEvicted() {
+        AtomicLong time = new AtomicLong();
+        KeyedRateLimiter limiter = new KeyedRateLimiter(1, 1, TimeUnit.SECONDS, 1, 1_000_000);
+        limiter.setTicker(time::get);
+
+        for (long key = 0; key < 10_000; key++) {
+            assertTrue(limiter.tryAcquire(key));
+        }
+        assertEquals(10_000, limiter.size());
+
+        // Key 0 refills, the others stay throttled
+        time.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        for (long key = 1; key < 10_000; key++) {
+            assertTrue(limiter.tryAcquire(key));
+        }
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        limiter.cleanUp();
+        assertEquals(9_999, limiter.size());
+        assertFalse(limiter.tryAcquire(1L));
+        assertTrue(limiter.tryAcquire(0L));
+
+        time.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        limiter.cleanUp();
+        assertEquals(0, limiter.size());
+    }
+
+    /**
+     * Tests that the memory stays bounded when more keys are active than allowed.
+     */
+    @Test
+    void testMaximumKeys() {
+        AtomicLong time = new AtomicLong();
+        KeyedRateLimiter limiter = new KeyedRateLimiter(1, 1, TimeUnit.HOURS, 1, 10_000);
+        limiter.setTicker(time::get);
+
+        for (long key = 0; key < 1_000_000; key++) {
+            assertTrue(limiter.tryAcquire(key));
+        }
+        assertTrue(limiter.size() <= 40_000, "Too many keys tracked: " + limiter.size());
+
+        // The most recent keys are still throttled
+        assertFalse(limiter.tryAcquire(999_999L));
+    }
+
+    /**
+     * Tests that a stripe tracking very few keys still keeps its most throttled key when it runs out of room.
+     */
+    @Test
+    void testSmallMaximumKeys() {
+        for (int maximumKeys = 1; maximumKeys <= 4; maximumKeys++) {
+            AtomicLong time = new AtomicLong();
+            KeyedRateLimiter limiter = new KeyedRateLimiter(1, 1, TimeUnit.HOURS, 2, maximumKeys);
+            limiter.setTicker(time::get);
+            assertTrue(limiter.tryAcquire(7L, 2));
+
+            // The other keys keep a token each, so key 7 is the most throttled one
+            for (long key = 1_000; key < 1_100; key++) {
+                assertTrue(limiter.tryAcquire(key));
+                assertFalse(limiter.tryAcquire(7L), "Key 7 forgotten with " + maximumKeys + " maximum keys");
+            }
+        }
+    }
+
+    /**
+     * Tests that concurrent acquisitions on shared keys grant exactly the allowed number of permits, while new
+     * keys keep forcing the tables to be rebuilt.
+     */
+    @Test
+    void testConcurrentAcquisitionsAreExact() throws InterruptedException {
+        KeyedRateLimiter limiter = new KeyedRateLimiter(1, 1, TimeUnit.HOURS, 100, 1_000_000);
+        int threadCount = 8;
+        AtomicInteger granted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            int id = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < 10_000; i++) {
+                    if (limiter.tryAcquire("shared-" + (i % 10))) {
+                        granted.incrementAndGet();
+                    }
+                    limiter.tryAcquire((long) id << 32 | i);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(10 * 100, granted.get());
+    }
+}
@@ -0,0 +1,179 @@
+package fr.skogrine.utilitycm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link LoadingCacheManager} class.
+ */
+class LoadingCacheManagerTest {
+
+    /**
+     * Tests that concurrent misses on the same key run the loader only once.
+     */
+    @Test
+    void testConcurrentMissesAreCoalesced() throws Exception {
+        LoadingCacheManager<String, String> cache = new LoadingCacheManager<>(100);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return cache.get("hot", key -> {
+                        loads.incrementAndGet();
+                        sleep(100);
+                        return key.toUpperCase();
+                    });
+                }));
+            }
+            start.countDown();
+            for (Future<String> result : results) {
+                assertEquals("HOT", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+        assertEquals("HOT", cache.getIfPresent("hot"));
+    }
+
+    /**
+     * Tests that a failed load is reported and not cached.
+     */
+    @Test
+    void testFailedLoadIsNotCached() {
+        LoadingCacheManager<String, String> cache = new LoadingCacheManager<>(100);
+        IllegalStateException failure = assertThrows(IllegalStateException.class,
+                () -> cache.get("a", key -> {
+                    throw new IllegalStateException("backend down");
+                }));
+        assertEquals("backend down", failure.getMessage());
+        assertNull(cache.getIfPresent("a"));
+        assertNull(cache.get("a", key -> null));
+        assertEquals(0, cache.size());
+        assertEquals("1", cache.get("a", key -> "1"));
+    }
+
+    /**
+     * Tests that a stale entry is served while it is reloaded in the background.
+     */
+    @Test
+    void testRefreshAfterWrite() {
+        AtomicLong time = new AtomicLong();
+        List<Runnable> refreshes = new ArrayList<>();
+        LoadingCacheManager<String, Integer> cache = new LoadingCacheManager<String, Integer>(100)
+                .setRefreshAfterWrite(1, TimeUnit.MINUTES)
+                .setRefreshExecutor(refreshes::add);
+        cache.setTicker(time::get);
+        AtomicInteger version = new AtomicInteger();
+
+        assertEquals(1, cache.get("a", key -> version.incrementAndGet()));
+        time.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        assertEquals(1, cache.get("a", key -> version.incrementAndGet()));
+        assertTrue(refreshes.isEmpty());
+
+        time.addAndGet(TimeUnit.SECONDS.toNanos(31));
+        assertEquals(1, cache.get("a", key -> version.incrementAndGet()));
+        assertEquals(1, cache.get("a", key -> version.incrementAndGet()));
+        assertEquals(1, refreshes.size(), "Only one refresh should be started");
+
+        refreshes.remove(0).run();
+        assertEquals(2, cache.get("a", key -> version.incrementAndGet()));
+        assertEquals(2, version.get());
+    }
+
+    /**
+     * Tests that the misses of a bulk lookup are loaded with one call.
+     */
+    @Test
+    void testGetAllBatchesMisses() {
+        LoadingCacheManager<Integer, String> cache = new LoadingCacheManager<>(100);
+        cache.put(2, "two");
+        List<Set<Integer>> calls = new ArrayList<>();
+
+        Map<Integer, String> values = cache.getAll(List.of(1, 2, 3, 4), keys -> {
+            calls.add(Set.copyOf(keys));
+            Map<Integer, String> loaded = new HashMap<>();
+            for (int key : keys) {
+                if (key != 4) {
+                    loaded.put(key, "#" + key);
+                }
+            }
+            return loaded;
+        });
+
+        assertEquals(List.of(Set.of(1, 3, 4)), calls);
+        assertEquals(List.of(1, 2, 3), new ArrayList<>(values.keySet()));
+        assertEquals("two", values.get(2));
+        assertEquals("#3", values.get(3));
+        assertEquals("#1", cache.getIfPresent(1));
+        assertNull(cache.getIfPresent(4));
+        assertEquals(3, cache.size());
+    }
+
+    /**
+     * Tests that a bulk lookup accepts keys that can only be iterated once.
+     */
+    @Test
+    void testGetAllWithOneShotIterable() {
+        LoadingCacheManager<Integer, String> cache = new LoadingCacheManager<>(100);
+        cache.put(2, "two");
+        // The stream is created once, so a second call of iterator() fails
+        Iterable<Integer> keys = Stream.of(3, 2, 1)::iterator;
+
+        Map<Integer, String> values = cache.getAll(keys, missing -> {
+            Map<Integer, String> loaded = new HashMap<>();
+            missing.forEach(key -> loaded.put(key, "#" + key));
+            return loaded;
+        });
+        assertEquals(List.of(3, 2, 1), new ArrayList<>(values.keySet()));
+        assertEquals("two", values.get(2));
+    }
+
+    /**
+     * Tests that lookups and loads are recorded once per key and once per loader call.
+     */
+    @Test
+    void testStats() {
+        LoadingCacheManager<Integer, String> cache = new LoadingCacheManager<Integer, String>(100)
+                .setRecordStats(true);
+        cache.get(1, key -> "one");
+        cache.get(1, key -> "one");
+        cache.getAll(List.of(1, 2, 3), keys -> Map.of(2, "two", 3, "three"));
+        assertThrows(IllegalStateException.class, () -> cache.get(4, key -> {
+            throw new IllegalStateException();
+        }));
+
+        CacheStats stats = cache.getStats();
+        assertEquals(2, stats.getHitCount());
+        assertEquals(4, stats.getMissCount());
+        assertEquals(2, stats.getLoadSuccessCount());
+        assertEquals(1, stats.getLoadFailureCount());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
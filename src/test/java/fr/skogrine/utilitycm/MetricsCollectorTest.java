@@ -1,7 +1,14 @@
 package fr.skogrine.utilitycm;
 
 import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 class MetricsCollectorTest {
 
@@ -22,4 +29,144 @@ class MetricsCollectorTest {
 
         assertTrue(duration >= 500); // Ensure duration is as expected
     }
+
+    /**
+     * Tests that every measured duration is kept in the histogram of its metric.
+     */
+    @Test
+    void testHistogram() {
+        MetricsCollector metricsCollector = new MetricsCollector();
+        assertNull(metricsCollector.getSnapshot("task"));
+
+        for (int i = 0; i < 10; i++) {
+            metricsCollector.start("task");
+            metricsCollector.stop("task");
+        }
+        metricsCollector.histogram("task").record(5_000_000);
+
+        Histogram.Snapshot snapshot = metricsCollector.getSnapshot("task");
+        assertEquals(11, snapshot.getCount());
+        assertEquals(5_000_000, snapshot.getMax());
+        assertSame(metricsCollector.histogram("task"), metricsCollector.histogram("task"));
+    }
+
+    /**
+     * Tests that overlapping operations of the same metric are timed independently.
+     */
+    @Test
+    void testTimer() throws InterruptedException {
+        MetricsCollector metricsCollector = new MetricsCollector();
+        MetricsCollector.Timer timer = metricsCollector.timer("request");
+        assertSame(timer, metricsCollector.timer("request"));
+
+        long slow = timer.start();
+        Thread.sleep(20);
+        long fast = timer.start();
+        long fastDuration = timer.stop(fast);
+        long slowDuration = timer.stop(slow);
+
+        assertTrue(slowDuration >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(fastDuration < slowDuration);
+        assertEquals(2, metricsCollector.getSnapshot("request").getCount());
+    }
+
+    /**
+     * Tests that starting and stopping a timer allocates nothing, using the allocation counter of the thread.
+     */
+    @Test
+    void testTimerDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "Allocation counters are not supported");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled(),
+                "Allocation counters are not enabled");
+        MetricsCollector.Timer timer = new MetricsCollector().timer("hot");
+
+        long threadId = Thread.currentThread().getId();
+        int calls = 1_000_000;
+        for (int i = 0; i < calls; i++) {
+            timer.stop(timer.start());
+        }
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < calls; i++) {
+            timer.stop(timer.start());
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        // Reading the counter itself may allocate a little, never close to a byte per call
+        assertTrue(allocated < calls / 100, "Allocated " + (double) allocated / calls + " bytes per call");
+    }
+
+    /**
+     * Tests that metrics are identified by their name and tags, whatever the order of the tags.
+     */
+    @Test
+    void testRegistry() {
+        MetricsCollector metricsCollector = new MetricsCollector();
+        MetricsCollector.Counter get = metricsCollector.counter("requests", "method", "GET", "status", "200");
+        MetricsCollector.Counter post = metricsCollector.counter("requests", "method", "POST", "status", "200");
+        assertSame(get, metricsCollector.counter("requests", "status", "200", "method", "GET"));
+        assertNotSame(get, post);
+
+        get.increment();
+        get.increment(2);
+        post.increment();
+        assertEquals(3, get.getCount());
+        assertEquals(1, post.getCount());
+        assertThrows(IllegalArgumentException.class, () -> get.increment(-1));
+
+        AtomicInteger inFlight = new AtomicInteger(4);
+        MetricsCollector.Gauge gauge = metricsCollector.gauge("inFlight", inFlight::get);
+        inFlight.incrementAndGet();
+        assertEquals(5.0, gauge.getValue());
+
+        assertThrows(IllegalArgumentException.class, () -> metricsCollector.meter("inFlight"));
+        assertThrows(IllegalArgumentException.class, () -> metricsCollector.counter("requests", "method"));
+        assertEquals(3, metricsCollector.getMetrics().size());
+        assertEquals("requests{method=GET, status=200}", new MetricsCollector.MetricId("requests", "status", "200",
+                "method", "GET").toString());
+    }
+
+    /**
+     * Tests that the legacy start and stop methods keep working on a name registered as another type of metric.
+     */
+    @Test
+    void testStopOnNameOfAnotherMetric() {
+        MetricsCollector metricsCollector = new MetricsCollector();
+        MetricsCollector.Counter counter = metricsCollector.counter("requests");
+        counter.increment();
+
+        metricsCollector.start("requests");
+        metricsCollector.stop("requests");
+        assertTrue(metricsCollector.getDuration("requests") >= 0);
+        assertSame(counter, metricsCollector.getMetrics().get(new MetricsCollector.MetricId("requests")));
+
+        metricsCollector.start("latency");
+        metricsCollector.stop("latency");
+        assertEquals(1, metricsCollector.getSnapshot("latency").getCount());
+    }
+
+    /**
+     * Tests the moving averages of a meter against their closed form.
+     */
+    @Test
+    void testMeter() {
+        AtomicLong time = new AtomicLong();
+        MetricsCollector metricsCollector = new MetricsCollector();
+        metricsCollector.setTicker(time::get);
+        MetricsCollector.Meter meter = metricsCollector.meter("events");
+
+        // 10 events per second during the first interval, nothing afterwards
+        meter.mark(50);
+        time.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        assertEquals(10.0, meter.getOneMinuteRate(), 1e-9);
+        assertEquals(10.0, meter.getFifteenMinuteRate(), 1e-9);
+        assertEquals(10.0, meter.getMeanRate(), 1e-9);
+
+        time.addAndGet(TimeUnit.MINUTES.toNanos(1));
+        assertEquals(10.0 * Math.exp(-1), meter.getOneMinuteRate(), 1e-9);
+        assertEquals(10.0 * Math.exp(-1.0 / 5), meter.getFiveMinuteRate(), 1e-9);
+        assertEquals(10.0 * Math.exp(-1.0 / 15), meter.getFifteenMinuteRate(), 1e-9);
+        assertEquals(50, meter.getCount());
+    }
 }
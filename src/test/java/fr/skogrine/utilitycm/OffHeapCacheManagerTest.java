@@ -0,0 +1,132 @@
+package fr.skogrine.utilitycm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link OffHeapCacheManager} class.
+ */
+class OffHeapCacheManagerTest {
+
+    /**
+     * Tests storing, replacing and removing values, and the memory accounting of each operation.
+     */
+    @Test
+    void testPutGetAndRemove() {
+        OffHeapCacheManager<String, String> cache = new OffHeapCacheManager<>(1 << 20, CacheCodec.utf8());
+        cache.put("a", "1");
+        cache.put("b", "x".repeat(100));
+        assertEquals("1", cache.get("a"));
+        assertEquals("x".repeat(100), cache.get("b"));
+        assertEquals(64 + 128, cache.getUsedBytes());
+
+        cache.put("a", "y".repeat(90));
+        assertEquals("y".repeat(90), cache.get("a"));
+        assertEquals(96 + 128, cache.getUsedBytes());
+
+        assertTrue(cache.remove("a"));
+        assertFalse(cache.remove("a"));
+        assertNull(cache.get("a"));
+        assertEquals(128, cache.getUsedBytes());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getUsedBytes());
+    }
+
+    /**
+     * Tests that the least recently used entries are evicted to stay within the maximum memory.
+     */
+    @Test
+    void testEvictionIsBoundedByBytes() {
+        OffHeapCacheManager<Integer, byte[]> cache = new OffHeapCacheManager<>(10 * 1024, CacheCodec.bytes());
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, new byte[100]);
+            assertTrue(cache.getUsedBytes() <= 10 * 1024);
+        }
+        assertEquals(80, cache.size(), "Each value uses a 128 bytes chunk");
+        assertFalse(cache.containsKey(19));
+        assertTrue(cache.containsKey(20));
+
+        // A value larger than the whole cache is not retained
+        cache.put(-1, new byte[20 * 1024]);
+        assertFalse(cache.containsKey(-1));
+        assertTrue(cache.getUsedBytes() <= 10 * 1024);
+    }
+
+    /**
+     * Tests that the memory of evicted values is reused rather than reserved again.
+     */
+    @Test
+    void testMemoryIsRecycled() {
+        OffHeapCacheManager<Integer, byte[]> cache = new OffHeapCacheManager<>(4 << 20, CacheCodec.bytes(),
+                CacheManager.EvictionPolicy.W_TINY_LFU);
+        Random random = new Random(5);
+        long reservedAfterWarmUp = 0;
+        for (int i = 0; i < 200_000; i++) {
+            byte[] value = new byte[1 + random.nextInt(2_000)];
+            value[0] = (byte) i;
+            cache.put(i, value);
+            if (i == 50_000) {
+                reservedAfterWarmUp = cache.getReservedBytes();
+            }
+        }
+        assertTrue(cache.getUsedBytes() <= 4 << 20);
+        assertTrue(cache.getReservedBytes() <= reservedAfterWarmUp + (4 << 20),
+                "Reserved memory kept growing: " + cache.getReservedBytes());
+        byte[] last = cache.get(199_999);
+        assertNotNull(last);
+        assertEquals((byte) 199_999, last[0]);
+
+        cache.close();
+        assertEquals(0, cache.getReservedBytes());
+    }
+
+    /**
+     * Tests that the reserved memory, free chunks and empty slabs included, stays within the maximum while values
+     * of every size class come and go.
+     */
+    @Test
+    void testReservedMemoryIsBounded() {
+        for (CacheManager.EvictionPolicy policy : CacheManager.EvictionPolicy.values()) {
+            for (long maximum : new long[] {1 << 20, 4 << 20, 8 << 20}) {
+                OffHeapCacheManager<Integer, byte[]> cache = new OffHeapCacheManager<>(maximum, CacheCodec.bytes(),
+                        policy);
+                Random random = new Random(11);
+                for (int i = 0; i < 50_000; i++) {
+                    // Sizes spread over every size class, with a few values larger than a slab
+                    int length = 1 << random.nextInt(i % 100 == 0 ? 19 : 15);
+                    cache.put(random.nextInt(5_000), new byte[length + random.nextInt(length)]);
+                    assertTrue(cache.getReservedBytes() <= maximum,
+                            policy + " cache of " + maximum + " reserved " + cache.getReservedBytes());
+                }
+                assertTrue(cache.getUsedBytes() <= cache.getReservedBytes());
+            }
+        }
+
+        OffHeapCacheManager<String, String> single = new OffHeapCacheManager<>(1 << 20, CacheCodec.utf8());
+        single.put("a", "1");
+        assertTrue(single.getReservedBytes() <= 1 << 20, "Reserved " + single.getReservedBytes());
+    }
+
+    /**
+     * Tests that a value larger than a slab is stored across several slabs and read back whole.
+     */
+    @Test
+    void testValueLargerThanSlab() {
+        OffHeapCacheManager<Integer, byte[]> cache = new OffHeapCacheManager<>(1 << 20, CacheCodec.bytes());
+        byte[] value = new byte[100_000];
+        new Random(3).nextBytes(value);
+        cache.put(1, value);
+        assertArrayEquals(value, cache.get(1));
+        assertTrue(cache.getReservedBytes() <= 1 << 20);
+
+        assertTrue(cache.remove(1));
+        cache.put(2, new byte[10]);
+        assertEquals(64, cache.getUsedBytes());
+        assertTrue(cache.getReservedBytes() <= 1 << 20);
+    }
+}
@@ -0,0 +1,147 @@
+package fr.skogrine.utilitycm;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link PrometheusExporter} class.
+ */
+class PrometheusExporterTest {
+
+    @Test
+    void testScrapeOverHttp() throws Exception {
+        MetricsCollector metrics = new MetricsCollector();
+        metrics.counter("http.requests", "method", "GET", "status", "200").increment(3);
+        metrics.counter("http.requests", "method", "POST", "status", "500").increment();
+        metrics.gauge("queue_size", () -> 42);
+
+        try (PrometheusExporter exporter = new PrometheusExporter(metrics,
+                new InetSocketAddress("localhost", 0))) {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + exporter.getPort()
+                    + "/metrics").openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                in.transferTo(body);
+            }
+            List<String> lines = Arrays.asList(body.toString(StandardCharsets.UTF_8).split("\n"));
+
+            assertEquals(List.of(
+                    "# TYPE http_requests_total counter",
+                    "http_requests_total{method=\"GET\",status=\"200\"} 3",
+                    "http_requests_total{method=\"POST\",status=\"500\"} 1",
+                    "# TYPE queue_size gauge",
+                    "queue_size 42"), lines);
+        }
+    }
+
+    @Test
+    void testHistogramsAndMeters() throws Exception {
+        MetricsCollector metrics = new MetricsCollector();
+        MetricsCollector.Timer timer = metrics.timer("latency", "path", "/a\"b\\c\nd");
+        for (int i = 1; i <= 1_000; i++) {
+            timer.record(i, TimeUnit.NANOSECONDS);
+        }
+        metrics.meter("events").mark(5);
+        metrics.gauge("ratio", () -> Double.NaN);
+
+        try (PrometheusExporter exporter = new PrometheusExporter(metrics, 0)) {
+            String text = exporter.scrape();
+            String labels = "path=\"/a\\\"b\\\\c\\nd\"";
+            assertTrue(text.contains("# TYPE latency summary\n"), text);
+            long median = timer.getHistogram().snapshot().getP50();
+            assertTrue(text.contains("latency{" + labels + ",quantile=\"0.5\"} " + median + "\n"), text);
+            assertTrue(text.contains("latency{" + labels + ",quantile=\"0.999\"} "), text);
+            assertTrue(text.contains("latency_sum{" + labels + "} 500500\n"), text);
+            assertTrue(text.contains("latency_count{" + labels + "} 1000\n"), text);
+            assertTrue(text.contains("# TYPE events_total counter\nevents_total 5\n"), text);
+            assertTrue(text.contains("events_rate{window=\"1m\"} "), text);
+            assertTrue(text.contains("ratio NaN\n"), text);
+
+            // Scraping again renders the same text, and picks up new metrics
+            assertEquals(text, exporter.scrape());
+            metrics.counter("late").increment();
+            assertTrue(exporter.scrape().contains("late_total 1\n"));
+        }
+    }
+
+    @Test
+    void testSamplesGroupedByFamily() throws Exception {
+        MetricsCollector metrics = new MetricsCollector();
+        metrics.meter("jobs", "queue", "a").mark(2);
+        metrics.meter("jobs", "queue", "b").mark(3);
+        metrics.counter("jobs", "queue", "c").increment();
+
+        try (PrometheusExporter exporter = new PrometheusExporter(metrics, 0)) {
+            // The rates depend on the clock, only the sample names are compared
+            List<String> lines = Arrays.stream(exporter.scrape().split("\n"))
+                    .map(line -> line.startsWith("jobs_rate") ? line.substring(0, line.lastIndexOf(' ')) : line)
+                    .toList();
+
+            assertEquals(List.of(
+                    "# TYPE jobs_rate gauge",
+                    "jobs_rate{queue=\"a\",window=\"1m\"}",
+                    "jobs_rate{queue=\"a\",window=\"5m\"}",
+                    "jobs_rate{queue=\"a\",window=\"15m\"}",
+                    "jobs_rate{queue=\"b\",window=\"1m\"}",
+                    "jobs_rate{queue=\"b\",window=\"5m\"}",
+                    "jobs_rate{queue=\"b\",window=\"15m\"}",
+                    "# TYPE jobs_total counter",
+                    "jobs_total{queue=\"a\"} 2",
+                    "jobs_total{queue=\"b\"} 3",
+                    "jobs_total{queue=\"c\"} 1"), lines);
+        }
+    }
+
+    @Test
+    void testCounterAndGaugeSharingName() throws Exception {
+        MetricsCollector metrics = new MetricsCollector();
+        metrics.counter("connections", "pool", "a").increment(7);
+        metrics.gauge("connections", () -> 4, "pool", "b");
+        // Its family is the one of the counter, with another type
+        metrics.gauge("connections_total", () -> 1);
+
+        try (PrometheusExporter exporter = new PrometheusExporter(metrics, 0)) {
+            List<String> lines = Arrays.asList(exporter.scrape().split("\n"));
+
+            assertEquals(List.of(
+                    "# TYPE connections gauge",
+                    "connections{pool=\"b\"} 4",
+                    "# TYPE connections_total counter",
+                    "connections_total{pool=\"a\"} 7"), lines);
+        }
+    }
+
+    @Test
+    void testClashingSamplesLeftOut() throws Exception {
+        MetricsCollector metrics = new MetricsCollector();
+        metrics.histogram("latency").record(5);
+        // The name of the _count sample of the summary
+        metrics.gauge("latency_count", () -> 3);
+        metrics.counter("http.requests").increment(2);
+        // The same series once sanitized
+        metrics.counter("http_requests").increment(4);
+
+        try (PrometheusExporter exporter = new PrometheusExporter(metrics, 0)) {
+            String text = exporter.scrape();
+
+            assertTrue(text.contains("latency_count 1\n"), text);
+            assertFalse(text.contains("latency_count 3"), text);
+            assertFalse(text.contains("# TYPE latency_count"), text);
+            assertTrue(text.contains("# TYPE http_requests_total counter\nhttp_requests_total 2\n# TYPE"), text);
+            assertFalse(text.contains("http_requests_total 4"), text);
+        }
+    }
+}
@@ -2,7 +2,16 @@ package fr.skogrine.utilitycm;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -20,4 +29,218 @@ class RateLimiterTest {
 
         assertTrue(rateLimiter.tryAcquire()); // Should pass since the rate limit resets
     }
+
+    /**
+     * Tests the burst size and the exact refill of a token bucket.
+     */
+    @Test
+    void testTokenBucket() {
+        AtomicLong time = new AtomicLong();
+        RateLimiter limiter = RateLimiter.tokenBucket(3, 1, TimeUnit.SECONDS, 5);
+        limiter.setTicker(time::get);
+
+        assertTrue(limiter.tryAcquire(5));
+        assertFalse(limiter.tryAcquire());
+
+        // Polling every millisecond must not accumulate rounding errors: one token every 333.33 ms
+        int granted = 0;
+        for (int i = 0; i < 1_000; i++) {
+            time.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+            if (limiter.tryAcquire()) {
+                granted++;
+            }
+        }
+        assertEquals(3, granted);
+
+        time.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertTrue(limiter.tryAcquire(5), "The bucket should have refilled up to the burst size");
+        assertFalse(limiter.tryAcquire());
+        assertThrows(IllegalArgumentException.class, () -> limiter.tryAcquire(6));
+    }
+
+    /**
+     * Tests that a sliding window does not allow twice the limit across a window boundary, and weights the
+     * partly covered oldest sub-window.
+     */
+    @Test
+    void testSlidingWindow() {
+        AtomicLong time = new AtomicLong();
+        RateLimiter limiter = RateLimiter.slidingWindow(100, 1, TimeUnit.SECONDS, 10);
+        limiter.setTicker(time::get);
+
+        time.set(TimeUnit.MILLISECONDS.toNanos(950));
+        assertTrue(limiter.tryAcquire(100));
+        assertFalse(limiter.tryAcquire());
+
+        // A fixed window would grant 100 more right after the boundary
+        time.set(TimeUnit.MILLISECONDS.toNanos(1_050));
+        assertFalse(limiter.tryAcquire());
+
+        // Half of the sub-window holding the burst has left the window
+        time.set(TimeUnit.MILLISECONDS.toNanos(1_950));
+        assertTrue(limiter.tryAcquire(50));
+        assertFalse(limiter.tryAcquire());
+
+        time.set(TimeUnit.MILLISECONDS.toNanos(2_000));
+        assertTrue(limiter.tryAcquire(50));
+        assertFalse(limiter.tryAcquire());
+
+        // Stale slots of older revolutions of the ring are not counted
+        time.set(TimeUnit.SECONDS.toNanos(60));
+        assertTrue(limiter.tryAcquire(100));
+    }
+
+    /**
+     * Tests that a thread that read the clock before another moved to a later sub-window does not count in the
+     * older sub-window, which the later grants did not see.
+     */
+    @Test
+    void testSlidingWindowWithStaleClock() {
+        AtomicLong time = new AtomicLong();
+        RateLimiter limiter = RateLimiter.slidingWindow(10, 1, TimeUnit.SECONDS, 10);
+        limiter.setTicker(time::get);
+
+        time.set(TimeUnit.MILLISECONDS.toNanos(150));
+        assertTrue(limiter.tryAcquire(5));
+        time.set(TimeUnit.MILLISECONDS.toNanos(250));
+        assertTrue(limiter.tryAcquire(5));
+
+        // The sub-window at 150 ms only holds 5 permits, but the window as a whole is full
+        time.set(TimeUnit.MILLISECONDS.toNanos(150));
+        assertFalse(limiter.tryAcquire(5));
+        assertFalse(limiter.tryAcquire());
+    }
+
+    /**
+     * Tests that concurrent threads never get more permits than the limit.
+     */
+    @Test
+    void testConcurrentAcquisitionsAreExact() throws InterruptedException {
+        AtomicLong time = new AtomicLong();
+        RateLimiter fixedWindow = new RateLimiter(1_000, 1, TimeUnit.SECONDS);
+        RateLimiter tokenBucket = RateLimiter.tokenBucket(1_000, 1, TimeUnit.SECONDS);
+        RateLimiter slidingWindow = RateLimiter.slidingWindow(1_000, 1, TimeUnit.SECONDS, 4);
+        fixedWindow.setTicker(time::get);
+        tokenBucket.setTicker(time::get);
+        slidingWindow.setTicker(time::get);
+
+        AtomicInteger fixedWindowGranted = new AtomicInteger();
+        AtomicInteger tokenBucketGranted = new AtomicInteger();
+        AtomicInteger slidingWindowGranted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 5_000; i++) {
+                    if (fixedWindow.tryAcquire()) {
+                        fixedWindowGranted.incrementAndGet();
+                    }
+                    if (tokenBucket.tryAcquire()) {
+                        tokenBucketGranted.incrementAndGet();
+                    }
+                    if (slidingWindow.tryAcquire()) {
+                        slidingWindowGranted.incrementAndGet();
+                    }
+                    if (i == 2_500) {
+                        // Only one thread moves the clock, by exactly one window
+                        time.compareAndSet(0, TimeUnit.SECONDS.toNanos(1));
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(2_000, fixedWindowGranted.get());
+        assertEquals(2_000, tokenBucketGranted.get());
+        // The sliding window still counts the first burst after one window: nothing more is granted
+        assertEquals(1_000, slidingWindowGranted.get());
+    }
+
+    /**
+     * Tests that blocked threads wait for the refill instead of failing, and give up after their timeout.
+     */
+    @Test
+    void testBlockingAcquire() throws InterruptedException {
+        RateLimiter limiter = RateLimiter.tokenBucket(10, 100, TimeUnit.MILLISECONDS, 1);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 6; i++) {
+            limiter.acquire();
+        }
+        long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(45), "Acquired too fast: " + elapsed);
+
+        assertFalse(limiter.tryAcquire(1, 1, TimeUnit.MILLISECONDS));
+        assertTrue(limiter.tryAcquire(1, 1, TimeUnit.SECONDS));
+
+        Thread.currentThread().interrupt();
+        assertThrows(InterruptedException.class, limiter::acquire);
+    }
+
+    /**
+     * Tests that waiting futures are completed in the order they were requested, even when a later one needs
+     * fewer permits, and that a timed out future does not hold back the next ones.
+     */
+    @Test
+    void testAsyncAcquireIsFifo() {
+        RateLimiter limiter = RateLimiter.tokenBucket(100, 1, TimeUnit.SECONDS, 5);
+        assertTrue(limiter.tryAcquire(5));
+
+        List<Integer> completions = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> large = limiter.acquireAsync(5).thenRun(() -> completions.add(1));
+        CompletableFuture<Void> small = limiter.acquireAsync(1).thenRun(() -> completions.add(2));
+        CompletableFuture<Void> timedOut = limiter.acquireAsync(5, 1, TimeUnit.MILLISECONDS);
+        CompletableFuture<Void> last = limiter.acquireAsync(1).thenRun(() -> completions.add(3));
+
+        CompletionException exception = assertThrows(CompletionException.class, timedOut::join);
+        assertInstanceOf(TimeoutException.class, exception.getCause());
+        CompletableFuture.allOf(large, small, last).join();
+        assertEquals(List.of(1, 2, 3), completions);
+    }
+
+    /**
+     * Tests that futures are completed on the async executor rather than on the scheduler thread.
+     */
+    @Test
+    void testAsyncAcquireCompletesOnExecutor() {
+        RateLimiter limiter = RateLimiter.tokenBucket(100, 1, TimeUnit.SECONDS, 1);
+        assertTrue(limiter.tryAcquire());
+
+        String thread = limiter.acquireAsync(1).thenApply(ignored -> Thread.currentThread().getName()).join();
+        assertNotEquals("RateLimiter-scheduler", thread);
+    }
+
+    /**
+     * Tests that a future cancelled after its permits were granted gives them back to the next waiter.
+     */
+    @Test
+    void testCancelledFutureGivesPermitsBack() {
+        AtomicLong time = new AtomicLong();
+        List<Runnable> completions = new ArrayList<>();
+        RateLimiter limiter = RateLimiter.tokenBucket(1, 1, TimeUnit.HOURS, 1).setAsyncExecutor(completions::add);
+        limiter.setTicker(time::get);
+        assertTrue(limiter.tryAcquire());
+
+        CompletableFuture<Void> first = limiter.acquireAsync(1);
+        time.set(TimeUnit.HOURS.toNanos(1));
+        CompletableFuture<Void> second = limiter.acquireAsync(1);
+        assertEquals(1, completions.size(), "The first future should have been granted the new permit");
+
+        first.cancel(false);
+        completions.remove(0).run();
+        assertEquals(1, completions.size(), "The permit should have been passed on to the second future");
+        completions.remove(0).run();
+        assertTrue(second.isDone());
+        assertFalse(second.isCompletedExceptionally());
+    }
 }
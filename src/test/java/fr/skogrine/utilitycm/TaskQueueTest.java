@@ -3,7 +3,14 @@ package fr.skogrine.utilitycm;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class TaskQueueTest {
 
@@ -24,5 +31,169 @@ class TaskQueueTest {
         // Check the result to ensure both tasks are executed
         assertTrue(result.toString().contains("High priority task executed;"));
         assertTrue(result.toString().contains("Low priority task executed;"));
+        taskQueue.shutdown();
+    }
+
+    /**
+     * Tests that queued tasks run by decreasing priority, and in submission order within a priority.
+     */
+    @Test
+    void testPriorityOrder() throws InterruptedException {
+        TaskQueue taskQueue = new TaskQueue(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        taskQueue.addTask(0, () -> {
+            blocked.countDown();
+            await(release);
+        });
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        List<String> order = new ArrayList<>();
+        taskQueue.addTask(1, () -> order.add("low"));
+        taskQueue.addTask(8, () -> order.add("high-1"));
+        taskQueue.addTask(4, () -> order.add("medium"));
+        taskQueue.addTask(8, () -> order.add("high-2"));
+        taskQueue.addTask(100, () -> order.add("clamped"));
+        assertEquals(5, taskQueue.getQueuedTaskCount());
+        release.countDown();
+
+        taskQueue.shutdown();
+        assertTrue(taskQueue.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(List.of("clamped", "high-1", "high-2", "medium", "low"), order);
+        assertThrows(IllegalStateException.class, () -> taskQueue.addTask(1, () -> { }));
+    }
+
+    /**
+     * Tests that subtasks submitted from a worker are stolen by the other workers.
+     */
+    @Test
+    void testWorkStealing() throws InterruptedException {
+        TaskQueue taskQueue = new TaskQueue(4);
+        int subtasks = 200;
+        CountDownLatch done = new CountDownLatch(subtasks);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        taskQueue.addTask(5, () -> {
+            for (int i = 0; i < subtasks; i++) {
+                taskQueue.addTask(5, () -> {
+                    threads.add(Thread.currentThread().getName());
+                    sleep(2);
+                    done.countDown();
+                });
+            }
+        });
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(threads.size() > 1, "Subtasks ran on " + threads);
+        taskQueue.shutdown();
+        assertTrue(taskQueue.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Tests that tasks run once by default, and that a delayed task can run once too.
+     */
+    @Test
+    void testOneShotAndPeriodicTasks() throws InterruptedException {
+        TaskQueue taskQueue = new TaskQueue(2);
+        AtomicInteger oneShot = new AtomicInteger();
+        AtomicInteger delayed = new AtomicInteger();
+        AtomicInteger periodic = new AtomicInteger();
+        taskQueue.addTask(3, oneShot::incrementAndGet);
+        taskQueue.addTask(3, delayed::incrementAndGet, 20, 0, TimeUnit.MILLISECONDS);
+        taskQueue.addTask(3, periodic::incrementAndGet, 0, 20, TimeUnit.MILLISECONDS);
+        Thread.sleep(300);
+
+        assertEquals(1, oneShot.get());
+        assertEquals(1, delayed.get());
+        assertTrue(periodic.get() >= 5, "Periodic task ran " + periodic.get() + " times");
+        assertThrows(IllegalArgumentException.class, () -> taskQueue.addTask(1, () -> { }, -1, 0, TimeUnit.SECONDS));
+        taskQueue.shutdown();
+        assertTrue(taskQueue.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Tests that delays and periods are read in the unit they are given in.
+     */
+    @Test
+    void testNonMillisecondUnits() throws InterruptedException {
+        TaskQueue taskQueue = new TaskQueue(2);
+        AtomicInteger delayed = new AtomicInteger();
+        AtomicInteger periodic = new AtomicInteger();
+        AtomicInteger slow = new AtomicInteger();
+        taskQueue.addTask(3, delayed::incrementAndGet, 100_000_000, 0, TimeUnit.NANOSECONDS);
+        taskQueue.addTask(3, periodic::incrementAndGet, 0, 20_000, TimeUnit.MICROSECONDS);
+        taskQueue.addTask(3, slow::incrementAndGet, 0, 1, TimeUnit.HOURS);
+        assertEquals(0, delayed.get());
+        Thread.sleep(400);
+
+        assertEquals(1, delayed.get());
+        assertTrue(periodic.get() >= 5 && periodic.get() <= 25, "Periodic task ran " + periodic.get() + " times");
+        assertEquals(1, slow.get());
+        taskQueue.shutdown();
+        assertTrue(taskQueue.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Tests that with aging, a low priority task runs while higher priority tasks keep coming.
+     */
+    @Test
+    void testAging() throws InterruptedException {
+        TaskQueue taskQueue = new TaskQueue(1).setAging(5, TimeUnit.MILLISECONDS);
+        assertEquals(5, taskQueue.getAging(TimeUnit.MILLISECONDS));
+        AtomicBoolean flooding = new AtomicBoolean(true);
+        Runnable[] flood = new Runnable[1];
+        flood[0] = () -> {
+            sleep(1);
+            if (flooding.get()) {
+                taskQueue.addTask(9, flood[0]);
+            }
+        };
+        taskQueue.addTask(9, flood[0]);
+        CountDownLatch ran = new CountDownLatch(1);
+        taskQueue.addTask(0, ran::countDown);
+
+        boolean starved = !ran.await(5, TimeUnit.SECONDS);
+        flooding.set(false);
+        assertFalse(starved, "The low priority task never ran");
+        assertThrows(IllegalArgumentException.class, () -> taskQueue.setAging(-1, TimeUnit.SECONDS));
+        taskQueue.shutdown();
+        assertTrue(taskQueue.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Tests that the time tasks waited for a worker is recorded per priority.
+     */
+    @Test
+    void testWaitTimeMetrics() throws InterruptedException {
+        TaskQueue taskQueue = new TaskQueue(1);
+        CountDownLatch release = new CountDownLatch(1);
+        taskQueue.addTask(5, () -> await(release));
+        taskQueue.addTask(2, () -> { });
+        taskQueue.addTask(2, () -> { });
+        Thread.sleep(50);
+        release.countDown();
+        taskQueue.shutdown();
+        assertTrue(taskQueue.awaitTermination(5, TimeUnit.SECONDS));
+
+        Histogram.Snapshot waits = taskQueue.getWaitTimeSnapshot(2);
+        assertEquals(2, waits.getCount());
+        assertTrue(waits.getMin() >= TimeUnit.MILLISECONDS.toNanos(40), "Waited " + waits);
+        assertEquals(1, taskQueue.getWaitTimeSnapshot(5).getCount());
+        assertEquals(0, taskQueue.getWaitTimeSnapshot(100).getCount());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
@@ -0,0 +1,266 @@
+package fr.skogrine.utilitycm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Unit tests for the {@link TaskScheduler} class.
+ */
+class TaskSchedulerTest {
+
+    @Test
+    void testScheduleAndCancel() throws InterruptedException {
+        TaskScheduler scheduler = new TaskScheduler();
+        CountDownLatch fired = new CountDownLatch(1);
+        AtomicInteger cancelledRuns = new AtomicInteger();
+        long start = System.nanoTime();
+        TaskScheduler.ScheduledTask task = scheduler.schedule(fired::countDown, 50);
+        TaskScheduler.ScheduledTask cancelled = scheduler.schedule(cancelledRuns::incrementAndGet, 20);
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        Thread.sleep(50);
+        assertEquals(0, cancelledRuns.get());
+        assertTrue(cancelled.isCancelled());
+        assertTrue(task.isDone());
+        assertFalse(task.cancel());
+        scheduler.cancel();
+    }
+
+    @Test
+    void testFixedRate() throws InterruptedException {
+        TaskScheduler scheduler = new TaskScheduler(5, TimeUnit.MILLISECONDS);
+        CountDownLatch runs = new CountDownLatch(5);
+        AtomicInteger running = new AtomicInteger();
+        TaskScheduler.ScheduledTask task = scheduler.scheduleAtFixedRate(() -> {
+            assertEquals(1, running.incrementAndGet(), "Executions overlapped");
+            runs.countDown();
+            running.decrementAndGet();
+        }, 0, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(runs.await(5, TimeUnit.SECONDS));
+        assertTrue(task.cancel());
+        assertTrue(task.isDone());
+        assertThrows(IllegalArgumentException.class, () -> scheduler.scheduleAtFixedRate(() -> { }, 0, 0));
+        scheduler.cancel();
+        assertThrows(IllegalStateException.class, () -> scheduler.schedule(() -> { }, 1));
+    }
+
+    /**
+     * Tests the overlap policies with a task that runs for three periods.
+     */
+    @Test
+    void testOverlapPolicies() throws InterruptedException {
+        ExecutorService workers = Executors.newCachedThreadPool();
+        TaskScheduler scheduler = new TaskScheduler(1, TimeUnit.MILLISECONDS, workers);
+        for (TaskScheduler.OverlapPolicy policy : TaskScheduler.OverlapPolicy.values()) {
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            AtomicInteger runs = new AtomicInteger();
+            TaskScheduler.ScheduledTask task = scheduler.scheduleAtFixedRate(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                runs.incrementAndGet();
+                sleep(60);
+                running.decrementAndGet();
+            }, 0, 20, TimeUnit.MILLISECONDS, policy);
+            Thread.sleep(300);
+            task.cancel();
+            Thread.sleep(100);
+
+            if (policy == TaskScheduler.OverlapPolicy.CONCURRENT) {
+                assertTrue(maxRunning.get() > 1, "Executions did not overlap");
+                assertTrue(runs.get() >= 10, "Only " + runs.get() + " executions");
+            } else {
+                assertEquals(1, maxRunning.get(), policy + " executions overlapped");
+                assertTrue(runs.get() >= 3 && runs.get() <= 7, runs.get() + " executions with " + policy);
+            }
+        }
+        scheduler.cancel();
+        workers.shutdown();
+    }
+
+    @Test
+    void testVirtualThreads() throws Exception {
+        boolean supported = true;
+        try {
+            Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            supported = false;
+        }
+        assumeTrue(supported, "Virtual threads require Java 21");
+
+        TaskScheduler scheduler = TaskScheduler.withVirtualThreads();
+        int tasks = 2_000;
+        CountDownLatch started = new CountDownLatch(tasks);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger virtual = new AtomicInteger();
+        for (int i = 0; i < tasks; i++) {
+            scheduler.schedule(() -> {
+                try {
+                    if ((Boolean) Thread.class.getMethod("isVirtual").invoke(Thread.currentThread())) {
+                        virtual.incrementAndGet();
+                    }
+                    started.countDown();
+                    release.await();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }, 10);
+        }
+        // Every task blocks at once, which a bounded pool of platform threads could not do
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        assertEquals(tasks, virtual.get());
+        scheduler.cancel();
+    }
+
+    @Test
+    void testCron() throws InterruptedException {
+        TaskScheduler scheduler = new TaskScheduler(10, TimeUnit.MILLISECONDS);
+        List<Long> fireTimes = new CopyOnWriteArrayList<>();
+        TaskScheduler.ScheduledTask task = scheduler.schedule("* * * * * *",
+                () -> fireTimes.add(System.currentTimeMillis()));
+        Thread.sleep(2_500);
+        task.cancel();
+
+        assertTrue(fireTimes.size() >= 2, "Fired " + fireTimes.size() + " times");
+        for (long fireTime : fireTimes) {
+            // At the start of a second, at most a tick and the scheduling latency late
+            assertTrue(fireTime % 1_000 < 200, "Fired at " + fireTime);
+        }
+        assertThrows(IllegalArgumentException.class, () -> scheduler.schedule("0 0 30 2 *", () -> { }));
+        scheduler.cancel();
+    }
+
+    /**
+     * Tests that a slow task does not delay the tasks due after it.
+     */
+    @Test
+    void testSlowTaskDoesNotDelayOthers() throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        TaskScheduler scheduler = new TaskScheduler(1, TimeUnit.MILLISECONDS, workers);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch fired = new CountDownLatch(1);
+        scheduler.schedule(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 0);
+        scheduler.schedule(fired::countDown, 20);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        scheduler.cancel();
+        workers.shutdown();
+    }
+
+    /**
+     * Tests that a large number of deadlines can be scheduled and cancelled cheaply.
+     */
+    @Test
+    void testManyDeadlines() throws InterruptedException {
+        TaskScheduler scheduler = new TaskScheduler(10, TimeUnit.MILLISECONDS);
+        AtomicInteger fired = new AtomicInteger();
+        List<TaskScheduler.ScheduledTask> tasks = new ArrayList<>();
+        for (int i = 0; i < 200_000; i++) {
+            tasks.add(scheduler.schedule(fired::incrementAndGet, 1_000 + i % 100, TimeUnit.MILLISECONDS));
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            if (i % 100 != 0) {
+                assertTrue(tasks.get(i).cancel());
+            }
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (fired.get() < 2_000 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertEquals(2_000, fired.get());
+        scheduler.cancel();
+    }
+
+    /**
+     * Tests that cancelling the scheduler cancels the tasks in the wheel and the ones rescheduled once it stopped.
+     */
+    @Test
+    void testCancelSchedulerCancelsTasks() throws InterruptedException {
+        ExecutorService workers = Executors.newSingleThreadExecutor();
+        TaskScheduler scheduler = new TaskScheduler(1, TimeUnit.MILLISECONDS, workers);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        TaskScheduler.ScheduledTask far = scheduler.schedule(() -> { }, 1, TimeUnit.HOURS);
+        TaskScheduler.ScheduledTask repeated = scheduler.scheduleAtFixedRate(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 0, 10);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        scheduler.cancel();
+        // Rescheduled after the timer thread stopped
+        release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!(far.isCancelled() && repeated.isCancelled()) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(far.isCancelled());
+        assertTrue(repeated.isCancelled());
+        workers.shutdown();
+    }
+
+    /**
+     * Tests that the timer thread sleeps without a timeout while no task is scheduled, and wakes up for new ones.
+     */
+    @Test
+    void testIdleTimerThreadSleeps() throws InterruptedException {
+        Set<Thread> before = Thread.getAllStackTraces().keySet();
+        TaskScheduler scheduler = new TaskScheduler();
+        Thread timer = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> !before.contains(thread) && thread.getName().startsWith("TaskScheduler-timer-"))
+                .findFirst()
+                .orElseThrow();
+        awaitState(timer, Thread.State.WAITING);
+
+        CountDownLatch fired = new CountDownLatch(1);
+        scheduler.schedule(fired::countDown, 20);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        awaitState(timer, Thread.State.WAITING);
+        scheduler.cancel();
+    }
+
+    private static void awaitState(Thread thread, Thread.State state) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (thread.getState() != state && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(state, thread.getState());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
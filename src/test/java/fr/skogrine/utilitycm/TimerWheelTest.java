@@ -0,0 +1,77 @@
+package fr.skogrine.utilitycm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link TimerWheel} class.
+ */
+class TimerWheelTest {
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * Tests that timers spread over every level fire after their deadline, at the first advance past the end of
+     * their tick.
+     */
+    @Test
+    void testTimersFireWithinOneTick() {
+        long start = 123_456_789L;
+        TimerWheel<Integer> wheel = new TimerWheel<>(start, TICK, 8, 3);
+        Random random = new Random(1);
+        List<TimerWheel.Timer<Integer>> timers = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            TimerWheel.Timer<Integer> timer = new TimerWheel.Timer<>(i);
+            // Up to ~16 seconds, beyond the 5.12 seconds the three levels can represent
+            timer.time = start + (long) (random.nextDouble() * 1_600 * TICK);
+            wheel.schedule(timer);
+            timers.add(timer);
+        }
+
+        int[] fired = {0};
+        long now = start;
+        while (fired[0] < timers.size()) {
+            now += TICK / 3 + random.nextInt((int) TICK);
+            long current = now;
+            wheel.advance(current, timer -> {
+                assertTrue(timer.time <= current, "Timer fired before its deadline");
+                // At most one tick late, plus the gap between two advances
+                assertTrue(current - timer.time <= 3 * TICK, "Timer fired more than one tick late");
+                assertFalse(timer.isScheduled());
+                fired[0]++;
+            });
+            assertTrue(now - start < 2_000 * TICK, "Some timers never fired");
+        }
+    }
+
+    /**
+     * Tests rescheduling and cancelling timers.
+     */
+    @Test
+    void testRescheduleAndDeschedule() {
+        TimerWheel<String> wheel = new TimerWheel<>(0, TICK, 8, 2);
+        TimerWheel.Timer<String> moved = new TimerWheel.Timer<>("moved");
+        TimerWheel.Timer<String> cancelled = new TimerWheel.Timer<>("cancelled");
+        moved.time = 5 * TICK;
+        cancelled.time = 5 * TICK;
+        wheel.schedule(moved);
+        wheel.schedule(cancelled);
+
+        moved.time = 100 * TICK;
+        wheel.reschedule(moved);
+        wheel.deschedule(cancelled);
+        assertFalse(cancelled.isScheduled());
+
+        List<String> fired = new ArrayList<>();
+        wheel.advance(50 * TICK, timer -> fired.add(timer.item));
+        assertTrue(fired.isEmpty());
+        wheel.advance(102 * TICK, timer -> fired.add(timer.item));
+        assertEquals(List.of("moved"), fired);
+    }
+}
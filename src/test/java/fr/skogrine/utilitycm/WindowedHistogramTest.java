@@ -0,0 +1,68 @@
+package fr.skogrine.utilitycm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link WindowedHistogram} class.
+ */
+class WindowedHistogramTest {
+
+    /**
+     * Tests that values leave the snapshot once their interval has passed out of the window.
+     */
+    @Test
+    void testWindow() {
+        AtomicLong time = new AtomicLong(-TimeUnit.SECONDS.toNanos(5));
+        WindowedHistogram histogram = new WindowedHistogram(60, TimeUnit.SECONDS, 6, time::get);
+        assertEquals(60, histogram.getWindow(TimeUnit.SECONDS));
+
+        for (int i = 0; i < 100; i++) {
+            histogram.record(1_000_000);
+        }
+        time.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        histogram.record(1_000);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(101, snapshot.getCount());
+        assertEquals(1_000, snapshot.getMin());
+        assertEquals(1_000_000, snapshot.getMax());
+
+        // The slow values were recorded 60 seconds ago: only the recent one is left
+        time.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(1_000, snapshot.getP99());
+
+        // A slot coming back around is reset before being reused
+        time.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        histogram.record(5);
+        snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(5, snapshot.getSum());
+
+        time.addAndGet(TimeUnit.MINUTES.toNanos(10));
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getP99());
+        assertThrows(IllegalArgumentException.class, () -> histogram.record(-1));
+        assertThrows(IllegalArgumentException.class, () -> new WindowedHistogram(1, TimeUnit.SECONDS, 0));
+    }
+
+    @Test
+    void testMetricsCollector() {
+        MetricsCollector metrics = new MetricsCollector();
+        AtomicLong time = new AtomicLong();
+        metrics.setTicker(time::get);
+        WindowedHistogram latency = metrics.windowedHistogram("latency", 1, TimeUnit.MINUTES);
+        assertSame(latency, metrics.windowedHistogram("latency", 1, TimeUnit.MINUTES));
+        latency.record(42);
+        assertEquals(42, metrics.getSnapshot("latency").getMax());
+
+        time.addAndGet(TimeUnit.MINUTES.toNanos(2));
+        assertEquals(0, metrics.getSnapshot("latency").getCount());
+        assertThrows(IllegalArgumentException.class, () -> metrics.histogram("latency"));
+    }
+}
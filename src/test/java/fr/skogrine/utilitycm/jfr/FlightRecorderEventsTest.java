@@ -0,0 +1,119 @@
+package fr.skogrine.utilitycm.jfr;
+
+import fr.skogrine.utilitycm.CacheManager;
+import fr.skogrine.utilitycm.ConcurrentResourcePool;
+import fr.skogrine.utilitycm.EventBus;
+import fr.skogrine.utilitycm.TaskQueue;
+import fr.skogrine.utilitycm.redis.AdvancedRedisClient;
+import fr.skogrine.utilitycm.redis.FakeRedisServer;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that the library emits its Java Flight Recorder events while a recording enables them.
+ */
+class FlightRecorderEventsTest {
+
+    @Test
+    void testEventsAreRecorded() throws Exception {
+        List<RecordedEvent> events;
+        Path file = Files.createTempFile("events", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(CacheLoadEvent.class);
+            recording.enable(PoolAcquireEvent.class);
+            recording.enable(TaskRunEvent.class);
+            recording.enable(EventBusDispatchEvent.class);
+            recording.enable(RedisCommandEvent.class);
+            recording.start();
+
+            CacheManager<String, Integer> cache = new CacheManager<>(10);
+            cache.computeIfAbsent("answer", key -> 42);
+            cache.computeIfAbsent("answer", key -> 0);
+
+            ConcurrentResourcePool<String> pool = new ConcurrentResourcePool<>(0, () -> "resource", 1, 1000, null);
+            assertEquals("resource", pool.acquireAsync().get(5, TimeUnit.SECONDS));
+            pool.close();
+            ConcurrentResourcePool<String> failing = new ConcurrentResourcePool<>(0, () -> {
+                throw new IllegalStateException("unavailable");
+            }, 1, 1000, null);
+            assertThrows(ExecutionException.class, () -> failing.acquireAsync().get(5, TimeUnit.SECONDS));
+            failing.close();
+
+            EventBus eventBus = new EventBus();
+            eventBus.subscribe("ping", data -> { });
+            eventBus.subscribe("ping", data -> { });
+            eventBus.publish("ping", "data");
+
+            CountDownLatch ran = new CountDownLatch(1);
+            TaskQueue taskQueue = new TaskQueue(1);
+            taskQueue.addTask(7, ran::countDown);
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+            taskQueue.shutdown();
+            assertTrue(taskQueue.awaitTermination(5, TimeUnit.SECONDS));
+
+            try (FakeRedisServer server = new FakeRedisServer()) {
+                AdvancedRedisClient redis = new AdvancedRedisClient("localhost", server.getPort());
+                assertTrue(redis.setAsync("greeting", "hello").get(5, TimeUnit.SECONDS));
+                assertEquals("hello", redis.getAsync("greeting").get(5, TimeUnit.SECONDS));
+                // Sent by digest, then again with its source since the server does not know it yet
+                assertEquals(1L, redis.evalAsync("return 1", List.of("script"), List.of()).get(5, TimeUnit.SECONDS));
+                assertEquals(1L, redis.evalAsync("return 1", List.of("script"), List.of()).get(5, TimeUnit.SECONDS));
+                redis.close();
+            }
+
+            recording.stop();
+            recording.dump(file);
+            events = RecordingFile.readAllEvents(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        List<RecordedEvent> loads = named(events, "fr.skogrine.utilitycm.CacheLoad");
+        assertEquals(1, loads.size());
+        assertEquals("answer", loads.get(0).getString("key"));
+        assertTrue(loads.get(0).getBoolean("success"));
+
+        List<RecordedEvent> acquires = named(events, "fr.skogrine.utilitycm.PoolAcquire");
+        assertEquals(2, acquires.size());
+        assertTrue(acquires.stream().allMatch(event -> event.getBoolean("created")));
+        assertEquals(1, acquires.stream().filter(event -> event.getBoolean("success")).count());
+
+        List<RecordedEvent> dispatches = named(events, "fr.skogrine.utilitycm.EventBusDispatch");
+        assertEquals(1, dispatches.size());
+        assertEquals("ping", dispatches.get(0).getString("eventType"));
+        assertEquals(2, dispatches.get(0).getInt("subscribers"));
+
+        List<RecordedEvent> runs = named(events, "fr.skogrine.utilitycm.TaskRun");
+        assertFalse(runs.isEmpty());
+        assertEquals(7, runs.get(0).getInt("priority"));
+        assertTrue(runs.get(0).getLong("queueDelay") >= 0);
+
+        List<RecordedEvent> commands = named(events, "fr.skogrine.utilitycm.RedisCommand");
+        assertEquals(List.of(Map.entry("SET", "greeting"), Map.entry("GET", "greeting"), Map.entry("EVAL", "script"),
+                        Map.entry("EVALSHA", "script")),
+                commands.stream()
+                        .sorted((a, b) -> a.getStartTime().compareTo(b.getStartTime()))
+                        .map(event -> Map.entry(event.getString("command"), event.getString("key")))
+                        .collect(Collectors.toList()));
+        assertTrue(commands.stream().allMatch(event -> event.getBoolean("success")));
+    }
+
+    private static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+        return events.stream()
+                .filter(event -> event.getEventType().getName().equals(name))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,155 @@
+package fr.skogrine.utilitycm.redis;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link DistributedRateLimiter} class, run against a {@link FakeRedisServer} executing the
+ * Lua script.
+ */
+class DistributedRateLimiterTest {
+
+    @Test
+    void testLimitIsShared() throws Exception {
+        try (FakeRedisServer server = startServer()) {
+            AdvancedRedisClient client = new AdvancedRedisClient("localhost", server.getPort());
+            DistributedRateLimiter node1 = new DistributedRateLimiter(client, "limit", 10, 1, TimeUnit.SECONDS, 10);
+            DistributedRateLimiter node2 = new DistributedRateLimiter(client, "limit", 10, 1, TimeUnit.SECONDS, 10);
+
+            for (int i = 0; i < 5; i++) {
+                assertTrue(node1.tryAcquire());
+                assertTrue(node2.tryAcquire());
+            }
+            assertFalse(node1.tryAcquire());
+            assertFalse(node2.tryAcquire());
+
+            // The bucket refills from the clock of the server
+            server.setTimeMicros(server.getTimeMicros() + 300_000);
+            assertTrue(node1.tryAcquire(3));
+            assertFalse(node2.tryAcquire());
+
+            // The script was sent once, then called by its digest
+            assertEquals(1, server.getCommandCount("EVAL"));
+            client.close();
+        }
+    }
+
+    /**
+     * Tests that leasing serves most calls locally without exceeding the shared limit.
+     */
+    @Test
+    void testLeasing() throws Exception {
+        try (FakeRedisServer server = startServer()) {
+            AdvancedRedisClient client = new AdvancedRedisClient("localhost", server.getPort());
+            AtomicLong time = new AtomicLong();
+            DistributedRateLimiter node1 = new DistributedRateLimiter(client, "limit", 100, 1, TimeUnit.SECONDS, 100)
+                    .setLeaseSize(10, 1, TimeUnit.SECONDS);
+            DistributedRateLimiter node2 = new DistributedRateLimiter(client, "limit", 100, 1, TimeUnit.SECONDS, 100)
+                    .setLeaseSize(10, 1, TimeUnit.SECONDS);
+            node1.setTicker(time::get);
+            node2.setTicker(time::get);
+
+            int granted = 0;
+            for (int i = 0; i < 200; i++) {
+                if ((i % 2 == 0 ? node1 : node2).tryAcquire()) {
+                    granted++;
+                }
+            }
+            assertEquals(100, granted);
+            assertTrue(scriptCalls(server) <= 25, "Too many calls to Redis: " + scriptCalls(server));
+
+            // Expired leases are dropped rather than used for a late burst
+            server.setTimeMicros(server.getTimeMicros() + 50_000);
+            time.addAndGet(TimeUnit.SECONDS.toNanos(2));
+            int lateGranted = 0;
+            for (int i = 0; i < 20; i++) {
+                if (node1.tryAcquire()) {
+                    lateGranted++;
+                }
+            }
+            assertEquals(5, lateGranted);
+            client.close();
+        }
+    }
+
+    /**
+     * Tests that concurrent callers share the lease in flight instead of each calling Redis.
+     */
+    @Test
+    void testConcurrentLeasing() throws Exception {
+        try (FakeRedisServer server = startServer()) {
+            AdvancedRedisClient client = new AdvancedRedisClient("localhost", server.getPort());
+            AtomicLong time = new AtomicLong();
+            DistributedRateLimiter limiter = new DistributedRateLimiter(client, "limit", 100, 1, TimeUnit.SECONDS, 100)
+                    .setLeaseSize(10, 1, TimeUnit.SECONDS);
+            limiter.setTicker(time::get);
+
+            List<CompletableFuture<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 120; i++) {
+                results.add(limiter.tryAcquireAsync(1));
+            }
+            long granted = results.stream().filter(CompletableFuture::join).count();
+            assertEquals(100, granted);
+            assertTrue(scriptCalls(server) <= 25, "Too many calls to Redis: " + scriptCalls(server));
+            client.close();
+        }
+    }
+
+    /**
+     * Tests the state written by the script: fractional tokens refilled from the server clock, and an expiry
+     * set for when the bucket is full again.
+     */
+    @Test
+    void testScriptState() throws Exception {
+        try (FakeRedisServer server = startServer()) {
+            AdvancedRedisClient client = new AdvancedRedisClient("localhost", server.getPort());
+            DistributedRateLimiter limiter = new DistributedRateLimiter(client, "limit", 3, 1, TimeUnit.SECONDS, 10);
+            long start = server.getTimeMicros();
+            assertTrue(limiter.tryAcquire(10));
+            assertEquals(0, Double.parseDouble(server.getHash("limit").get("tokens")));
+            assertEquals(String.valueOf(start), server.getHash("limit").get("time"));
+            assertEquals(4_334L, server.getTtlMillis("limit"));
+
+            // 1.5 tokens after half a second: not enough for 2
+            server.setTimeMicros(start + 500_000);
+            assertFalse(limiter.tryAcquire(2));
+            assertEquals(1.5, Double.parseDouble(server.getHash("limit").get("tokens")), 1e-9);
+
+            server.setTimeMicros(start + 700_000);
+            assertTrue(limiter.tryAcquire(2));
+            assertEquals(0.1, Double.parseDouble(server.getHash("limit").get("tokens")), 1e-9);
+            assertEquals(String.valueOf(start + 700_000), server.getHash("limit").get("time"));
+            client.close();
+        }
+    }
+
+    @Test
+    void testRedisUnavailable() throws Exception {
+        FakeRedisServer server = startServer();
+        int port = server.getPort();
+        server.close();
+
+        AdvancedRedisClient client = new AdvancedRedisClient("localhost", port);
+        DistributedRateLimiter limiter = new DistributedRateLimiter(client, "limit", 10, 1, TimeUnit.SECONDS, 10);
+        assertFalse(limiter.tryAcquire());
+        assertTrue(limiter.setFailOpen(true).tryAcquire());
+        client.close();
+    }
+
+    private static int scriptCalls(FakeRedisServer server) {
+        return server.getCommandCount("EVAL") + server.getCommandCount("EVALSHA");
+    }
+
+    private static FakeRedisServer startServer() throws Exception {
+        FakeRedisServer server = new FakeRedisServer();
+        server.setTimeMicros(1_700_000_000_000_000L);
+        return server;
+    }
+}
@@ -0,0 +1,391 @@
+package fr.skogrine.utilitycm.redis;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.VarArgFunction;
+import org.luaj.vm2.lib.ZeroArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process Redis server speaking enough of the RESP2 protocol for the tests of the Redis utilities.
+ *
+ * <p>Scripts sent with {@code EVAL} or {@code EVALSHA} are run by the LuaJ interpreter, with {@code KEYS},
+ * {@code ARGV} and a {@code redis.call} converting arguments and replies like Redis does. Like Redis, it answers
+ * {@code NOSCRIPT} to the digest of a script it has not been sent yet. Commands run one at a time, so scripts
+ * are atomic.</p>
+ */
+public class FakeRedisServer implements Closeable {
+
+    private final ServerSocket serverSocket;
+    private final Map<String, String> loadedScripts = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, String>> hashes = new HashMap<>();
+    private final Map<String, String> strings = new HashMap<>();
+    private final Map<String, Long> ttls = new HashMap<>();
+    private final Map<String, AtomicInteger> commandCounts = new ConcurrentHashMap<>();
+    private final List<Socket> clients = new ArrayList<>();
+    private volatile long timeMicros;
+
+    public FakeRedisServer() throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "FakeRedisServer-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Sets the time returned by the {@code TIME} command to scripts, in microseconds.
+     */
+    void setTimeMicros(long timeMicros) {
+        this.timeMicros = timeMicros;
+    }
+
+    long getTimeMicros() {
+        return timeMicros;
+    }
+
+    /**
+     * Gets a copy of a hash, empty if absent.
+     */
+    synchronized Map<String, String> getHash(String key) {
+        return new HashMap<>(hashes.getOrDefault(key, Map.of()));
+    }
+
+    /**
+     * Gets the time to live last set on a key with {@code PEXPIRE}, in milliseconds, or null if none was set.
+     * Keys never actually expire.
+     */
+    synchronized Long getTtlMillis(String key) {
+        return ttls.get(key);
+    }
+
+    /**
+     * Gets the number of times a command was received.
+     */
+    public int getCommandCount(String command) {
+        AtomicInteger count = commandCounts.get(command);
+        return count == null ? 0 : count.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        synchronized (clients) {
+            for (Socket client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                synchronized (clients) {
+                    clients.add(client);
+                }
+                Thread handler = new Thread(() -> serve(client), "FakeRedisServer-client");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try (Socket socket = client) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            for (;;) {
+                List<String> command = readCommand(in);
+                if (command == null) {
+                    return;
+                }
+                Object reply;
+                synchronized (this) {
+                    reply = execute(command);
+                }
+                writeReply(out, reply);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client or the server closed the connection
+        }
+    }
+
+    private Object execute(List<String> command) {
+        String name = command.get(0).toUpperCase();
+        commandCounts.computeIfAbsent(name, k -> new AtomicInteger()).incrementAndGet();
+        switch (name) {
+            case "PING":
+                return new StatusReply("PONG");
+            case "CLIENT":
+            case "SELECT":
+                return new StatusReply("OK");
+            case "SET":
+                strings.put(command.get(1), command.get(2));
+                return new StatusReply("OK");
+            case "GET":
+                return strings.get(command.get(1));
+            case "TIME":
+                return List.of(String.valueOf(timeMicros / 1_000_000), String.valueOf(timeMicros % 1_000_000));
+            case "HMGET": {
+                Map<String, String> hash = hashes.getOrDefault(command.get(1), Map.of());
+                List<String> values = new ArrayList<>();
+                for (String field : command.subList(2, command.size())) {
+                    values.add(hash.get(field));
+                }
+                return values;
+            }
+            case "HSET": {
+                Map<String, String> hash = hashes.computeIfAbsent(command.get(1), k -> new HashMap<>());
+                long added = 0;
+                for (int i = 2; i + 1 < command.size(); i += 2) {
+                    if (hash.put(command.get(i), command.get(i + 1)) == null) {
+                        added++;
+                    }
+                }
+                return added;
+            }
+            case "PEXPIRE":
+                if (!hashes.containsKey(command.get(1)) && !strings.containsKey(command.get(1))) {
+                    return 0L;
+                }
+                try {
+                    ttls.put(command.get(1), Long.parseLong(command.get(2)));
+                } catch (NumberFormatException e) {
+                    return new ErrorReply("ERR value is not an integer or out of range");
+                }
+                return 1L;
+            case "SCRIPT":
+                if ("LOAD".equalsIgnoreCase(command.get(1))) {
+                    return load(command.get(2));
+                }
+                return new ErrorReply("ERR unsupported SCRIPT subcommand");
+            case "EVAL":
+                load(command.get(1));
+                return eval(command.get(1), command);
+            case "EVALSHA":
+                String source = loadedScripts.get(command.get(1).toLowerCase());
+                if (source == null) {
+                    return new ErrorReply("NOSCRIPT No matching script. Please use EVAL.");
+                }
+                return eval(source, command);
+            default:
+                return new ErrorReply("ERR unknown command '" + name + "'");
+        }
+    }
+
+    private String load(String source) {
+        String sha1 = sha1(source);
+        loadedScripts.put(sha1, source);
+        return sha1;
+    }
+
+    private Object eval(String source, List<String> command) {
+        int keyCount = Integer.parseInt(command.get(2));
+        Globals globals = JsePlatform.standardGlobals();
+        globals.set("KEYS", toLua(command.subList(3, 3 + keyCount)));
+        globals.set("ARGV", toLua(command.subList(3 + keyCount, command.size())));
+        LuaTable redis = new LuaTable();
+        redis.set("call", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                List<String> nested = new ArrayList<>(args.narg());
+                for (int i = 1; i <= args.narg(); i++) {
+                    // Like Redis, numbers are passed as their string representation
+                    nested.add(args.checkjstring(i));
+                }
+                Object reply = execute(nested);
+                if (reply instanceof ErrorReply) {
+                    throw new LuaError(((ErrorReply) reply).message);
+                }
+                return toLua(reply);
+            }
+        });
+        redis.set("replicate_commands", new ZeroArgFunction() {
+            @Override
+            public LuaValue call() {
+                return LuaValue.TRUE;
+            }
+        });
+        globals.set("redis", redis);
+        try {
+            return toRedis(globals.load(source, "script").call());
+        } catch (LuaError e) {
+            return new ErrorReply("ERR Error running script: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Converts a reply to a Lua value as Redis does: nil replies become false and status replies a table.
+     */
+    private static LuaValue toLua(Object reply) {
+        if (reply == null) {
+            return LuaValue.FALSE;
+        } else if (reply instanceof Long) {
+            return LuaValue.valueOf(((Long) reply).doubleValue());
+        } else if (reply instanceof StatusReply) {
+            LuaTable status = new LuaTable();
+            status.set("ok", LuaValue.valueOf(((StatusReply) reply).message));
+            return status;
+        } else if (reply instanceof List) {
+            LuaTable table = new LuaTable();
+            List<?> list = (List<?>) reply;
+            for (int i = 0; i < list.size(); i++) {
+                table.set(i + 1, toLua(list.get(i)));
+            }
+            return table;
+        }
+        return LuaValue.valueOf(reply.toString());
+    }
+
+    /**
+     * Converts the value returned by a script to a reply as Redis does: numbers are truncated to integers, and
+     * arrays stop at the first nil.
+     */
+    private static Object toRedis(LuaValue value) {
+        switch (value.type()) {
+            case LuaValue.TNUMBER:
+                return (long) value.todouble();
+            case LuaValue.TSTRING:
+                return value.tojstring();
+            case LuaValue.TBOOLEAN:
+                return value.toboolean() ? 1L : null;
+            case LuaValue.TTABLE:
+                if (!value.get("err").isnil()) {
+                    return new ErrorReply(value.get("err").tojstring());
+                }
+                if (!value.get("ok").isnil()) {
+                    return new StatusReply(value.get("ok").tojstring());
+                }
+                List<Object> list = new ArrayList<>();
+                for (int i = 1; !value.get(i).isnil(); i++) {
+                    list.add(toRedis(value.get(i)));
+                }
+                return list;
+            default:
+                return null;
+        }
+    }
+
+    private static List<String> readCommand(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return null;
+        }
+        if (type != '*') {
+            throw new IOException("Inline commands are not supported");
+        }
+        int count = Integer.parseInt(readLine(in));
+        List<String> command = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (in.read() != '$') {
+                throw new IOException("Bulk string expected");
+            }
+            byte[] bytes = new byte[Integer.parseInt(readLine(in))];
+            in.readFully(bytes);
+            readLine(in);
+            command.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return command;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c < 0) {
+                throw new IOException("Connection closed");
+            }
+            line.write(c);
+        }
+        in.read();
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void writeReply(OutputStream out, Object reply) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        appendReply(builder, reply);
+        out.write(builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void appendReply(StringBuilder builder, Object reply) {
+        if (reply == null) {
+            builder.append("$-1\r\n");
+        } else if (reply instanceof StatusReply) {
+            builder.append('+').append(((StatusReply) reply).message).append("\r\n");
+        } else if (reply instanceof ErrorReply) {
+            builder.append('-').append(((ErrorReply) reply).message).append("\r\n");
+        } else if (reply instanceof Long || reply instanceof Integer) {
+            builder.append(':').append(reply).append("\r\n");
+        } else if (reply instanceof List) {
+            List<?> list = (List<?>) reply;
+            builder.append('*').append(list.size()).append("\r\n");
+            for (Object element : list) {
+                appendReply(builder, element);
+            }
+        } else {
+            String string = reply.toString();
+            builder.append('$').append(string.getBytes(StandardCharsets.UTF_8).length).append("\r\n")
+                    .append(string).append("\r\n");
+        }
+    }
+
+    private static String sha1(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class StatusReply {
+        final String message;
+
+        StatusReply(String message) {
+            this.message = message;
+        }
+    }
+
+    private static final class ErrorReply {
+        final String message;
+
+        ErrorReply(String message) {
+            this.message = message;
+        }
+    }
+}